@@ -0,0 +1,298 @@
+package com.github.kmkt.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * チャネル名からチャネル毎のインスタンスを引く登録表
+ *
+ * <pre>
+ * 多数のカメラを 1 つの servlet で配信するための、チャネル毎の配信インスタンス (ImageServlet など) の表。
+ * チャネルは {@link #get(String)} での初回参照時に生成される。クライアントの要求など外部から与えられたチャネル名は
+ * {@link #lookup(String)} で引き、チャネルを生成させないこと。
+ * 使用中でない状態で idle_timeout の間参照されなかったチャネルは破棄される。
+ * 破棄の判定と参照は同じキーについて排他されるため、参照直後のチャネルが破棄されることは無い。
+ * チャネル名は英数字と . _ - からなる 1 - 64 文字。
+ * </pre>
+ *
+ * License : MIT License
+ * @param <T> チャネル毎のインスタンスの型
+ */
+public class ChannelRegistry<T> {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelRegistry.class);
+
+    /** 標準のチャネル破棄までの時間 (ms) */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5*60*1000;
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    /**
+     * チャネルのインスタンスを生成する callback
+     */
+    @FunctionalInterface
+    public interface ChannelFactory<T> {
+        /**
+         * @param channel チャネル名
+         * @return チャネルのインスタンス
+         */
+        T create(String channel);
+    }
+
+    /**
+     * チャネルが使用中 (クライアント接続中など) か否かを判定する callback
+     */
+    @FunctionalInterface
+    public interface InUseCheck<T> {
+        /**
+         * @param instance チャネルのインスタンス
+         * @return 使用中の場合 true 使用中のチャネルは破棄されない
+         */
+        boolean isInUse(T instance);
+    }
+
+    /**
+     * チャネル破棄時に呼び出される callback
+     */
+    @FunctionalInterface
+    public interface EvictionListener<T> {
+        /**
+         * @param channel チャネル名
+         * @param instance 破棄されたチャネルのインスタンス
+         */
+        void onEvicted(String channel, T instance);
+    }
+
+    private static final class Entry<T> {
+        final T instance;
+        volatile long lastAccess;
+
+        Entry(T instance) {
+            this.instance = instance;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<T>> channels = new ConcurrentHashMap<>();
+    private final ChannelFactory<T> factory;
+    private final InUseCheck<T> inUse;
+    private final EvictionListener<T> evictionListener;
+    private final long idleTimeout;
+
+    /** 破棄判定用スレッド */
+    private ScheduledExecutorService evictor = null;
+
+    // statistics
+    private final AtomicLong createdChannels = new AtomicLong();
+    private final AtomicLong evictedChannels = new AtomicLong();
+
+    /**
+     * @param factory チャネルのインスタンスを生成する callback notnull
+     * @param in_use チャネルが使用中か否かを判定する callback notnull
+     * @param eviction_listener チャネル破棄時の callback null 時は通知しない
+     * @param idle_timeout 使用中でないチャネルを破棄するまでの時間 1 ms 以上
+     * @param unit idle_timeout の単位 notnull
+     * @throws IllegalArgumentException idle_timeout が 1 ms 未満の場合
+     */
+    public ChannelRegistry(ChannelFactory<T> factory, InUseCheck<T> in_use, EvictionListener<T> eviction_listener,
+            long idle_timeout, TimeUnit unit) {
+        Objects.requireNonNull(factory, "factory should not be null");
+        Objects.requireNonNull(in_use, "in_use should not be null");
+        Objects.requireNonNull(unit, "unit should not be null");
+        if (unit.toMillis(idle_timeout) <= 0)
+            throw new IllegalArgumentException("idle_timeout should be 1 ms or longer");
+
+        this.factory = factory;
+        this.inUse = in_use;
+        this.evictionListener = eviction_listener;
+        this.idleTimeout = unit.toMillis(idle_timeout);
+    }
+
+    /**
+     * @param channel チャネル名
+     * @return チャネル名として有効な場合 true
+     */
+    public static boolean isValidName(String channel) {
+        return channel != null && CHANNEL_NAME.matcher(channel).matches();
+    }
+
+    /**
+     * servlet の PathInfo (/{channel}) からチャネル名を取り出す
+     * @param path_info PathInfo
+     * @return チャネル名 チャネル名として無効な場合は null
+     */
+    public static String channelOf(String path_info) {
+        if (path_info == null || !path_info.startsWith("/"))
+            return null;
+        String channel = path_info.substring(1);
+        return isValidName(channel) ? channel : null;
+    }
+
+    /**
+     * チャネルのインスタンスを返す。存在しない場合は生成する。
+     * @param channel チャネル名
+     * @return チャネルのインスタンス
+     * @throws IllegalArgumentException チャネル名が無効な場合
+     */
+    public T get(String channel) {
+        if (!isValidName(channel))
+            throw new IllegalArgumentException("Invalid channel name : " + channel);
+
+        long now = System.currentTimeMillis();
+        return channels.compute(channel, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry<>(factory.create(k));
+                createdChannels.incrementAndGet();
+                logger.debug("Channel {} created", k);
+            }
+            entry.lastAccess = now;
+            return entry;
+        }).instance;
+    }
+
+    /**
+     * チャネルのインスタンスを返す。存在しない場合は生成しない。参照時刻は更新する。
+     * @param channel チャネル名
+     * @return チャネルのインスタンス 存在しない場合は null
+     */
+    public T lookup(String channel) {
+        if (channel == null)
+            return null;
+        long now = System.currentTimeMillis();
+        Entry<T> entry = channels.computeIfPresent(channel, (k, e) -> {
+            e.lastAccess = now;
+            return e;
+        });
+        return (entry == null) ? null : entry.instance;
+    }
+
+    /**
+     * チャネルのインスタンスを返す。存在しない場合は生成しない。参照時刻は更新しない。
+     * @param channel チャネル名
+     * @return チャネルのインスタンス 存在しない場合は null
+     */
+    public T peek(String channel) {
+        Entry<T> entry = (channel == null) ? null : channels.get(channel);
+        return (entry == null) ? null : entry.instance;
+    }
+
+    /**
+     * @return 存在するチャネル名
+     */
+    public Set<String> getChannels() {
+        return Collections.unmodifiableSet(channels.keySet());
+    }
+
+    /**
+     * @return 存在するチャネル数
+     */
+    public int getNumOfChannels() {
+        return channels.size();
+    }
+
+    /**
+     * @return 生成したチャネル数の累計
+     */
+    public long getNumOfCreatedChannels() {
+        return createdChannels.get();
+    }
+
+    /**
+     * @return 破棄したチャネル数の累計
+     */
+    public long getNumOfEvictedChannels() {
+        return evictedChannels.get();
+    }
+
+    /**
+     * 使用中でなく idle_timeout の間参照されていないチャネルを破棄する。
+     * @return 破棄したチャネル数
+     */
+    public int evictIdle() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, T>> evicted = new ArrayList<>();
+        for (String channel : channels.keySet()) {
+            channels.computeIfPresent(channel, (k, entry) -> {
+                if (idleTimeout <= now - entry.lastAccess && !inUse.isInUse(entry.instance)) {
+                    evicted.add(new AbstractMap.SimpleImmutableEntry<>(k, entry.instance));
+                    return null;
+                }
+                return entry;
+            });
+        }
+        for (Map.Entry<String, T> e : evicted) {
+            evictedChannels.incrementAndGet();
+            logger.debug("Channel {} evicted", e.getKey());
+            notifyEvicted(e.getKey(), e.getValue());
+        }
+        return evicted.size();
+    }
+
+    /**
+     * 全チャネルを破棄する。使用中のチャネルも破棄される。
+     */
+    public void clear() {
+        for (String channel : channels.keySet()) {
+            Entry<T> entry = channels.remove(channel);
+            if (entry != null) {
+                evictedChannels.incrementAndGet();
+                notifyEvicted(channel, entry.instance);
+            }
+        }
+    }
+
+    private void notifyEvicted(String channel, T instance) {
+        if (evictionListener == null)
+            return;
+        try {
+            evictionListener.onEvicted(channel, instance);
+        } catch (RuntimeException e) {
+            logger.error("Exception in EvictionListener", e);
+        }
+    }
+
+    /**
+     * 定期的な破棄判定を開始する。判定は idle_timeout の 1/2 (最短 1 秒) 毎に行う。開始済みの場合は何もしない。
+     */
+    public synchronized void start() {
+        if (evictor != null)
+            return;
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ChannelRegistry-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(() -> {
+            try {
+                evictIdle();
+            } catch (RuntimeException e) {
+                // 例外で scheduleWithFixedDelay が停止しないよう、ここで止める
+                logger.error("Failed to evict idle channels", e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定期的な破棄判定を停止し、全チャネルを破棄する。
+     */
+    public synchronized void stop() {
+        if (evictor != null) {
+            evictor.shutdown();
+            evictor = null;
+        }
+        clear();
+    }
+}
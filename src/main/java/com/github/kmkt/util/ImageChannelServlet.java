@@ -0,0 +1,107 @@
+package com.github.kmkt.util;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 複数チャネルのイメージを返す servlet
+ *
+ * <pre>
+ * "/path/*" にマップし、/path/{channel} への GET をチャネル毎の {@link ImageServlet} に振り分ける。
+ * チャネル毎のインスタンスは servlet として登録されず、{@link ChannelRegistry} で管理される。
+ * チャネルは pourFrame 時に生成され、long-poll の待機が無く idle_timeout の間参照されないと
+ * 保持しているイメージと共に破棄される。
+ * ?after= による long-poll には ServletHolder#setAsyncSupported(true) が必要。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class ImageChannelServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ChannelRegistry<ImageServlet> registry;
+
+    /**
+     * チャネル破棄までの時間を {@link ChannelRegistry#DEFAULT_IDLE_TIMEOUT} として生成する。
+     */
+    public ImageChannelServlet() {
+        this(ChannelRegistry.DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param idle_timeout 参照されないチャネルを破棄するまでの時間 1 ms 以上
+     * @param unit idle_timeout の単位 notnull
+     * @throws IllegalArgumentException idle_timeout が 1 ms 未満の場合
+     */
+    public ImageChannelServlet(long idle_timeout, TimeUnit unit) {
+        this.registry = new ChannelRegistry<>(
+                channel -> new ImageServlet(),
+                servlet -> 0 < servlet.getNumOfWaiters(),
+                null,
+                idle_timeout, unit);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        registry.start();
+    }
+
+    @Override
+    public void destroy() {
+        registry.stop();
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        // チャネルは pourFrame でのみ生成し、クライアントの要求では生成しない
+        String channel = ChannelRegistry.channelOf(req.getPathInfo());
+        ImageServlet servlet = registry.lookup(channel);
+        if (servlet == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel");
+            return;
+        }
+        servlet.service(req, resp);
+    }
+
+    /**
+     * チャネルにイメージデータを供給する。チャネルが存在しない場合は生成する。
+     * @param channel チャネル名
+     * @param image イメージデータ
+     * @param content_type Content-Type null あるいは空の場合は image/jpeg
+     * @throws IllegalArgumentException チャネル名が無効な場合
+     * @see ImageServlet#pourFrame(byte[], String)
+     */
+    public void pourFrame(String channel, byte[] image, String content_type) {
+        registry.get(channel).pourFrame(image, content_type);
+    }
+
+    /**
+     * @param channel チャネル名
+     * @return チャネルの servlet 存在しない場合は null
+     */
+    public ImageServlet getChannel(String channel) {
+        return registry.peek(channel);
+    }
+
+    /**
+     * @return 存在するチャネル名
+     */
+    public Set<String> getChannels() {
+        return registry.getChannels();
+    }
+
+    /**
+     * @return 存在するチャネル数
+     */
+    public int getNumOfChannels() {
+        return registry.getNumOfChannels();
+    }
+}
@@ -1,22 +1,53 @@
 package com.github.kmkt.util;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Image servlet
- * 
+ *
+ * <pre>
+ * pourFrame 毎に通番を振り、ETag (通番) と Last-Modified (pourFrame 時刻) を付けて返す。
+ * If-None-Match が一致する場合、あるいは If-None-Match が無く If-Modified-Since 以降に更新が無い場合は
+ * 304 Not Modified をボディ無しで返す。If-Modified-Since の判定は秒単位となる。
+ * 応答は Cache-Control: no-cache (再検証必須) とし、接続は keep-alive を許す。
+ *
+ * イメージとその属性は不変の {@link Snapshot} として 1 つの volatile 参照で公開するため、
+ * doGet はロックを取らずに一貫した組を読み出せる。
+ *
+ * ?after=seq を付けた GET は、通番 seq より新しいイメージが供給されるまで AsyncContext で応答を保留する (long-poll)。
+ * 待機中のリクエストは次の pourFrame でまとめて再ディスパッチされ、待機中にスレッドを占有しない。
+ * 既に新しいイメージがある場合、seq が現在の通番より大きい場合 (servlet の再起動など) は直ちに返す。
+ * タイムアウトした場合は 304 を返す。応答の X-Sequence ヘッダに返したイメージの通番が入る。
+ * long-poll には ServletHolder#setAsyncSupported(true) が必要で、無効な場合は待たずに返す。
+ *
+ * HEAD と単一範囲の Range: bytes= (206 Partial Content) に対応する。If-Range が現在のイメージと一致しない場合は全体を返す。
+ * {@link #pourFile(Path, String)} で与えたファイルはヒープに読み込まず memory-map し、
+ * 応答は Jetty の HttpOutput#sendContent で map した領域から直接送る。
+ * </pre>
+ *
  * License : MIT License
  */
 public class ImageServlet extends HttpServlet {
@@ -24,10 +55,64 @@ public class ImageServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory.getLogger(ImageServlet.class);
 
     private static final String CONTENT_TYPE = "image/jpeg";
+    /** イメージの通番を返すヘッダ */
+    public static final String SEQUENCE_HEADER = "X-Sequence";
+    /** 標準の long-poll タイムアウト (ms) */
+    public static final long DEFAULT_LONG_POLL_TIMEOUT = 30 * 1000;
+    /** long-poll の期限 (System.currentTimeMillis) を保持するリクエスト属性 */
+    private static final String DEADLINE_ATTRIBUTE = ImageServlet.class.getName() + ".deadline";
+    /** long-poll のタイムアウトを示すリクエスト属性 */
+    private static final String TIMEOUT_ATTRIBUTE = ImageServlet.class.getName() + ".timeout";
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
-    private volatile byte[] frame = null;
-    private volatile String contentType = "";
+    /** 再起動後の通番の重複で ETag が一致しないよう ETag に含めるインスタンス毎の値 */
+    private final String etagPrefix = "\"" + Long.toHexString(System.currentTimeMillis()) + "-";
+
+    /** 公開中のイメージ 更新は pourFrame でのみ行い、内容は変更しない */
+    private volatile Snapshot snapshot = new Snapshot(null, CONTENT_TYPE, 0, -1, null);
+    private final Object pourLock = new Object();
+
+    /** long-poll で次のイメージを待っているリクエスト queue から取り出した側が再ディスパッチする */
+    private final Queue<AsyncContext> waiters = new ConcurrentLinkedQueue<>();
+    private volatile long longPollTimeout = DEFAULT_LONG_POLL_TIMEOUT;
+
+    /**
+     * pourFrame で与えられたイメージと属性の不変の組
+     */
+    private static final class Snapshot {
+        /** 読み出し専用 position 0 送信時は duplicate して用いる */
+        final ByteBuffer image;
+        final String contentType;
+        final long sequence;
+        final long timestamp;
+        final String etag;
+
+        Snapshot(ByteBuffer image, String content_type, long sequence, long timestamp, String etag) {
+            this.image = image;
+            this.contentType = content_type;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.etag = etag;
+        }
+    }
+
+    // statistics
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong longPollTimeouts = new AtomicLong();
+
+    /**
+     * long-poll のタイムアウトを設定する。
+     * @param timeout タイムアウト 1 ms 以上
+     * @param unit timeout の単位 notnull
+     * @throws IllegalArgumentException timeout が 1 ms 未満の場合
+     */
+    public void setLongPollTimeout(long timeout, TimeUnit unit) {
+        Objects.requireNonNull(unit, "unit should not be null");
+        long millis = unit.toMillis(timeout);
+        if (millis <= 0)
+            throw new IllegalArgumentException("timeout should be 1 ms or longer");
+        this.longPollTimeout = millis;
+    }
 
     /**
      * イメージデータを供給する。
@@ -38,14 +123,53 @@ public class ImageServlet extends HttpServlet {
      * </pre>
      * 
      * @param image イメージデータ
+     * @param content_type Content-Type null あるいは空の場合は image/jpeg
      */
     public void pourFrame(byte[] image, String content_type) {
-        lock.writeLock().lock();
-        try {
-            this.frame = image;
-            this.contentType = content_type;
-        } finally {
-            lock.writeLock().unlock();
+        publish((image == null) ? null : ByteBuffer.wrap(image).asReadOnlyBuffer(), content_type);
+    }
+
+    /**
+     * ファイルのイメージを供給する。
+     *
+     * <pre>
+     * ファイルは読み出し専用で memory-map され、ヒープには読み込まれない。
+     * map した内容は次のイメージが供給され、送信中の応答が終わるまで参照される。
+     * その間にファイルを書き換えた場合の応答内容は不定となるため、更新時は別ファイルを与えること。
+     * </pre>
+     *
+     * @param file イメージファイル notnull 2GB 未満
+     * @param content_type Content-Type null あるいは空の場合は image/jpeg
+     * @throws IOException ファイルを開けない場合, 2GB 以上の場合
+     */
+    public void pourFile(Path file, String content_type) throws IOException {
+        Objects.requireNonNull(file, "file should not be null");
+        ByteBuffer mapped;
+        // map はチャネルを閉じた後も有効
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (Integer.MAX_VALUE < size)
+                throw new IOException("File is too large to map : " + file);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        publish(mapped.asReadOnlyBuffer(), content_type);
+    }
+
+    private void publish(ByteBuffer image, String content_type) {
+        if (content_type == null || content_type.isEmpty()) {
+            content_type = CONTENT_TYPE;
+        }
+        // 通番が前後しないよう、書き込み側のみ直列化する
+        synchronized (pourLock) {
+            long sequence = snapshot.sequence + 1;
+            snapshot = new Snapshot(image, content_type, sequence, System.currentTimeMillis(),
+                    etagPrefix + sequence + "\"");
+        }
+
+        // 待機中の long-poll を一斉に再ディスパッチする。応答の書き出しはコンテナのスレッドで行われる
+        AsyncContext waiter;
+        while ((waiter = waiters.poll()) != null) {
+            dispatch(waiter);
         }
     }
 
@@ -53,40 +177,283 @@ public class ImageServlet extends HttpServlet {
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
         logger.debug("doGet");
-        logger.info("Accept HTTP connection.");
+        serve(req, resp, false);
+    }
 
-        byte[] sending_frame = null;
-        String content_type = "";
-        lock.readLock().lock();
-        try {
-            sending_frame = frame;
-            content_type = contentType;
-        } finally {
-            lock.readLock().unlock();
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        logger.debug("doHead");
+        serve(req, resp, true);
+    }
+
+    /**
+     * GET, HEAD の応答を返す
+     * @param head HEAD の場合 true ボディを送らない
+     */
+    private void serve(HttpServletRequest req, HttpServletResponse resp, boolean head) throws IOException {
+        Snapshot current = snapshot;
+        boolean waiting = false;
+        String after = req.getParameter("after");
+        if (after != null) {
+            try {
+                waiting = (Long.parseLong(after) == current.sequence);
+            } catch (NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid after");
+                return;
+            }
+            // 再ディスパッチ時も、タイムアウト以外で新しいイメージが無い場合は待機を続ける
+            // (pourFrame が通番を更新した後、待機者を取り出す前に登録された場合)
+            if (waiting && req.getAttribute(TIMEOUT_ATTRIBUTE) == null && req.isAsyncSupported()) {
+                suspend(req);
+                return;
+            }
         }
 
-        if (sending_frame == null) {
+        if (current.image == null) {
             resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No image");
             return;
         }
-        if (content_type == null || content_type.isEmpty()) {
-            content_type = CONTENT_TYPE;
+
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("ETag", current.etag);
+        resp.setDateHeader("Last-Modified", current.timestamp);
+        resp.setHeader(SEQUENCE_HEADER, Long.toString(current.sequence));
+
+        if (waiting || isNotModified(req, current.etag, current.timestamp)) {
+            // waiting : long-poll のタイムアウト
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            notModified.incrementAndGet();
+            return;
         }
 
-        resp.setStatus(HttpServletResponse.SC_OK);
-        resp.setContentType(content_type);
-        resp.setContentLength(sending_frame.length);
-        resp.setHeader("Cache-Control", "no-store");
-        resp.setHeader("Connection", "Close");
+        int length = current.image.limit();
+        int start = 0;
+        int end = length - 1;
+        String range = req.getHeader("Range");
+        if (range != null && isIfRangeMatched(req, current)) {
+            int[] r = parseRange(range, length);
+            if (r == UNSATISFIABLE) {
+                resp.setHeader("Content-Range", "bytes */" + length);
+                resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (r != null) {
+                start = r[0];
+                end = r[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            } else {
+                resp.setStatus(HttpServletResponse.SC_OK);
+            }
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        resp.setContentType(current.contentType);
+        resp.setContentLength(end - start + 1);
+        if (head)
+            return;
 
-        OutputStream out = new BufferedOutputStream(resp.getOutputStream());
+        ByteBuffer body = current.image.duplicate();
+        body.position(start);
+        body.limit(end + 1);
         try {
-            out.write(sending_frame);
-            out.flush();
-            logger.trace("Send image : {} bytes", sending_frame.length);
+            write(resp, body);
+            sentFrames.incrementAndGet();
+            logger.trace("Send image : {} bytes", end - start + 1);
         } catch (IOException e) {
             // connection closed
-            logger.info("Close HTTP connection.");
+            logger.debug("Close HTTP connection.");
+        }
+    }
+
+    /**
+     * ボディを書き出す。Jetty の場合は sendContent で ByteBuffer から直接送り、
+     * map したファイルもヒープにコピーしない。
+     */
+    private static void write(HttpServletResponse resp, ByteBuffer body) throws IOException {
+        OutputStream out = resp.getOutputStream();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(body);
+        } else if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            Channels.newChannel(out).write(body);
+        }
+    }
+
+    /** 満たせない Range を示す parseRange の戻り値 */
+    private static final int[] UNSATISFIABLE = new int[0];
+
+    /**
+     * 単一範囲の Range: bytes= を解釈する
+     * @param range Range ヘッダの値
+     * @param length イメージのバイト長
+     * @return {開始位置, 終了位置 (含む)} 無視すべき場合 (不正な書式, 複数範囲) は null, 満たせない場合は UNSATISFIABLE
+     */
+    private static int[] parseRange(String range, int length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return null;
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // bytes=-n : 末尾 n バイト
+                long suffix = Long.parseLong(last);
+                if (suffix < 0)
+                    return null;
+                if (suffix == 0 || length == 0)
+                    return UNSATISFIABLE;
+                return new int[] { (int) Math.max(0, length - suffix), length - 1 };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start)
+                return null;
+            if (length <= start)
+                return UNSATISFIABLE;
+            return new int[] { (int) start, (int) Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * If-Range が無いか、現在のイメージと一致するか否かを判定する
+     * @return Range に従うべき場合 true
+     */
+    private static boolean isIfRangeMatched(HttpServletRequest req, Snapshot current) {
+        String if_range = req.getHeader("If-Range");
+        if (if_range == null)
+            return true;
+        if_range = if_range.trim();
+        if (if_range.startsWith("\"") || if_range.startsWith("W/"))
+            return if_range.equals(current.etag);   // 強い比較
+        try {
+            return req.getDateHeader("If-Range") / 1000 == current.timestamp / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
+
+    /**
+     * 次のイメージが供給されるまでリクエストを保留する
+     */
+    private void suspend(HttpServletRequest req) {
+        long now = System.currentTimeMillis();
+        Long deadline = (Long) req.getAttribute(DEADLINE_ATTRIBUTE);
+        if (deadline == null) {
+            deadline = now + longPollTimeout;
+            req.setAttribute(DEADLINE_ATTRIBUTE, deadline);
+        }
+
+        AsyncContext ctx = req.startAsync();
+        ctx.setTimeout(Math.max(1, deadline - now));
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (waiters.remove(ctx)) {
+                    longPollTimeouts.incrementAndGet();
+                    req.setAttribute(TIMEOUT_ATTRIBUTE, Boolean.TRUE);
+                    dispatch(ctx);
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                waiters.remove(ctx);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        waiters.add(ctx);
+
+        // 登録前に pourFrame が終わっていた場合の取りこぼしを防ぐ
+        if (snapshot.sequence != Long.parseLong(req.getParameter("after")) && waiters.remove(ctx)) {
+            dispatch(ctx);
+        }
+    }
+
+    private static void dispatch(AsyncContext ctx) {
+        try {
+            ctx.dispatch();
+        } catch (IllegalStateException e) {
+            // 既に完了・破棄されたリクエスト
+            logger.debug("Failed to dispatch a long-poll request : {}", e.toString());
+        }
+    }
+
+    /**
+     * 条件付き GET の判定を行う
+     * @return 304 を返すべき場合 true
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag, long last_modified) {
+        String if_none_match = req.getHeader("If-None-Match");
+        if (if_none_match != null) {
+            // If-None-Match がある場合は If-Modified-Since を無視する (RFC 7232 3.3)
+            for (String tag : if_none_match.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if ("*".equals(tag) || etag.equals(tag))
+                    return true;
+            }
+            return false;
+        }
+
+        long if_modified_since;
+        try {
+            if_modified_since = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;   // 日付として不正な場合は無視する
+        }
+        return 0 <= if_modified_since && last_modified / 1000 <= if_modified_since / 1000;
+    }
+
+    /**
+     * @return 直近に供給したイメージの通番 未供給の場合は 0
+     */
+    public long getSequence() {
+        return snapshot.sequence;
+    }
+
+    /**
+     * @return long-poll で次のイメージを待っているリクエスト数
+     */
+    public int getNumOfWaiters() {
+        return waiters.size();
+    }
+
+    /**
+     * @return long-poll がタイムアウトした回数
+     */
+    public long getNumOfLongPollTimeouts() {
+        return longPollTimeouts.get();
+    }
+
+    /**
+     * @return イメージを送信した応答数
+     */
+    public long getNumOfSentFrames() {
+        return sentFrames.get();
+    }
+
+    /**
+     * @return 304 Not Modified を返した応答数
+     */
+    public long getNumOfNotModified() {
+        return notModified.get();
+    }
 }
@@ -0,0 +1,372 @@
+package com.github.kmkt.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * シーク可能なファイル (FileChannel) を指定されたデリミタ(byte[])で分割する。
+ * <pre>
+ * 入力をチャンクに分割し、ForkJoinPool 上でチャンク毎に並列にデリミタ位置を探索する。
+ * チャンク境界をまたぐデリミタも検出される。
+ * 分割結果は {@link StreamSplitter} と同様に先頭部分を常に含み、末尾デリミタ以降が空の場合はそれを含まない。
+ * 分割結果は順序付きの Spliterator / Stream として取得できる。
+ * {@code
+ * try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+ *   ParallelStreamSplitter splitter = new ParallelStreamSplitter(ch, delimiter);
+ *   splitter.stream(true).forEach(part -> {
+ *     ByteBuffer b = part.read();
+ *     ...
+ *   });
+ * }
+ * }
+ * </pre>
+ * License : MIT License
+ */
+public class ParallelStreamSplitter {
+    /** 標準のチャンクサイズ (バイト) */
+    public static final int DEFAULT_CHUNK_SIZE = 4*1024*1024;
+
+    private final FileChannel channel;      // 元 FileChannel
+    private final byte[] delimiter;         // デリミタ
+    private final int[] skipTable = new int[256]; // デリミタに対応するQuickSearch用シフトテーブル
+    private final int chunkSize;            // 探索チャンクサイズ
+    private final ForkJoinPool pool;        // 探索用 pool
+
+    private long[] partOffsets = null;      // 分割後の各部分の先頭位置
+    private long[] partLengths = null;      // 分割後の各部分の長さ
+    private long[] delimiterPositions = null;   // デリミタ先頭位置
+
+    /**
+     * 元となる FileChannel とデリミタを与えてインスタンスを生成する。
+     * チャンクサイズは {@link #DEFAULT_CHUNK_SIZE}、探索には {@link ForkJoinPool#commonPool()} が用いられる。
+     * @param channel 元となる FileChannel notnull
+     * @param delimiter デリミタ notnull
+     * @throws NullPointerException channel, delimiter が null の場合
+     * @throws IllegalArgumentException delimiter が 0 byte の場合
+     */
+    public ParallelStreamSplitter(FileChannel channel, byte[] delimiter) {
+        this(channel, delimiter, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 元となる FileChannel とデリミタを与えてインスタンスを生成する。
+     * @param channel 元となる FileChannel notnull
+     * @param delimiter デリミタ notnull
+     * @param chunk_size 1タスクが探索するチャンクサイズ(バイト) delimiter.length 以上の大きさが必要
+     * @param pool 探索に用いる ForkJoinPool notnull
+     * @throws NullPointerException channel, delimiter, pool が null の場合
+     * @throws IllegalArgumentException delimiter が 0 byte の場合, chunk_size が delimiter サイズに対して小さすぎる場合
+     */
+    public ParallelStreamSplitter(FileChannel channel, byte[] delimiter, int chunk_size, ForkJoinPool pool) {
+        Objects.requireNonNull(channel, "channel should not be null");
+        Objects.requireNonNull(delimiter, "delimiter should not be null");
+        Objects.requireNonNull(pool, "pool should not be null");
+        if (delimiter.length == 0)
+            throw new IllegalArgumentException("delimiter should have 1 byte at least");
+        if (chunk_size < delimiter.length)
+            throw new IllegalArgumentException("chunk_size should be larger than delimiter size");
+
+        this.channel = channel;
+        this.delimiter = Arrays.copyOf(delimiter, delimiter.length);
+        this.chunkSize = chunk_size;
+        this.pool = pool;
+
+        // delimiter に対応する QuickSearch シフトテーブル作成
+        for (int i = 0; i < this.skipTable.length; i++) {
+            this.skipTable[i] = delimiter.length + 1;
+        }
+        for (int i = 0; i < delimiter.length; i++) {
+            this.skipTable[delimiter[i] & 0xff] = delimiter.length - i;
+        }
+    }
+
+    /**
+     * 分割された1部分を表す。
+     */
+    public class Part {
+        private final int index;
+        private final long offset;
+        private final long length;
+
+        private Part(int index, long offset, long length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return 先頭から数えた部分の番号 (0 origin)
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return 元ファイル内での部分の先頭位置 (バイト)
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return 部分の長さ (バイト)
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 部分の内容を読み込む。
+         * FileChannel の位置指定読み込みを用いるため、複数スレッドから同時に呼び出すことができる。
+         * @return 部分の内容を格納した ByteBuffer (position 0, limit 部分の長さ)
+         * @throws UncheckedIOException 読み込みに失敗した場合
+         * @throws IllegalStateException 部分の長さが Integer.MAX_VALUE を超える場合
+         */
+        public ByteBuffer read() {
+            if (Integer.MAX_VALUE < length)
+                throw new IllegalStateException("Part is too large to read into a ByteBuffer");
+
+            ByteBuffer buf = ByteBuffer.allocate((int) length);
+            try {
+                readFully(buf, offset);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * 全デリミタ位置を並列に探索し、分割位置を確定する。
+     * 2回目以降の呼び出しでは何もしない。
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public synchronized void index() throws IOException {
+        if (partOffsets != null)
+            return;
+
+        long size = channel.size();
+        long[] positions;
+        try {
+            positions = pool.invoke(new SearchTask(0, size, size));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // 重なったデリミタの除去 (逐次探索と同様にデリミタ直後から次を探す)
+        int count = 0;
+        long next_search = 0;
+        for (long pos : positions) {
+            if (pos < next_search)
+                continue;
+            positions[count++] = pos;
+            next_search = pos + delimiter.length;
+        }
+
+        // 分割位置の算出
+        // StreamSplitter と同様に先頭部分は常に返し、末尾デリミタ以降が空の場合は返さない
+        long last_start = (count == 0) ? 0 : positions[count - 1] + delimiter.length;
+        int parts = (0 < count && size <= last_start) ? count : count + 1;
+        long[] offsets = new long[parts];
+        long[] lengths = new long[parts];
+        long start = 0;
+        for (int i = 0; i < parts; i++) {
+            long end = (i < count) ? positions[i] : size;
+            offsets[i] = start;
+            lengths[i] = end - start;
+            start = end + delimiter.length;
+        }
+        delimiterPositions = Arrays.copyOf(positions, count);
+        partOffsets = offsets;
+        partLengths = lengths;
+    }
+
+    /**
+     * 分割後の部分数を取得する。
+     * @return 部分数
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public int getNumOfParts() throws IOException {
+        index();
+        return partOffsets.length;
+    }
+
+    /**
+     * 検出したデリミタの位置を取得する。
+     * @return デリミタ先頭位置の配列 (昇順)
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public long[] getDelimiterPositions() throws IOException {
+        index();
+        return Arrays.copyOf(delimiterPositions, delimiterPositions.length);
+    }
+
+    /**
+     * 分割された部分を順に返す Spliterator を取得する。
+     * @return ORDERED, SIZED, SUBSIZED, IMMUTABLE, NONNULL な Spliterator
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public Spliterator<Part> spliterator() throws IOException {
+        index();
+        return new PartSpliterator(0, partOffsets.length);
+    }
+
+    /**
+     * 分割された部分を順に返す Stream を取得する。
+     * @param parallel true の場合は並列 Stream を返す
+     * @return 分割された部分の Stream
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public Stream<Part> stream(boolean parallel) throws IOException {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * 部分の index 範囲 [origin, fence) を返す Spliterator
+     */
+    private class PartSpliterator implements Spliterator<Part> {
+        private int origin;
+        private final int fence;
+
+        PartSpliterator(int origin, int fence) {
+            this.origin = origin;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Part> action) {
+            if (fence <= origin)
+                return false;
+            int i = origin++;
+            action.accept(new Part(i, partOffsets[i], partLengths[i]));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Part> action) {
+            for (int i = origin; i < fence; i++) {
+                action.accept(new Part(i, partOffsets[i], partLengths[i]));
+            }
+            origin = fence;
+        }
+
+        @Override
+        public Spliterator<Part> trySplit() {
+            int mid = (origin + fence) >>> 1;
+            if (mid <= origin)
+                return null;
+            Spliterator<Part> prefix = new PartSpliterator(origin, mid);
+            origin = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - origin;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+    }
+
+    /**
+     * [start, end) から始まるデリミタを探索するタスク
+     * 範囲が chunkSize を超える場合は2分割して並列に探索する
+     */
+    private class SearchTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final long start;
+        private final long end;
+        private final long size;
+
+        SearchTask(long start, long end, long size) {
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (end - start <= chunkSize) {
+                try {
+                    return searchChunk(start, end, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            long mid = start + (end - start) / 2;
+            SearchTask left = new SearchTask(start, mid, size);
+            SearchTask right = new SearchTask(mid, end, size);
+            left.fork();
+            long[] r = right.compute();
+            long[] l = left.join();
+
+            long[] result = Arrays.copyOf(l, l.length + r.length);
+            System.arraycopy(r, 0, result, l.length, r.length);
+            return result;
+        }
+    }
+
+    /**
+     * [start, end) から始まるデリミタを全て探索する。
+     * チャンク境界をまたぐデリミタを検出するため、end から delimiter.length - 1 バイト余分に読み込む。
+     * 重なったデリミタも全て返すため、呼び出し側で除去すること。
+     * @return デリミタ先頭位置の配列 (昇順)
+     */
+    private long[] searchChunk(long start, long end, long size) throws IOException {
+        int dlen = delimiter.length;
+        long read_end = Math.min(size, end + dlen - 1);
+        int len = (int) (read_end - start);
+        if (len < dlen)
+            return new long[0];
+
+        // QuickSearch のシフト参照用に 1 バイト余分に確保する
+        byte[] buf = new byte[len + 1];
+        readFully(ByteBuffer.wrap(buf, 0, len), start);
+
+        long[] found = new long[16];
+        int count = 0;
+        int limit = len - dlen;
+        for (int i = 0; i <= limit;) {
+            int j = 0;
+            while (j < dlen && buf[i + j] == delimiter[j]) {
+                j++;
+            }
+            if (j == dlen) {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = start + i;
+                i++;
+            } else {
+                i += skipTable[buf[i + dlen] & 0xff];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * FileChannel の位置指定読み込みで buf を満たす
+     */
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of file at " + position);
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.kmkt.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.github.kmkt.util.mjpeg.JpegCodec;
+
+/**
+ * JPEG フレームをタイルに分割し、前フレームから変化したタイルのみを JPEG 化したメッセージを生成するクラス
+ *
+ * <pre>
+ * フレームをデコードした画素からタイル毎に xxHash64 を計算し、前フレームと異なるタイルのみを再エンコードする。
+ * デコード後のハッシュ計算・タイルのエンコードはプール上で並列に行う。
+ *
+ * メッセージ形式 (ビッグエンディアン)
+ *   type      1 byte  : TYPE_KEYFRAME あるいは TYPE_DELTA
+ *   sequence  4 byte  : フレーム通番
+ *   width     2 byte  : フレームの幅
+ *   height    2 byte  : フレームの高さ
+ *   count     2 byte  : タイル数
+ *   count 回繰り返し
+ *     x, y, w, h  各 2 byte : タイルの位置とサイズ
+ *     length      4 byte   : JPEG データ長
+ *     jpeg        length byte
+ * キーフレームはフレーム全体を 1 タイルとし、元の JPEG をそのまま格納する。
+ *
+ * 直前のフレームに対する差分は符号化時に生成する。それ以前のフレームに対する差分は
+ * {@link Frame#getDelta(Frame)} で生成でき、受信側毎に実際に受け取ったフレームとの差分を送れる。
+ * タイルの JPEG はフレーム毎に一度だけエンコードされ、差分間で共有される。
+ *
+ * {@link #encode(byte[])}, {@link #reset()} はスレッドセーフではない。{@link Frame} はスレッドセーフ。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class TiledFrameEncoder {
+    /** キーフレーム */
+    public static final byte TYPE_KEYFRAME = 1;
+    /** 変化したタイルのみ */
+    public static final byte TYPE_DELTA = 2;
+
+    private static final int HEADER_SIZE = 11;
+    private static final int TILE_HEADER_SIZE = 12;
+
+    private final int tileSize;
+    private final float quality;
+    private final ExecutorService pool;
+
+    private int sequence = -1;
+    private int width = 0;
+    private int height = 0;
+    private long[] tileHashes = null;
+
+    /**
+     * フレームの符号化結果
+     */
+    public class Frame {
+        private final int frameSequence;
+        private final int frameWidth;
+        private final int frameHeight;
+        private final int columns;
+        private final long[] hashes;
+        private final ByteBuffer keyframe;
+        private ByteBuffer delta = null;
+        private int changedTiles = -1;
+        /** タイルの切り出し元 {@link #releaseImage()} 後は null */
+        private BufferedImage image;
+        /** エンコード済みのタイル */
+        private final byte[][] tileJpegs;
+
+        Frame(int sequence, BufferedImage image, int columns, long[] hashes, ByteBuffer keyframe) {
+            this.frameSequence = sequence;
+            this.frameWidth = image.getWidth();
+            this.frameHeight = image.getHeight();
+            this.columns = columns;
+            this.hashes = hashes;
+            this.keyframe = keyframe;
+            this.image = image;
+            this.tileJpegs = new byte[hashes.length][];
+        }
+
+        /**
+         * @return キーフレームメッセージ (読み出し専用)
+         */
+        public ByteBuffer getKeyframe() {
+            return keyframe.duplicate();
+        }
+
+        /**
+         * @return 前フレームからの差分メッセージ (読み出し専用) 変化が無い場合は null
+         * 前フレームとサイズが異なる場合など差分を作れない場合も null で {@link #isDeltaAvailable()} が false
+         */
+        public ByteBuffer getDelta() {
+            return (delta == null) ? null : delta.duplicate();
+        }
+
+        /**
+         * @return 前フレームからの差分が有効な場合 true
+         */
+        public boolean isDeltaAvailable() {
+            return 0 <= changedTiles;
+        }
+
+        /**
+         * @param base 差分の基準とするフレーム
+         * @return base からの差分を生成できる場合 true
+         * base が null, 別の TiledFrameEncoder で符号化したフレーム, サイズが異なるフレームの場合は false
+         */
+        public boolean isDeltaAvailable(Frame base) {
+            return base != null && base.encoder() == encoder()
+                    && base.frameWidth == frameWidth && base.frameHeight == frameHeight;
+        }
+
+        /**
+         * base からの差分メッセージを返す。
+         * base は受信側が最後に受け取ったフレームなど、このフレームより前に同じ TiledFrameEncoder で符号化したフレーム。
+         * 必要なタイルはこのフレームで未エンコードの場合のみエンコードする。
+         * @param base 差分の基準とするフレーム
+         * @return base からの差分メッセージ (読み出し専用) 変化が無い場合は null
+         * @throws IllegalArgumentException {@link #isDeltaAvailable(Frame)} が false の場合
+         * @throws IllegalStateException エンコードが必要なタイルがあるが {@link #releaseImage()} 済みの場合
+         * @throws IOException タイルのエンコードに失敗した場合
+         * @throws InterruptedException
+         */
+        public ByteBuffer getDelta(Frame base) throws IOException, InterruptedException {
+            if (!isDeltaAvailable(base))
+                throw new IllegalArgumentException("delta from base is not available");
+            if (base.frameSequence == frameSequence - 1 && 0 <= changedTiles)
+                return getDelta();  // 符号化時に生成済み
+
+            List<Integer> changed = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != base.hashes[i])
+                    changed.add(i);
+            }
+            if (changed.isEmpty())
+                return null;
+            return buildDelta(changed).asReadOnlyBuffer();
+        }
+
+        /**
+         * タイルの切り出し元の画像を解放する。以降は生成済みの差分と、タイルの追加エンコードが不要な差分のみ取得できる。
+         * 基準フレームとして保持し続けるフレームのメモリ使用量を抑えるために用いる。
+         */
+        public synchronized void releaseImage() {
+            image = null;
+        }
+
+        /**
+         * changed のタイルからなる差分メッセージを生成する
+         */
+        private ByteBuffer buildDelta(List<Integer> changed) throws IOException, InterruptedException {
+            List<byte[]> tile_jpegs = encodeTiles(changed);
+            int size = HEADER_SIZE;
+            for (byte[] b : tile_jpegs) {
+                size += TILE_HEADER_SIZE + b.length;
+            }
+
+            ByteBuffer msg = ByteBuffer.allocate(size);
+            putHeader(msg, TYPE_DELTA, frameSequence, frameWidth, frameHeight, changed.size());
+            for (int n = 0; n < changed.size(); n++) {
+                int i = changed.get(n);
+                int x = (i % columns) * tileSize;
+                int y = (i / columns) * tileSize;
+                putTile(msg, x, y, Math.min(tileSize, frameWidth - x), Math.min(tileSize, frameHeight - y), tile_jpegs.get(n));
+            }
+            msg.flip();
+            return msg;
+        }
+
+        /**
+         * タイルを並列にエンコードする。エンコード済みのタイルは再利用する。
+         */
+        private synchronized List<byte[]> encodeTiles(List<Integer> tiles) throws IOException, InterruptedException {
+            List<Future<byte[]>> encoded = new ArrayList<>(tiles.size());
+            for (int i : tiles) {
+                if (tileJpegs[i] != null) {
+                    encoded.add(null);
+                    continue;
+                }
+                if (image == null)
+                    throw new IllegalStateException("image is already released");
+                BufferedImage tile = tileOf(image, i % columns, i / columns);
+                encoded.add(pool.submit(() -> JpegCodec.encode(tile, quality)));
+            }
+            List<byte[]> result = new ArrayList<>(tiles.size());
+            for (int n = 0; n < tiles.size(); n++) {
+                int i = tiles.get(n);
+                if (encoded.get(n) != null)
+                    tileJpegs[i] = get(encoded.get(n));
+                result.add(tileJpegs[i]);
+            }
+            return result;
+        }
+
+        private TiledFrameEncoder encoder() {
+            return TiledFrameEncoder.this;
+        }
+
+        /**
+         * @return 変化したタイル数 差分が無効な場合は -1
+         */
+        public int getNumOfChangedTiles() {
+            return changedTiles;
+        }
+
+        /**
+         * @return タイル総数
+         */
+        public int getNumOfTiles() {
+            return hashes.length;
+        }
+    }
+
+    /**
+     * @param tile_size タイルの一辺 (pixel) 8 以上
+     * @param quality タイルの JPEG 品質 0.0 - 1.0
+     * @param pool ハッシュ計算・エンコードを行う ExecutorService notnull
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    public TiledFrameEncoder(int tile_size, float quality, ExecutorService pool) {
+        if (tile_size < 8)
+            throw new IllegalArgumentException("tile_size should be 8 or larger");
+        if (quality < 0.0f || 1.0f < quality)
+            throw new IllegalArgumentException("quality should be in [0.0, 1.0]");
+        Objects.requireNonNull(pool, "pool should not be null");
+
+        this.tileSize = tile_size;
+        this.quality = quality;
+        this.pool = pool;
+    }
+
+    /**
+     * 次のフレームを符号化する。
+     * @param jpeg JPEG フレームデータ notnull
+     * @return 符号化結果
+     * @throws IOException JPEG のデコード・エンコードに失敗した場合
+     * @throws InterruptedException
+     */
+    public Frame encode(byte[] jpeg) throws IOException, InterruptedException {
+        Objects.requireNonNull(jpeg, "jpeg should not be null");
+
+        BufferedImage image = toBGR(JpegCodec.decode(jpeg, 0, jpeg.length));
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int columns = (w + tileSize - 1) / tileSize;
+        int rows = (h + tileSize - 1) / tileSize;
+        int tiles = columns * rows;
+        sequence++;
+
+        ByteBuffer keyframe = ByteBuffer.allocate(HEADER_SIZE + TILE_HEADER_SIZE + jpeg.length);
+        putHeader(keyframe, TYPE_KEYFRAME, sequence, w, h, 1);
+        putTile(keyframe, 0, 0, w, h, jpeg);
+        keyframe.flip();
+
+        long[] hashes = hashTiles(image, columns, rows);
+        boolean comparable = (tileHashes != null && w == width && h == height);
+        long[] previous = tileHashes;
+        tileHashes = hashes;
+        width = w;
+        height = h;
+        Frame frame = new Frame(sequence, image, columns, hashes, keyframe.asReadOnlyBuffer());
+        if (!comparable)
+            return frame;
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < tiles; i++) {
+            if (hashes[i] != previous[i])
+                changed.add(i);
+        }
+        frame.changedTiles = changed.size();
+        if (!changed.isEmpty()) {
+            frame.delta = frame.buildDelta(changed).asReadOnlyBuffer();
+        }
+        return frame;
+    }
+
+    /**
+     * 次のフレームを差分無しとする (キーフレームを送った場合と同様に状態を初期化する)
+     */
+    public void reset() {
+        tileHashes = null;
+    }
+
+    private static void putHeader(ByteBuffer buf, byte type, int sequence, int w, int h, int count) {
+        buf.put(type);
+        buf.putInt(sequence);
+        buf.putShort((short) w);
+        buf.putShort((short) h);
+        buf.putShort((short) count);
+    }
+
+    private static void putTile(ByteBuffer buf, int x, int y, int w, int h, byte[] jpeg) {
+        buf.putShort((short) x);
+        buf.putShort((short) y);
+        buf.putShort((short) w);
+        buf.putShort((short) h);
+        buf.putInt(jpeg.length);
+        buf.put(jpeg);
+    }
+
+    /**
+     * タイル毎のハッシュをタイル行単位で並列に計算する
+     */
+    private long[] hashTiles(BufferedImage image, int columns, int rows) throws IOException, InterruptedException {
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int stride = w * 3;
+        long[] hashes = new long[columns * rows];
+
+        List<Future<?>> bands = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            int row = r;
+            bands.add(pool.submit(() -> {
+                int y0 = row * tileSize;
+                int y1 = Math.min(h, y0 + tileSize);
+                for (int c = 0; c < columns; c++) {
+                    int x0 = c * tileSize;
+                    int len = (Math.min(w, x0 + tileSize) - x0) * 3;
+                    long hash = 0;
+                    for (int y = y0; y < y1; y++) {
+                        hash = XXHash64.hash(data, y * stride + x0 * 3, len, hash);
+                    }
+                    hashes[row * columns + c] = hash;
+                }
+            }));
+        }
+        for (Future<?> f : bands) {
+            get(f);
+        }
+        return hashes;
+    }
+
+    private BufferedImage tileOf(BufferedImage image, int column, int row) {
+        int x = column * tileSize;
+        int y = row * tileSize;
+        return image.getSubimage(x, y, Math.min(tileSize, image.getWidth() - x), Math.min(tileSize, image.getHeight() - y));
+    }
+
+    private static <T> T get(Future<T> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 画素配列を直接参照できる TYPE_3BYTE_BGR に変換する
+     */
+    private static BufferedImage toBGR(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+            return image;
+        BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = bgr.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return bgr;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.kmkt.util;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 複数チャネルのイメージを WebSocket で連続送信する servlet
+ *
+ * <pre>
+ * "/path/*" にマップし、/path/{channel} への接続をチャネル毎の {@link WSImageServlet} に振り分ける。
+ * チャネル毎のインスタンスは servlet として登録されず、{@link ChannelRegistry} で管理される。
+ * {@link #pourFrame(String, byte[])} のフレームはそのチャネルのセッションにのみ送られる。
+ * チャネルは pourFrame 時に生成され、セッションが無く idle_timeout の間参照されないと破棄される。
+ * 各セッションの制御コマンドは {@link WSImageServlet} と同じ。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class WSImageChannelServlet extends WebSocketServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(WSImageChannelServlet.class);
+
+    private final transient ChannelRegistry<WSImageServlet> registry;
+
+    /**
+     * セッション毎の送信中フレーム数上限を {@link WSImageServlet#DEFAULT_MAX_IN_FLIGHT}、
+     * チャネル破棄までの時間を {@link ChannelRegistry#DEFAULT_IDLE_TIMEOUT} として生成する。
+     */
+    public WSImageChannelServlet() {
+        this(WSImageServlet.DEFAULT_MAX_IN_FLIGHT, ChannelRegistry.DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param max_in_flight セッション毎の送信中フレーム数上限 1 以上
+     * @param idle_timeout セッションの無いチャネルを破棄するまでの時間 1 ms 以上
+     * @param unit idle_timeout の単位 notnull
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    public WSImageChannelServlet(int max_in_flight, long idle_timeout, TimeUnit unit) {
+        if (max_in_flight <= 0)
+            throw new IllegalArgumentException("max_in_flight must be positive");
+        this.registry = new ChannelRegistry<>(
+                channel -> new WSImageServlet(max_in_flight),
+                servlet -> 0 < servlet.getNumOfClients(),
+                (channel, servlet) -> servlet.close(),     // init されていないため destroy は呼べない
+                idle_timeout, unit);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        registry.start();
+    }
+
+    @Override
+    public void destroy() {
+        registry.stop();
+        super.destroy();
+    }
+
+    @Override
+    public void configure(WebSocketServletFactory factory) {
+        factory.setCreator((req, resp) -> {
+            // チャネルは pourFrame でのみ生成し、接続では生成しない
+            String channel = ChannelRegistry.channelOf(req.getHttpServletRequest().getPathInfo());
+            WSImageServlet servlet = registry.lookup(channel);
+            if (servlet == null) {
+                try {
+                    resp.sendError(404, "No such channel");
+                } catch (IOException e) {
+                    logger.debug("Failed to send error : {}", e.toString());
+                }
+                return null;
+            }
+            return servlet.newWebSocket();
+        });
+    }
+
+    /**
+     * チャネルに JPEG フレームデータを供給する。チャネルが存在しない場合は生成する。
+     * frame は送信が終わるまで参照されるため、呼び出し後に内容を変更しないこと。
+     * @param channel チャネル名
+     * @param frame JPEG フレームデータ
+     * @throws IllegalArgumentException チャネル名が無効な場合
+     * @see WSImageServlet#pourFrame(byte[])
+     */
+    public void pourFrame(String channel, byte[] frame) {
+        registry.get(channel).pourFrame(frame);
+    }
+
+    /**
+     * @param channel チャネル名
+     * @return チャネルの servlet 存在しない場合は null
+     */
+    public WSImageServlet getChannel(String channel) {
+        return registry.peek(channel);
+    }
+
+    /**
+     * @return 存在するチャネル名
+     */
+    public Set<String> getChannels() {
+        return registry.getChannels();
+    }
+
+    /**
+     * @return 存在するチャネル数
+     */
+    public int getNumOfChannels() {
+        return registry.getNumOfChannels();
+    }
+}
@@ -2,11 +2,27 @@ package com.github.kmkt.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.io.FrameFlusher;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
@@ -15,13 +31,178 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * WebSocket 経由でイメージを連続送信する servlet
+ *
+ * <pre>
+ * {@link #pourFrame(byte[])} で与えたフレームは 1 つの読み出し専用 ByteBuffer で全セッションに共有され、
+ * セッション毎には duplicate (位置情報のみの複製) が渡されるため、ペイロードはコピーされない。
+ * batch 有効時は各セッションを BatchMode.ON とし、pourFrame 毎に送信をまとめて flush する。
+ * Jetty 9.3 の RemoteEndpoint.flush() はブロックするため、flush() が内部で送る FLUSH_FRAME を
+ * 非同期に送って flush し、完了は callback で受け取る。遅いクライアントの flush が他のセッションを待たせることは無い。
+ * Jetty の実装以外の RemoteEndpoint の場合のみ、flush を専用スレッドプールで行う。
+ * いずれの場合も flush 中のセッションに対する次の flush は省略し、そのセッションへの送信は flush 完了まで破棄する。
+ *
+ * クライアントはテキストメッセージで以下の制御を行える。
+ *   ready [n] : n フレーム (省略時 1) の受信クレジットを与える。
+ *               最初の ready 以降、クレジットが無い間はフレームを送らない (クレジット制)。
+ *               ready を送らないクライアントには従来通り全フレームを送る。
+ *               ready 0 はクレジットを与えずにクレジット制に切り替え、次の ready まで送信を止める。
+ *   fps x     : 最大フレームレートを x とする。0 で無制限
+ *   pause     : フレームの送信を停止する
+ *   resume    : フレームの送信を再開する
+ *   tiles     : タイルモードで受信する ({@link #setTileMode} で有効化されている場合のみ)
+ *   full      : JPEG フレームをそのまま受信する (初期状態)
+ * 送らなかったフレームは破棄され、後から送られることは無い。
+ *
+ * タイルモードのセッションには {@link TiledFrameEncoder} のメッセージを送る。
+ * タイルの符号化と送信は専用スレッドで行い、pourFrame はブロックしない。
+ * 符号化中に与えられたフレームは最新のもののみを次に符号化し、それ以外は破棄する。
+ * セッション毎に最後に送ったフレームを基準フレームとし、基準フレームから変化したタイルのみを送る。
+ * クレジット・fps 制限・pause・送信中のため送らなかったフレームは基準フレームを変えないため、
+ * 間引かれたセッションにも実際に受け取ったフレームからの差分が送られる。同じ基準フレームのセッションは差分を共有する。
+ * 接続直後・キーフレーム間隔の経過時・送信に失敗した場合はキーフレームを送る。変化が無いフレームは何も送らない。
+ * 参照クライアントは src/test/resources/wsimage_tiles.html
+ * </pre>
+ *
+ * License : MIT License
+ */
 public class WSImageServlet extends WebSocketServlet {
     
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(WSImageServlet.class);
 
+    /** 標準のセッション毎の送信中フレーム数上限 */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
     private final Set<WebSocketCallback> connectedWebSockets = new CopyOnWriteArraySet<WebSocketCallback>();
+    /** セッション毎の送信中フレーム数上限 */
+    private final int maxInFlight;
+    /** batch 送信の有無と非同期 flush できない RemoteEndpoint 用の flush スレッド batch 無効時は null */
+    private final ExecutorService flushPool;
+
+    // statistics
+    private final AtomicLong totalSentFrames = new AtomicLong();
+    private final AtomicLong totalDropFrames = new AtomicLong();
+    private final AtomicLong totalSkippedFrames = new AtomicLong();
+    private final AtomicLong totalKeyframes = new AtomicLong();
+    private final AtomicLong totalDeltaFrames = new AtomicLong();
+
+    /** タイルモードの符号化 未設定時は null */
+    private volatile TiledFrameEncoder tileEncoder = null;
+    /** タイル符号化用プール */
+    private ExecutorService tilePool = null;
+    /** タイル符号化・タイルモードのセッションへの送信を行うスレッド */
+    private volatile ExecutorService tileDispatcher = null;
+    /** タイル符号化待ちの最新フレーム */
+    private final AtomicReference<byte[]> pendingTileFrame = new AtomicReference<>();
+    /** タイルモードのキーフレーム間隔 (ns) */
+    private volatile long keyframeIntervalNanos = 0;
+
+    /** ready で一度に与えられるクレジットの上限 */
+    public static final int MAX_CREDITS = 1000;
+
+    /**
+     * セッション毎の送信中フレーム数上限を DEFAULT_MAX_IN_FLIGHT として生成する。
+     */
+    public WSImageServlet() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param max_in_flight セッション毎の送信中フレーム数上限 1 以上
+     * @throws IllegalArgumentException max_in_flight が 0 以下の場合
+     */
+    public WSImageServlet(int max_in_flight) {
+        this(max_in_flight, 0);
+    }
+
+    /**
+     * @param max_in_flight セッション毎の送信中フレーム数上限 1 以上
+     * @param flush_threads batch 送信の flush を行うスレッド数 0 の場合は batch 送信を行わない
+     * @throws IllegalArgumentException max_in_flight が 0 以下, flush_threads が負の場合
+     */
+    public WSImageServlet(int max_in_flight, int flush_threads) {
+        if (max_in_flight <= 0)
+            throw new IllegalArgumentException("max_in_flight must be positive");
+        if (flush_threads < 0)
+            throw new IllegalArgumentException("flush_threads should not be negative");
+        this.maxInFlight = max_in_flight;
+        if (0 < flush_threads) {
+            this.flushPool = Executors.newFixedThreadPool(flush_threads, r -> {
+                Thread t = new Thread(r, "WSImageServlet-flush");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.flushPool = null;
+        }
+    }
+
+    /**
+     * タイルモードを有効にする。クライアントは tiles コマンドでタイルモードに切り替える。
+     * 一度だけ設定できる。
+     *
+     * @param tile_size タイルの一辺 (pixel) 8 以上
+     * @param quality タイルの JPEG 品質 0.0 - 1.0
+     * @param keyframe_interval キーフレームの送信間隔 0 以下の場合は定期的なキーフレームを送らない
+     * @param unit keyframe_interval の単位 notnull
+     * @param threads デコード・エンコードを行うスレッド数 1 以上
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     * @throws IllegalStateException 設定済みの場合
+     */
+    public synchronized void setTileMode(int tile_size, float quality, long keyframe_interval, TimeUnit unit, int threads) {
+        Objects.requireNonNull(unit, "unit should not be null");
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        if (tileEncoder != null)
+            throw new IllegalStateException("Tile mode is already set");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "WSImageServlet-tile");
+            t.setDaemon(true);
+            return t;
+        });
+        TiledFrameEncoder encoder;
+        try {
+            encoder = new TiledFrameEncoder(tile_size, quality, pool);
+        } catch (IllegalArgumentException e) {
+            pool.shutdown();
+            throw e;
+        }
+        this.tilePool = pool;
+        this.keyframeIntervalNanos = Math.max(0, unit.toNanos(keyframe_interval));
+        this.tileDispatcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "WSImageServlet-tile-dispatch");
+            t.setDaemon(true);
+            return t;
+        });
+        // pourFrame は tileEncoder が設定されていれば tileDispatcher も設定済みとみなす
+        this.tileEncoder = encoder;
+    }
+
+    @Override
+    public void destroy() {
+        close();
+        super.destroy();
+    }
 
+    /**
+     * flush・タイル符号化のスレッドを停止する。
+     * servlet として init されずに用いられるインスタンス ({@link WSImageChannelServlet} のチャネル) は
+     * destroy ではなくこれで停止する。
+     */
+    void close() {
+        if (flushPool != null) {
+            flushPool.shutdown();
+        }
+        synchronized (this) {
+            if (tilePool != null) {
+                tileDispatcher.shutdown();
+                tilePool.shutdown();
+            }
+        }
+    }
 
     @Override
     public void configure(WebSocketServletFactory factory) {
@@ -30,11 +211,19 @@ public class WSImageServlet extends WebSocketServlet {
             @Override
             public Object createWebSocket(ServletUpgradeRequest req,
                     ServletUpgradeResponse resp) {
-                return new WebSocketCallback();
+                return newWebSocket();
             }
         });
     }
 
+    /**
+     * このインスタンスからフレームを受け取るセッションの WebSocket を生成する。
+     * {@link WSImageChannelServlet} がチャネル毎のインスタンスへ接続を振り分けるために用いる。
+     */
+    Object newWebSocket() {
+        return new WebSocketCallback();
+    }
+
     /**
      * JPEG フレームデータを供給する。
      * 
@@ -44,26 +233,183 @@ public class WSImageServlet extends WebSocketServlet {
      * クライアント接続時には pourFrame でフレームデータが与えられ次第、クライアントにその
      * フレームが送信される。
      * クライアントから接続されていない場合、与えられたフレームデータは破棄される。
+     * 送信は非同期に行われ、呼び出し元はブロックされない。
+     * 送信中のフレーム数が上限に達しているセッションには、そのフレームを送らずに破棄する。
+     * frame は送信・タイル分割が終わるまで参照されるため、呼び出し後に内容を変更しないこと。
      * </pre>
      * 
      * @param frame JPEG フレームデータ
      */
     public void pourFrame(byte[] frame) {
+        if (connectedWebSockets.isEmpty())
+            return;
+
+        ByteBuffer shared = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        boolean any_tiled = false;
         for (WebSocketCallback socket : connectedWebSockets) {
-            if (socket.isOpen()) {
-                socket.sendFrame(frame);
+            if (!socket.isOpen())
+                continue;
+            if (socket.tiled) {
+                any_tiled = true;
+            } else {
+                socket.sendFrame(shared.duplicate());
+            }
+        }
+        if (flushPool != null) {
+            for (WebSocketCallback socket : connectedWebSockets) {
+                socket.flush();
+            }
+        }
+        if (any_tiled) {
+            scheduleTiles(frame);
+        }
+    }
+
+    /**
+     * タイル符号化スレッドにフレームを渡す。符号化待ちのフレームがある場合は置き換える。
+     */
+    private void scheduleTiles(byte[] frame) {
+        if (tileEncoder == null)
+            return;
+        if (pendingTileFrame.getAndSet(frame) != null)
+            return;     // 符号化待ちのタスクが取り出す
+        try {
+            tileDispatcher.execute(this::dispatchTiles);
+        } catch (RejectedExecutionException e) {
+            pendingTileFrame.set(null);     // 停止済み
+        }
+    }
+
+    /**
+     * 最新のフレームをタイル符号化し、タイルモードのセッションに送る
+     */
+    private void dispatchTiles() {
+        byte[] jpeg = pendingTileFrame.getAndSet(null);
+        if (jpeg == null)
+            return;
+
+        TiledFrameEncoder encoder = tileEncoder;
+        TiledFrameEncoder.Frame frame;
+        try {
+            frame = encoder.encode(jpeg);
+        } catch (IOException e) {
+            logger.warn("Failed to encode tiles : {}", e.toString());
+            encoder.reset();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // 基準フレーム毎の差分 同じ基準フレームのセッションで共有する
+        Map<TiledFrameEncoder.Frame, ByteBuffer> deltas = new IdentityHashMap<>();
+        try {
+            for (WebSocketCallback socket : connectedWebSockets) {
+                if (socket.isOpen() && socket.tiled) {
+                    socket.sendTiles(frame, deltas);
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 基準フレームとして保持される間、デコード画像は不要
+            frame.releaseImage();
         }
+        if (flushPool != null) {
+            for (WebSocketCallback socket : connectedWebSockets) {
+                socket.flush();
+            }
+        }
+    }
+
+    /**
+     * @return 接続中のセッション数
+     */
+    public int getNumOfClients() {
+        return connectedWebSockets.size();
+    }
+
+    /**
+     * @return 全セッションへの送信完了フレーム数の累計
+     */
+    public long getNumOfSentFrames() {
+        return totalSentFrames.get();
+    }
+
+    /**
+     * @return 送信中のため破棄されたフレーム数の累計 (全セッション)
+     */
+    public long getNumOfDroppedFrames() {
+        return totalDropFrames.get();
     }
 
-    private class WebSocketCallback implements WebSocketListener {
+    /**
+     * @return クライアントの制御 (クレジット無し, fps 制限, pause) により送らなかったフレーム数の累計
+     */
+    public long getNumOfSkippedFrames() {
+        return totalSkippedFrames.get();
+    }
+
+    /**
+     * @return タイルモードで送ったキーフレーム数の累計
+     */
+    public long getNumOfKeyframes() {
+        return totalKeyframes.get();
+    }
+
+    /**
+     * @return タイルモードで送った差分フレーム数の累計
+     */
+    public long getNumOfDeltaFrames() {
+        return totalDeltaFrames.get();
+    }
+
+    private class WebSocketCallback implements WebSocketListener, WriteCallback {
         private Session session;
         private String remoteAddr;
+        /** 送信中のフレーム数 */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /** flush 待ちの送信の有無 */
+        private final AtomicBoolean unflushed = new AtomicBoolean();
+        /** flush 中か否か */
+        private final AtomicBoolean flushing = new AtomicBoolean();
+        /** 非同期 flush の完了 callback */
+        private final WriteCallback flushCallback = new WriteCallback() {
+            @Override
+            public void writeSuccess() {
+                flushing.set(false);
+            }
+
+            @Override
+            public void writeFailed(Throwable e) {
+                logger.debug("Failed to flush {} : {}", remoteAddr, e.toString());
+                flushing.set(false);
+            }
+        };
+        // statistics
+        private final AtomicLong sentFrames = new AtomicLong();
+        private final AtomicLong dropFrames = new AtomicLong();
+        private final AtomicLong failedFrames = new AtomicLong();
+        private final AtomicLong skippedFrames = new AtomicLong();
+        // クライアントからの制御
+        private volatile boolean creditMode = false;
+        private final AtomicInteger credits = new AtomicInteger();
+        private volatile boolean paused = false;
+        private volatile long minIntervalNanos = 0;
+        private long lastSentNanos = 0;
+        // タイルモード
+        private volatile boolean tiled = false;
+        /** 最後に送ったフレーム null の場合は次にキーフレームを送る */
+        private volatile TiledFrameEncoder.Frame tileBase = null;
+        private long lastKeyframeNanos = 0;
 
         @Override
         public void onWebSocketConnect(Session session) {
             this.session = session;
             this.remoteAddr = session.getRemote().toString();
+            if (flushPool != null) {
+                session.getRemote().setBatchMode(BatchMode.ON);
+            }
 
             connectedWebSockets.add(this);
             logger.debug("WebSocket connected from {}", remoteAddr);
@@ -73,7 +419,8 @@ public class WSImageServlet extends WebSocketServlet {
         @Override
         public void onWebSocketClose(int close_code, String msg) {
             connectedWebSockets.remove(this);
-            logger.debug("WebSocket closed from {}", remoteAddr);
+            logger.debug("WebSocket closed from {} [Frames Send: {}, Drop: {}, Skip: {}, Failed: {}]",
+                    remoteAddr, sentFrames.get(), dropFrames.get(), skippedFrames.get(), failedFrames.get());
         }
 
         @Override
@@ -85,6 +432,64 @@ public class WSImageServlet extends WebSocketServlet {
         @Override
         public void onWebSocketText(String msg) {
             logger.debug("Message {} from {}", msg, remoteAddr);
+
+            String[] tokens = msg.trim().split("\\s+");
+            try {
+                switch (tokens[0].toLowerCase()) {
+                case "ready": {
+                    int n = (1 < tokens.length) ? Integer.parseInt(tokens[1]) : 1;
+                    if (n < 0 || MAX_CREDITS < n)
+                        throw new IllegalArgumentException("credits is out of range");
+                    // クレジットの累積は MAX_CREDITS まで
+                    credits.accumulateAndGet(n, (c, add) -> Math.min(MAX_CREDITS, c + add));
+                    creditMode = true;
+                    break;
+                }
+                case "fps": {
+                    double fps = Double.parseDouble(tokens[1]);
+                    if (fps < 0 || Double.isNaN(fps))
+                        throw new IllegalArgumentException("fps should not be negative");
+                    minIntervalNanos = (fps == 0) ? 0 : (long) (1e9 / fps);
+                    break;
+                }
+                case "pause":
+                    paused = true;
+                    break;
+                case "resume":
+                    paused = false;
+                    break;
+                case "tiles":
+                    if (tileEncoder == null)
+                        throw new IllegalArgumentException("tile mode is not enabled");
+                    tileBase = null;
+                    tiled = true;
+                    break;
+                case "full":
+                    tiled = false;
+                    break;
+                default:
+                    logger.debug("Ignore unknown command '{}' from {}", msg, remoteAddr);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                logger.debug("Ignore invalid command '{}' from {} : {}", msg, remoteAddr, e.toString());
+            }
+        }
+
+        /**
+         * クライアントの制御に従いフレームを送れるか否かを判定し、送れる場合はクレジットを消費する
+         */
+        private boolean acceptFrame() {
+            if (paused)
+                return false;
+            long now = System.nanoTime();
+            if (0 < minIntervalNanos && lastSentNanos != 0 && now - lastSentNanos < minIntervalNanos)
+                return false;
+            if (creditMode) {
+                if (credits.getAndUpdate(c -> (0 < c) ? c - 1 : c) <= 0)
+                    return false;
+            }
+            lastSentNanos = now;
+            return true;
         }
 
         @Override
@@ -96,12 +501,122 @@ public class WSImageServlet extends WebSocketServlet {
             return session.isOpen();
         }
 
-        public void sendFrame(byte[] frame) {
+        /**
+         * フレームを送る
+         * @return 送信を開始した場合 true, 破棄した場合 false
+         */
+        public boolean sendFrame(ByteBuffer frame) {
+            // batch 時は aggregate された送信が即座に完了扱いとなるため、前回の flush 中も送信中とみなす
+            if (flushing.get()) {
+                dropFrames.incrementAndGet();
+                totalDropFrames.incrementAndGet();
+                return false;
+            }
+            if (maxInFlight < inFlight.incrementAndGet()) {
+                // 前のフレームを送信中 : このフレームは送らない
+                inFlight.decrementAndGet();
+                dropFrames.incrementAndGet();
+                totalDropFrames.incrementAndGet();
+                return false;
+            }
+            // クレジットは実際に送るフレームにのみ消費させる
+            if (!acceptFrame()) {
+                inFlight.decrementAndGet();
+                skippedFrames.incrementAndGet();
+                totalSkippedFrames.incrementAndGet();
+                return false;
+            }
+            unflushed.set(true);
+            session.getRemote().sendBytes(frame, this);
+            return true;
+        }
+
+        /**
+         * タイルモードのメッセージを送る。
+         * 基準フレーム (最後に送ったフレーム) からの差分を送り、送らなかった場合は基準フレームを変えない。
+         * @param frame 符号化結果
+         * @param deltas 基準フレーム毎の生成済みの差分 (変化無しの場合は null を格納)
+         * @throws InterruptedException
+         */
+        void sendTiles(TiledFrameEncoder.Frame frame, Map<TiledFrameEncoder.Frame, ByteBuffer> deltas)
+                throws InterruptedException {
+            long now = System.nanoTime();
+            TiledFrameEncoder.Frame base = tileBase;
+            boolean key = !frame.isDeltaAvailable(base)
+                    || (0 < keyframeIntervalNanos && keyframeIntervalNanos <= now - lastKeyframeNanos);
+            ByteBuffer msg;
+            if (key) {
+                msg = frame.getKeyframe();
+            } else {
+                if (!deltas.containsKey(base)) {
+                    try {
+                        deltas.put(base, frame.getDelta(base));
+                    } catch (IOException e) {
+                        logger.warn("Failed to encode tiles : {}", e.toString());
+                        return;
+                    }
+                }
+                ByteBuffer delta = deltas.get(base);
+                if (delta == null)
+                    return;     // 変化無し
+                msg = delta.duplicate();
+            }
+
+            // 送信失敗 (writeFailed) 時の tileBase = null を上書きしないよう、送信前に更新する
+            tileBase = frame;
+            if (!sendFrame(msg)) {
+                tileBase = base;
+                return;
+            }
+            if (key) {
+                lastKeyframeNanos = now;
+                totalKeyframes.incrementAndGet();
+            } else {
+                totalDeltaFrames.incrementAndGet();
+            }
+        }
+
+        /**
+         * batch されている送信を非同期に flush する。flush 中の場合は何もしない。
+         */
+        public void flush() {
+            if (!unflushed.get() || !flushing.compareAndSet(false, true))
+                return;
+            unflushed.set(false);
+            RemoteEndpoint remote = session.getRemote();
+            if (remote instanceof WebSocketRemoteEndpoint) {
+                // RemoteEndpoint.flush() と同じく FLUSH_FRAME を送るが、完了を待たない
+                ((WebSocketRemoteEndpoint) remote).uncheckedSendFrame(FrameFlusher.FLUSH_FRAME, flushCallback);
+                return;
+            }
             try {
-                session.getRemote().sendBytes(ByteBuffer.wrap(frame));
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
+                flushPool.execute(() -> {
+                    try {
+                        remote.flush();
+                    } catch (IOException e) {
+                        logger.debug("Failed to flush {} : {}", remoteAddr, e.toString());
+                    } finally {
+                        flushing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                flushing.set(false);    // 停止済み
             }
         }
+
+        @Override
+        public void writeSuccess() {
+            inFlight.decrementAndGet();
+            sentFrames.incrementAndGet();
+            totalSentFrames.incrementAndGet();
+        }
+
+        @Override
+        public void writeFailed(Throwable e) {
+            inFlight.decrementAndGet();
+            failedFrames.incrementAndGet();
+            tileBase = null;
+            logger.debug("Failed to send a frame to {} : {}", remoteAddr, e.toString());
+        }
     }
 }
@@ -0,0 +1,132 @@
+package com.github.kmkt.util;
+
+import java.util.Objects;
+
+/**
+ * xxHash64 (XXH64) ハッシュ関数
+ *
+ * <pre>
+ * 暗号学的ハッシュではない高速なハッシュ。フレームの同一性判定などに用いる。
+ * 結果はリファレンス実装 (リトルエンディアン読み出し) と一致する。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public final class XXHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XXHash64() {
+    }
+
+    /**
+     * b[off, off+len) のハッシュ値をシード 0 で計算する
+     * @param b データ notnull
+     * @param off 開始位置
+     * @param len データ長
+     * @return ハッシュ値
+     */
+    public static long hash(byte[] b, int off, int len) {
+        return hash(b, off, len, 0);
+    }
+
+    /**
+     * b[off, off+len) のハッシュ値を計算する
+     * @param b データ notnull
+     * @param off 開始位置
+     * @param len データ長
+     * @param seed シード
+     * @return ハッシュ値
+     * @throws NullPointerException b が null の場合
+     * @throws IllegalArgumentException 範囲が不正な場合
+     */
+    public static long hash(byte[] b, int off, int len, long seed) {
+        Objects.requireNonNull(b, "b should not be null");
+        if (off < 0 || len < 0 || b.length - len < off)
+            throw new IllegalArgumentException("off or len is out of range");
+
+        int p = off;
+        int end = off + len;
+        long h;
+
+        if (32 <= len) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, getLong(b, p));
+                v2 = round(v2, getLong(b, p + 8));
+                v3 = round(v3, getLong(b, p + 16));
+                v4 = round(v4, getLong(b, p + 24));
+                p += 32;
+            } while (p <= limit);
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+
+        h += len;
+
+        while (p + 8 <= end) {
+            h ^= round(0, getLong(b, p));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            p += 8;
+        }
+        if (p + 4 <= end) {
+            h ^= (getInt(b, p) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        while (p < end) {
+            h ^= (b[p] & 0xFFL) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            p++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF)
+                | (b[i + 1] & 0xFF) << 8
+                | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+}
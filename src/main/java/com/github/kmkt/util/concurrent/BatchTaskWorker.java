@@ -0,0 +1,30 @@
+package com.github.kmkt.util.concurrent;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 複数の引数をまとめて処理するタスク処理インタフェース
+ * TaskWorkerRunner#submitAll で投入された引数は、バッチ毎に doTasks で一括処理される
+ * 
+ * @param <T> 引数の型
+ * @param <R> 返り値の型
+ */
+public interface BatchTaskWorker<T, R> extends TaskWorker<T, R> {
+    /**
+     * taskreqs を処理して、taskreqs と同じ順・同じ数の返り値を返す
+     * 例外を投げた場合は、バッチ内の全タスクの例外となる
+     * @param taskreqs 引数のリスト 変更不可
+     * @return 返り値のリスト
+     * @throws Exception
+     */
+    List<R> doTasks(List<T> taskreqs) throws Exception;
+
+    /**
+     * T taskreq を 1 つのみのバッチとして処理して R を返す
+     */
+    @Override
+    default R doTask(T taskreq) throws Exception {
+        return doTasks(Collections.singletonList(taskreq)).get(0);
+    }
+}
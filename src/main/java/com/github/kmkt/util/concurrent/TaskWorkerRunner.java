@@ -1,17 +1,27 @@
 package com.github.kmkt.util.concurrent;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +30,23 @@ import org.slf4j.LoggerFactory;
  * submit により投入される引数（タスク）を TaskWorker で実装された処理実体により並列処理するクラス
  * ThreadPoolExecutor では runnable, callable を投入するが、TaskWorkerRunner では TaskWorker への
  * 引数を投入する
+ *
+ * 実行基盤は {@link Backend} で選択する。
+ * FIXED_THREAD_POOL は 1 つの LinkedBlockingQueue を全スレッドで共有する固定スレッドプール、
+ * FORK_JOIN は スレッド毎の queue と work-stealing により submit・取り出し時の競合が少ない ForkJoinPool で、
+ * 短いタスクを多数の core で大量に処理する場合に向く。
+ * いずれも並列数は maxparallels に制限され、TaskWorkerSupplier / TaskWorkerCollector, TaskCompleteListener の
+ * 呼び出しは同じ。ただし FORK_JOIN で TaskWorker が ForkJoinPool.ManagedBlocker 経由でブロックした場合は、
+ * ForkJoinPool の仕様により補償スレッドが追加されうる。
+ *
+ * 未実行タスクの queue は標準では上限が無い。{@link #setQueueCapacity(int, OverflowPolicy, long, TimeUnit, DropListener)}
+ * で上限を設定すると、上限に達した際の submit は {@link OverflowPolicy} に従い待機・拒否・最古タスクの破棄・
+ * 呼び出し元での実行のいずれかを行う。{@link #trySubmit(Object)} は policy によらず待機せずに投入を試みる。
+ *
+ * 多数の引数をまとめて投入する場合は {@link #submitAll(Collection)} を用いる。引数はバッチに分割され、
+ * 実行基盤への投入と TaskWorker の取得・返却はバッチ毎に 1 回となる。TaskWorker が {@link BatchTaskWorker} の場合は
+ * バッチを {@link BatchTaskWorker#doTasks(List)} で一括処理する。それ以外の TaskWorker では、各タスクは
+ * バッチ内の後続タスクを待たずに、処理を終えた時点で完了する。
  * 
  * License : MIT License
  * Copyright (c) 2015 NagasawaXien
@@ -30,8 +57,69 @@ import org.slf4j.LoggerFactory;
 public class TaskWorkerRunner<T, R> {
     private static final Logger logger = LoggerFactory.getLogger(TaskWorkerRunner.class);
 
+    /**
+     * タスクの実行基盤
+     */
+    public enum Backend {
+        /** 共有 queue の固定スレッドプール */
+        FIXED_THREAD_POOL,
+        /** work-stealing の ForkJoinPool */
+        FORK_JOIN,
+    }
+
+    /**
+     * 未実行タスク数が上限に達した際の submit の動作
+     */
+    public enum OverflowPolicy {
+        /** 空きができるまで待機する。タイムアウト時は RejectedExecutionException */
+        BLOCK,
+        /** RejectedExecutionException を投げる */
+        REJECT,
+        /** 最も古い未実行タスクを破棄して投入する。破棄したタスクの Future は cancel され、DropListener に通知される */
+        DROP_OLDEST,
+        /** submit の呼び出し元スレッドで処理する。この処理は maxparallels に数えない */
+        CALLER_RUNS,
+    }
+
+    /**
+     * OverflowPolicy.DROP_OLDEST により未実行タスクが破棄された際の callback
+     * @param <T> TaskWorker への引数の型
+     */
+    @FunctionalInterface
+    public interface DropListener<T> {
+        /**
+         * submit を呼び出したスレッドで呼び出される
+         * @param taskreq 破棄されたタスクの引数
+         */
+        void onDropped(T taskreq);
+    }
+
+    /**
+     * 未実行タスク数の上限設定
+     */
+    private static final class QueueLimit<T> {
+        final int capacity;
+        final OverflowPolicy policy;
+        final long timeoutNanos;
+        final DropListener<T> dropListener;
+        /** 未実行タスクの空き枠 */
+        final Semaphore slots;
+
+        QueueLimit(int capacity, OverflowPolicy policy, long timeout_nanos, DropListener<T> drop_listener) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.timeoutNanos = timeout_nanos;
+            this.dropListener = drop_listener;
+            this.slots = new Semaphore(capacity);
+        }
+    }
+
     /** タスク処理用 ThreadPool */
     protected final ExecutorService pool;
+    /** 実行基盤 */
+    protected final Backend backend;
+    /** FORK_JOIN 時の callback 用スレッド FIXED_THREAD_POOL 時は pool 内で callback するため null */
+    private final ExecutorService callbackThread;
     /** 処理スレッド数の最大 */
     protected int maximimParallel;
     /** タスク処理の実体 TaskWorker のサプライヤ・ファクトリ */
@@ -46,14 +134,68 @@ public class TaskWorkerRunner<T, R> {
     /** 処理中タスク数カウンタ */
     private AtomicInteger runningTasks = new AtomicInteger(0);
 
+    /** submitAll でバッチサイズを省略した場合の、処理スレッドあたりのバッチ数 */
+    private static final int BATCHES_PER_THREAD = 4;
+
+    /** 未実行タスク数の上限設定 上限無しの場合は null */
+    private volatile QueueLimit<T> queueLimit = null;
+
+    // statistics
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicLong droppedTasks = new AtomicLong();
+    private final AtomicLong callerRunsTasks = new AtomicLong();
+
+    /**
+     * 実行基盤に投入される単位 (単一タスクあるいはバッチ)
+     * @param <T> TaskWorker への引数の型
+     */
+    private interface QueuedTask<T> extends Runnable {
+        /**
+         * 確保している未実行タスクの枠を解放する 解放は 1 回のみ
+         */
+        void releaseSlot();
+
+        /**
+         * 実行基盤から取り除かれた未実行タスクを破棄する
+         * @return 破棄したタスクの引数 (cancel 済みのものを除く)
+         */
+        List<T> drop();
+
+        /**
+         * @return 未処理のタスクの引数
+         */
+        List<T> getTaskReqs();
+    }
+
+    /**
+     * タスクが確保している未実行タスクの枠
+     */
+    private static final class SlotHolder {
+        private final Semaphore slots;
+        private final int permits;
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        SlotHolder(Semaphore slots, int permits) {
+            this.slots = slots;
+            this.permits = permits;
+        }
+
+        void release() {
+            if (held.compareAndSet(true, false))
+                slots.release(permits);
+        }
+    }
+
     /**
      * 処理終了時に CallbackCaller に終了タスクを引き渡す FutureTask
      * TaskRunner 専用の内部クラス
      * 
      * @see java.util.concurrent.FutureTask
      */
-    protected class CallbackFutureTask extends FutureTask<R> {
+    protected class CallbackFutureTask extends FutureTask<R> implements QueuedTask<T> {
         private T req;  // TaskRunner が持つ TaskWorker への引数
+        private SlotHolder slot = null;     // 未実行タスクの枠を確保している場合の枠
+
         public CallbackFutureTask(TaskRunner runner) {
             super(runner);
             if (runner == null)
@@ -66,14 +208,279 @@ public class TaskWorkerRunner<T, R> {
             return req;
         }
 
+        /**
+         * 未実行タスクの枠を確保済みとする
+         */
+        void holdSlot(SlotHolder slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * 未実行タスクの枠を確保している場合は解放する 実行開始と完了 (cancel を含む) で呼ばれる
+         */
+        @Override
+        public void releaseSlot() {
+            if (slot != null)
+                slot.release();
+        }
+
+        @Override
+        public List<T> drop() {
+            tasks.decrementAndGet();    // 実行されないため、ここで数から除く
+            if (!cancel(false))         // done() で枠は解放される
+                return Collections.emptyList();
+            return Collections.singletonList(req);
+        }
+
+        @Override
+        public List<T> getTaskReqs() {
+            return Collections.singletonList(req);
+        }
+
+        @Override
+        public void run() {
+            releaseSlot();      // 実行開始で未実行ではなくなる
+            super.run();
+        }
+
         @Override
         protected void done() {
+            releaseSlot();
             // callback 有効時は CallbackCaller にリクエストと自身を登録する
             if (callbackCaller != null)
                 callbackCaller.registerFinishedTask(req, this);
         }
     }
 
+    /**
+     * submitAll で投入された個々のタスクの Future
+     * 完了時に CallbackCaller に終了タスクを引き渡す
+     */
+    private class BatchItemFuture extends SimpleFuture<R> {
+        private final T req;
+
+        BatchItemFuture(T req) {
+            this.req = req;
+        }
+
+        @Override
+        protected void done() {
+            if (callbackCaller != null)
+                callbackCaller.registerFinishedTask(req, this);
+        }
+    }
+
+    /**
+     * submitAll で投入された引数をまとめて処理するバッチ
+     * TaskWorker の取得と返却はバッチ毎に 1 回
+     */
+    private class BatchTask implements QueuedTask<T> {
+        private final List<BatchItemFuture> items;
+        private SlotHolder slot = null;     // 未実行タスクの枠を確保している場合の枠
+
+        BatchTask(List<BatchItemFuture> items) {
+            this.items = items;
+        }
+
+        int size() {
+            return items.size();
+        }
+
+        void holdSlot(SlotHolder slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void releaseSlot() {
+            if (slot != null)
+                slot.release();
+        }
+
+        @Override
+        public List<T> drop() {
+            releaseSlot();
+            tasks.addAndGet(-items.size());     // 実行されないため、ここで数から除く
+            List<T> dropped = new ArrayList<>(items.size());
+            for (BatchItemFuture item : items) {
+                if (!item.isDone()) {
+                    item.cancel(false);
+                    if (item.isCancelled())
+                        dropped.add(item.req);
+                }
+            }
+            return dropped;
+        }
+
+        @Override
+        public List<T> getTaskReqs() {
+            List<T> reqs = new ArrayList<>(items.size());
+            for (BatchItemFuture item : items) {
+                if (!item.isDone())
+                    reqs.add(item.req);
+            }
+            return reqs;
+        }
+
+        @Override
+        public void run() {
+            releaseSlot();      // 実行開始で未実行ではなくなる
+
+            List<BatchItemFuture> live = new ArrayList<>(items.size());    // cancel 済みを除いたもの
+            for (BatchItemFuture item : items) {
+                if (!item.isDone())
+                    live.add(item);
+            }
+            tasks.addAndGet(-(items.size() - live.size()));     // cancel 済みのものは実行しない
+            if (live.isEmpty())
+                return;
+
+            TaskWorker<T, R> worker = null;
+            Throwable error = null;
+            try {
+                worker = workerSupplier.get();    // TaskWorker 取得
+            } catch (Throwable e) {
+                error = e;
+            }
+            if (worker == null) {
+                tasks.addAndGet(-live.size());
+                for (BatchItemFuture item : live)
+                    item.setException((error != null) ? error
+                            : new TaskWorkerStartException("TaskWorkerSupplier returns null", item.req));
+                return;
+            }
+
+            if (worker instanceof BatchTaskWorker) {
+                runBatch((BatchTaskWorker<T, R>) worker, live);
+            } else {
+                try {
+                    for (BatchItemFuture item : live)
+                        runItem(worker, item);
+                } finally {
+                    if (workerCollector != null)
+                        workerCollector.collect(worker);
+                }
+            }
+        }
+
+        /**
+         * 1 タスクを処理し、単一タスクと同様にタスク数を減じた後に完了させる
+         * バッチ内の後続タスクの処理を待たずに完了させる
+         */
+        private void runItem(TaskWorker<T, R> worker, BatchItemFuture item) {
+            if (item.isDone()) {    // バッチの実行開始後に cancel された
+                tasks.decrementAndGet();
+                return;
+            }
+            R result = null;
+            Throwable error = null;
+            runningTasks.incrementAndGet();
+            try {
+                result = worker.doTask(item.req);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                runningTasks.decrementAndGet();
+                tasks.decrementAndGet();
+            }
+            if (error != null) {
+                item.setException(error);
+            } else {
+                item.set(result);
+            }
+        }
+
+        /**
+         * BatchTaskWorker でバッチを一括処理する
+         * 例外はバッチ内の全タスクの例外とする
+         */
+        private void runBatch(BatchTaskWorker<T, R> worker, List<BatchItemFuture> live) {
+            int n = live.size();
+            List<T> reqs = new ArrayList<>(n);
+            for (BatchItemFuture item : live)
+                reqs.add(item.req);
+
+            List<R> results = null;
+            Throwable error = null;
+            runningTasks.addAndGet(n);
+            try {
+                results = worker.doTasks(Collections.unmodifiableList(reqs));
+                if (results == null || results.size() != n)
+                    throw new IllegalStateException("BatchTaskWorker returns " + ((results == null) ? "null" : results.size() + " results")
+                            + " for " + n + " requests");
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                if (workerCollector != null)
+                    workerCollector.collect(worker);
+                runningTasks.addAndGet(-n);
+                tasks.addAndGet(-n);
+            }
+
+            // 単一タスクと同様に、タスク数を減じた後に完了させる
+            for (int i = 0; i < n; i++) {
+                if (error != null) {
+                    live.get(i).setException(error);
+                } else {
+                    live.get(i).set(results.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * CallbackFutureTask・BatchTask を ForkJoinPool で実行する ForkJoinTask
+     * shutdownNow 時に未実行のタスクを取り出せるよう、Runnable の adapt ではなくこのクラスで包む
+     */
+    private static class ForkJoinTaskHost extends ForkJoinTask<Void> {
+        private static final long serialVersionUID = 1L;
+        final Runnable task;
+
+        ForkJoinTaskHost(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+        }
+
+        @Override
+        protected boolean exec() {
+            task.run();     // 例外は Future 内で保持される
+            return true;
+        }
+    }
+
+    /**
+     * 未実行タスクを取り出せる ForkJoinPool
+     */
+    private static class DrainableForkJoinPool extends ForkJoinPool {
+        DrainableForkJoinPool(int parallelism) {
+            super(parallelism, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setDaemon(true);
+                return t;
+            }, null, true);     // asyncMode : 投入順 (FIFO) に処理する
+        }
+
+        /**
+         * @return 外部スレッドから投入された未実行タスクのいずれかの queue の先頭 無い場合は null
+         */
+        ForkJoinTask<?> pollOldest() {
+            return pollSubmission();
+        }
+
+        List<ForkJoinTask<?>> drain() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            drainTasksTo(tasks);
+            return tasks;
+        }
+    }
+
     /**
      * TaskWorker を呼び出す Callable wrapper
      */
@@ -230,12 +637,28 @@ public class TaskWorkerRunner<T, R> {
      * @param listener 処理終了時の callback null時は callback しない
      */
     public TaskWorkerRunner(int maxparallels, TaskWorkerSupplier<T, R> supplier, TaskWorkerCollector collector, TaskCompleteListener<T, R> listener) {
+        this(maxparallels, Backend.FIXED_THREAD_POOL, supplier, collector, listener);
+    }
+
+    /**
+     * 実行基盤を指定し、Future での処理完了待機と callback での処理完了通知をする TaskWorkerRunner
+     * 
+     * @param maxparallels 処理スレッド数の最大
+     * @param backend 実行基盤 notnull
+     * @param supplier タスク処理の実体 TaskWorker のサプライヤorファクトリ
+     * @param collector タスク処理が終了した TaskWorker の通知インタフェース
+     * @param listener 処理終了時の callback null時は callback しない
+     */
+    public TaskWorkerRunner(int maxparallels, Backend backend, TaskWorkerSupplier<T, R> supplier, TaskWorkerCollector collector, TaskCompleteListener<T, R> listener) {
         if (maxparallels <= 0)
             throw new IllegalArgumentException("maxparallels should be a positive integer");
+        if (backend == null)
+            throw new IllegalArgumentException("backend should not be null");
         if (supplier == null)
             throw new IllegalArgumentException("supplier should not be null");
 
         maximimParallel = maxparallels;
+        this.backend = backend;
         workerSupplier = supplier;
         workerCollector = collector;
         if (listener != null) {
@@ -244,34 +667,333 @@ public class TaskWorkerRunner<T, R> {
             callbackCaller = null;
         }
 
-        int threads = (callbackCaller == null) ? maxparallels : maxparallels + 1;   // callback 有効時は callback 用スレッドを確保する
-        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        ThreadFactory daemon = new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread t = new Thread(r);
                 t.setDaemon(true);
                 return t;
             }
-        });
+        };
+        if (backend == Backend.FORK_JOIN) {
+            pool = new DrainableForkJoinPool(maxparallels);
+            // callback でブロックし続けるスレッドは ForkJoinPool の外に置く
+            callbackThread = (callbackCaller == null) ? null : Executors.newSingleThreadExecutor(daemon);
+        } else {
+            int threads = (callbackCaller == null) ? maxparallels : maxparallels + 1;   // callback 有効時は callback 用スレッドを確保する
+            pool = Executors.newFixedThreadPool(threads, daemon);
+            callbackThread = null;
+        }
 
         // callback 有効時は callback 用スレッドを確保する
         if (callbackCaller != null) {
-            pool.execute(callbackCaller);
+            ((callbackThread != null) ? callbackThread : pool).execute(callbackCaller);
         }
     }
 
+    /**
+     * 未実行タスク数の上限を設定する。BLOCK では空きができるまで待機し続ける。
+     * @param capacity 未実行タスク数の上限 1 以上
+     * @param policy 上限に達した際の submit の動作 notnull
+     * @throws IllegalStateException 設定済みの場合
+     * @see #setQueueCapacity(int, OverflowPolicy, long, TimeUnit, DropListener)
+     */
+    public void setQueueCapacity(int capacity, OverflowPolicy policy) {
+        setQueueCapacity(capacity, policy, Long.MAX_VALUE, TimeUnit.NANOSECONDS, null);
+    }
+
+    /**
+     * 未実行タスク数の上限を設定する。最初の submit の前に 1 回のみ設定できる。
+     * 処理中のタスクは未実行タスク数に数えない。
+     * @param capacity 未実行タスク数の上限 1 以上
+     * @param policy 上限に達した際の submit の動作 notnull
+     * @param timeout BLOCK で待機する最大時間 0 以上 他の policy では無視する
+     * @param unit timeout の単位 notnull
+     * @param drop_listener DROP_OLDEST で破棄したタスクの通知先 null 時は通知しない
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     * @throws IllegalStateException 設定済みの場合
+     */
+    public synchronized void setQueueCapacity(int capacity, OverflowPolicy policy, long timeout, TimeUnit unit, DropListener<T> drop_listener) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity should be a positive integer");
+        if (policy == null)
+            throw new IllegalArgumentException("policy should not be null");
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout should not be negative");
+        if (unit == null)
+            throw new IllegalArgumentException("unit should not be null");
+        if (queueLimit != null)
+            throw new IllegalStateException("Queue capacity is already set");
+
+        queueLimit = new QueueLimit<T>(capacity, policy, unit.toNanos(timeout), drop_listener);
+    }
+
     /**
      * TaskWorkerRunner に処理対象の taskreq を送信する
+     * 未実行タスク数が上限に達している場合は OverflowPolicy に従う
      * @param taskreq TaskWorker に処理させる引数 nullable
      * @return タスクの保留完了を表すFuture
+     * @throws RejectedExecutionException REJECT で上限に達している場合、BLOCK で待機がタイムアウトあるいは割り込まれた場合、
+     *   シャットダウン後の場合
      */
     public Future<R> submit(T taskreq) {
-        FutureTask<R> taskhost = new CallbackFutureTask(new TaskRunner(taskreq));
+        QueueLimit<T> limit = queueLimit;
+        CallbackFutureTask taskhost = new CallbackFutureTask(new TaskRunner(taskreq));
+        if (limit == null) {
+            tasks.incrementAndGet();
+            execute(taskhost, 1);
+            return taskhost;
+        }
+
+        if (!acquireSlots(limit, 1)) {
+            tasks.incrementAndGet();
+            taskhost.run();     // CALLER_RUNS
+            return taskhost;
+        }
+        taskhost.holdSlot(new SlotHolder(limit.slots, 1));
+        tasks.incrementAndGet();
+        execute(taskhost, 1);
+        return taskhost;
+    }
+
+    /**
+     * 複数の taskreq をまとめて TaskWorkerRunner に送信する
+     * バッチサイズは taskreqs の数を処理スレッド数の 4 倍で分割した大きさとする
+     * @param taskreqs TaskWorker に処理させる引数 notnull 要素は nullable
+     * @return taskreqs の順の、各タスクの保留完了を表すFuture
+     * @throws RejectedExecutionException submit と同様 それ以前のバッチは投入済みとなる
+     * @see #submitAll(Collection, int)
+     */
+    public List<Future<R>> submitAll(Collection<? extends T> taskreqs) {
+        if (taskreqs == null)
+            throw new IllegalArgumentException("taskreqs should not be null");
+
+        int batches = maximimParallel * BATCHES_PER_THREAD;
+        return submitAll(taskreqs, Math.max(1, (taskreqs.size() + batches - 1) / batches));
+    }
+
+    /**
+     * 複数の taskreq を batch_size 毎のバッチに分割して TaskWorkerRunner に送信する
+     * 各バッチは 1 つの処理スレッドで、1 回取得した TaskWorker により順に処理される。
+     * TaskWorker が BatchTaskWorker の場合は doTasks で一括処理する。それ以外の場合は各タスクを処理を終えた時点で完了させる。
+     * 未実行タスク数の上限を設定している場合、バッチは引数の数だけ枠を使い、batch_size は上限以下に切り詰められる。
+     * 上限に達した際はバッチ単位で OverflowPolicy に従う。
+     * @param taskreqs TaskWorker に処理させる引数 notnull 要素は nullable
+     * @param batch_size バッチあたりの引数の数 1 以上
+     * @return taskreqs の順の、各タスクの保留完了を表すFuture
+     * @throws RejectedExecutionException submit と同様 それ以前のバッチは投入済みとなる
+     */
+    public List<Future<R>> submitAll(Collection<? extends T> taskreqs, int batch_size) {
+        if (taskreqs == null)
+            throw new IllegalArgumentException("taskreqs should not be null");
+        if (batch_size <= 0)
+            throw new IllegalArgumentException("batch_size should be a positive integer");
+
+        QueueLimit<T> limit = queueLimit;
+        if (limit != null)
+            batch_size = Math.min(batch_size, limit.capacity);
+
+        List<Future<R>> futures = new ArrayList<>(taskreqs.size());
+        List<BatchItemFuture> items = new ArrayList<>(Math.min(batch_size, taskreqs.size()));
+        for (T taskreq : taskreqs) {
+            BatchItemFuture f = new BatchItemFuture(taskreq);
+            items.add(f);
+            futures.add(f);
+            if (items.size() == batch_size) {
+                submitBatch(new BatchTask(items), limit);
+                items = new ArrayList<>(batch_size);
+            }
+        }
+        if (!items.isEmpty())
+            submitBatch(new BatchTask(items), limit);
+        return futures;
+    }
+
+    /**
+     * バッチを実行基盤に投入する
+     */
+    private void submitBatch(BatchTask batch, QueueLimit<T> limit) {
+        int n = batch.size();
+        if (limit != null) {
+            if (!acquireSlots(limit, n)) {
+                tasks.addAndGet(n);
+                batch.run();    // CALLER_RUNS
+                return;
+            }
+            batch.holdSlot(new SlotHolder(limit.slots, n));
+        }
+        tasks.addAndGet(n);
+        execute(batch, n);
+    }
+
+    /**
+     * 未実行タスクの枠を permits 個確保する 確保できない場合は OverflowPolicy に従う
+     * @return 確保した場合は true CALLER_RUNS により呼び出し元で処理する場合は false
+     * @throws RejectedExecutionException REJECT で上限に達している場合、BLOCK で待機がタイムアウトあるいは割り込まれた場合
+     */
+    private boolean acquireSlots(QueueLimit<T> limit, int permits) {
+        if (limit.slots.tryAcquire(permits))
+            return true;
+
+        switch (limit.policy) {
+        case BLOCK:
+            try {
+                if (!limit.slots.tryAcquire(permits, limit.timeoutNanos, TimeUnit.NANOSECONDS)) {
+                    rejectedTasks.addAndGet(permits);
+                    throw new RejectedExecutionException("Timed out waiting for a queue slot");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedTasks.addAndGet(permits);
+                throw new RejectedExecutionException("Interrupted while waiting for a queue slot", e);
+            }
+            return true;
+        case REJECT:
+            rejectedTasks.addAndGet(permits);
+            throw new RejectedExecutionException("Queue is full (capacity " + limit.capacity + ")");
+        case DROP_OLDEST:
+            dropOldestAndAcquire(limit, permits);
+            return true;
+        case CALLER_RUNS:
+        default:
+            if (pool.isShutdown())
+                throw new RejectedExecutionException("TaskWorkerRunner is shut down");
+            callerRunsTasks.addAndGet(permits);
+            return false;
+        }
+    }
+
+    /**
+     * 未実行タスク数が上限に達していない場合のみ、TaskWorkerRunner に処理対象の taskreq を送信する
+     * OverflowPolicy によらず、待機・破棄・呼び出し元での実行はしない
+     * @param taskreq TaskWorker に処理させる引数 nullable
+     * @return タスクの保留完了を表すFuture 上限に達している場合は null
+     * @throws RejectedExecutionException シャットダウン後の場合
+     */
+    public Future<R> trySubmit(T taskreq) {
+        QueueLimit<T> limit = queueLimit;
+        if (limit != null && !limit.slots.tryAcquire())
+            return null;
+
+        CallbackFutureTask taskhost = new CallbackFutureTask(new TaskRunner(taskreq));
+        if (limit != null)
+            taskhost.holdSlot(new SlotHolder(limit.slots, 1));
         tasks.incrementAndGet();
-        pool.execute(taskhost);
+        execute(taskhost, 1);
         return taskhost;
     }
 
+    /**
+     * 最も古い未実行タスクを破棄して未実行タスクの枠を permits 個確保する
+     */
+    private void dropOldestAndAcquire(QueueLimit<T> limit, int permits) {
+        while (true) {
+            QueuedTask<T> oldest = pollOldest();
+            if (oldest != null) {
+                for (T dropped : oldest.drop()) {  // drop により枠が解放される
+                    droppedTasks.incrementAndGet();
+                    if (limit.dropListener != null) {
+                        try {
+                            limit.dropListener.onDropped(dropped);
+                        } catch (RuntimeException e) {
+                            logger.error("Unexpedted exception in DropListener callback", e);
+                        }
+                    }
+                }
+            }
+            // 他の submit に枠を取られた場合や、破棄できるタスクが実行基盤に渡る前の場合は繰り返す
+            try {
+                if (limit.slots.tryAcquire(permits, 1, TimeUnit.MILLISECONDS))
+                    return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedTasks.incrementAndGet();
+                throw new RejectedExecutionException("Interrupted while waiting for a queue slot", e);
+            }
+            if (pool.isShutdown())
+                throw new RejectedExecutionException("TaskWorkerRunner is shut down");
+        }
+    }
+
+    /**
+     * 実行基盤から最も古い未実行タスクを取り出す
+     * FORK_JOIN では投入スレッド毎の queue のいずれかの先頭となり、厳密に最古とは限らない
+     * @return 未実行タスク 無い場合は null
+     */
+    @SuppressWarnings("unchecked")
+    private QueuedTask<T> pollOldest() {
+        Runnable task;
+        if (backend == Backend.FORK_JOIN) {
+            ForkJoinTask<?> t = ((DrainableForkJoinPool) pool).pollOldest();
+            task = (t instanceof ForkJoinTaskHost) ? ((ForkJoinTaskHost) t).task : null;
+        } else {
+            task = ((ThreadPoolExecutor) pool).getQueue().poll();
+        }
+        return (task instanceof QueuedTask) ? (QueuedTask<T>) task : null;
+    }
+
+    /**
+     * 実行基盤にタスクを投入する
+     * @param count task に含まれるタスク数
+     */
+    private void execute(QueuedTask<T> task, int count) {
+        try {
+            if (backend == Backend.FORK_JOIN) {
+                ((ForkJoinPool) pool).execute(new ForkJoinTaskHost(task));
+            } else {
+                pool.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            task.releaseSlot();
+            tasks.addAndGet(-count);
+            throw e;
+        }
+    }
+
+    /**
+     * @return 実行基盤
+     */
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return 未実行タスク数の上限 上限無しの場合は Integer.MAX_VALUE
+     */
+    public int getQueueCapacity() {
+        QueueLimit<T> limit = queueLimit;
+        return (limit == null) ? Integer.MAX_VALUE : limit.capacity;
+    }
+
+    /**
+     * @return 上限に達した際の submit の動作 上限無しの場合は null
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        QueueLimit<T> limit = queueLimit;
+        return (limit == null) ? null : limit.policy;
+    }
+
+    /**
+     * @return 上限により拒否されたタスク数の累計 (BLOCK のタイムアウトを含む)
+     */
+    public long getNumOfRejectedTask() {
+        return rejectedTasks.get();
+    }
+
+    /**
+     * @return DROP_OLDEST により破棄されたタスク数の累計
+     */
+    public long getNumOfDroppedTask() {
+        return droppedTasks.get();
+    }
+
+    /**
+     * @return CALLER_RUNS により呼び出し元で処理されたタスク数の累計
+     */
+    public long getNumOfCallerRunsTask() {
+        return callerRunsTasks.get();
+    }
+
     /** 
      * 未実行のタスク数を取得する
      * @return
@@ -302,6 +1024,8 @@ public class TaskWorkerRunner<T, R> {
      */
     public void shutdown() {
         pool.shutdown();
+        if (callbackThread != null)
+            callbackThread.shutdown();
     }
 
     /**
@@ -311,11 +1035,26 @@ public class TaskWorkerRunner<T, R> {
      */
     @SuppressWarnings("unchecked")
     public List<T> shutdownNow() {
-        List<Runnable> remain = pool.shutdownNow();
+        List<Runnable> remain;
+        if (backend == Backend.FORK_JOIN) {
+            // ForkJoinPool.shutdownNow は未実行タスクを返さないため、先に取り出す
+            DrainableForkJoinPool fj = (DrainableForkJoinPool) pool;
+            fj.shutdown();
+            remain = new ArrayList<>();
+            for (ForkJoinTask<?> t : fj.drain()) {
+                if (t instanceof ForkJoinTaskHost)
+                    remain.add(((ForkJoinTaskHost) t).task);
+            }
+            fj.shutdownNow();
+            if (callbackThread != null)
+                callbackThread.shutdownNow();
+        } else {
+            remain = pool.shutdownNow();
+        }
         List<T> result = new ArrayList<T>(remain.size());
         for (Runnable r : remain) {
-            if (!(r instanceof CallbackCaller)) {
-                result.add(((CallbackFutureTask) r).getTaskReq());
+            if (r instanceof QueuedTask) {
+                result.addAll(((QueuedTask<T>) r).getTaskReqs());
             }
         }
         return result;
@@ -331,6 +1070,11 @@ public class TaskWorkerRunner<T, R> {
      * @throws InterruptedException
      */
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        return pool.awaitTermination(timeout, unit);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!pool.awaitTermination(timeout, unit))
+            return false;
+        if (callbackThread != null)
+            return callbackThread.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return true;
     }
 }
@@ -0,0 +1,113 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link FrameBufferPool} から貸し出される参照カウント付きフレームバッファ
+ * <pre>
+ * 貸し出し時の参照カウントは 1 で、{@link #release()} により 0 になるとプールに返却される。
+ * 他スレッドに引き渡すなど、受け取った処理の終了後もバッファを保持する場合は {@link #retain()} し、
+ * 不要になった時点で {@link #release()} すること。
+ * 返却後のバッファの内容は他のフレームで上書きされる。
+ * </pre>
+ * License : MIT License
+ */
+public final class FrameBuffer {
+    private final FrameBufferPool pool;     // 返却先 null の場合はプール対象外
+    private final byte[] array;
+    private int length = 0;
+    private final AtomicInteger refCount = new AtomicInteger(0);
+
+    FrameBuffer(FrameBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.array = new byte[capacity];
+    }
+
+    /**
+     * プールに属さないバッファとして既存の配列を包む。
+     * @param array フレームデータ notnull
+     * @return 参照カウント 1 の FrameBuffer
+     */
+    public static FrameBuffer wrap(byte[] array) {
+        FrameBuffer buf = new FrameBuffer(null, array);
+        buf.length = array.length;
+        buf.refCount.set(1);
+        return buf;
+    }
+
+    private FrameBuffer(FrameBufferPool pool, byte[] array) {
+        this.pool = pool;
+        this.array = array;
+    }
+
+    /**
+     * バッファ本体を取得する。
+     * フレームデータは先頭から {@link #getLength()} バイトに格納されている。
+     * @return バッファ本体
+     */
+    public byte[] getArray() {
+        return array;
+    }
+
+    /**
+     * @return フレームデータ長 (バイト)
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return バッファ容量 (バイト)
+     */
+    public int getCapacity() {
+        return array.length;
+    }
+
+    void setLength(int length) {
+        if (length < 0 || array.length < length)
+            throw new IllegalArgumentException("length is out of range");
+        this.length = length;
+    }
+
+    /**
+     * 参照カウントを 1 増やす。
+     * @return this
+     * @throws IllegalStateException 既に返却済みの場合
+     */
+    public FrameBuffer retain() {
+        while (true) {
+            int c = refCount.get();
+            if (c <= 0)
+                throw new IllegalStateException("FrameBuffer is already released");
+            if (refCount.compareAndSet(c, c + 1))
+                return this;
+        }
+    }
+
+    /**
+     * 参照カウントを 1 減らし、0 になった場合はプールに返却する。
+     * @throws IllegalStateException 既に返却済みの場合
+     */
+    public void release() {
+        int c = refCount.decrementAndGet();
+        if (c < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("FrameBuffer is already released");
+        }
+        if (c == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * @return 現在の参照カウント
+     */
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    void acquired(int length) {
+        this.length = length;
+        refCount.set(1);
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * サイズクラス別に {@link FrameBuffer} を再利用するプール
+ * <pre>
+ * サイズクラスは minimum_size から maximum_size までの 2^n バイトで、要求サイズを収められる最小のクラスから貸し出す。
+ * maximum_size を超える要求にはプール対象外のバッファを都度生成する。
+ * 各サイズクラスで保持するバッファ数は buffers_per_class までで、それを超えて返却されたバッファは破棄される。
+ * スレッドセーフ
+ * </pre>
+ * License : MIT License
+ */
+public class FrameBufferPool {
+    /** 標準の最小サイズクラス (バイト) */
+    public static final int DEFAULT_MINIMUM_SIZE = 16*1024;
+    /** 標準の最大サイズクラス (バイト) */
+    public static final int DEFAULT_MAXIMUM_SIZE = 32*1024*1024;
+    /** 標準のサイズクラス毎の保持バッファ数 */
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 16;
+
+    private final int minShift;
+    private final int maxShift;
+    private final BlockingQueue<FrameBuffer>[] classes;
+
+    // statistics
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * 標準設定でプールを生成する。
+     */
+    public FrameBufferPool() {
+        this(DEFAULT_MINIMUM_SIZE, DEFAULT_MAXIMUM_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * プールを生成する。
+     * @param minimum_size 最小サイズクラス (バイト) 2^n サイズに切り上げられる
+     * @param maximum_size 最大サイズクラス (バイト) 2^n サイズに切り上げられる
+     * @param buffers_per_class サイズクラス毎の保持バッファ数 1 以上
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FrameBufferPool(int minimum_size, int maximum_size, int buffers_per_class) {
+        if (minimum_size <= 0)
+            throw new IllegalArgumentException("minimum_size must be positive");
+        if (maximum_size < minimum_size || (1 << 30) < maximum_size)
+            throw new IllegalArgumentException("maximum_size is out of range");
+        if (buffers_per_class <= 0)
+            throw new IllegalArgumentException("buffers_per_class must be positive");
+
+        this.minShift = shiftFor(minimum_size);
+        this.maxShift = shiftFor(maximum_size);
+        this.classes = new BlockingQueue[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(buffers_per_class);
+        }
+    }
+
+    /**
+     * size バイト以上の容量を持つバッファを借りる。
+     * @param size フレームデータ長 (バイト) 借りたバッファの {@link FrameBuffer#getLength()} となる
+     * @return 参照カウント 1 の FrameBuffer
+     * @throws IllegalArgumentException size が負の場合
+     */
+    public FrameBuffer acquire(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size must be zero or positive");
+
+        int shift = shiftFor(Math.max(size, 1));
+        FrameBuffer buf;
+        if (maxShift < shift) {
+            // プール対象外
+            buf = new FrameBuffer(null, size);
+            allocated.incrementAndGet();
+        } else {
+            shift = Math.max(shift, minShift);
+            buf = classes[shift - minShift].poll();
+            if (buf == null) {
+                buf = new FrameBuffer(this, 1 << shift);
+                allocated.incrementAndGet();
+            } else {
+                reused.incrementAndGet();
+            }
+        }
+        buf.acquired(size);
+        return buf;
+    }
+
+    /**
+     * 参照カウントが 0 になったバッファを返却する
+     */
+    void recycle(FrameBuffer buf) {
+        int shift = shiftFor(buf.getCapacity());
+        if (shift < minShift || maxShift < shift || !classes[shift - minShift].offer(buf)) {
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 新規に生成したバッファ数
+     */
+    public long getNumOfAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return 再利用したバッファ数
+     */
+    public long getNumOfReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return 保持数を超えて破棄したバッファ数
+     */
+    public long getNumOfDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * size を収められる最小の 2^n の n
+     */
+    private static int shiftFor(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * {@link FrameIndexWriter} が作成したフレーム位置インデックスを memory-map して参照するクラス
+ * <pre>
+ * フレーム番号 N のレコードは固定位置にあるため O(1) で参照できる。
+ * タイムスタンプからの検索はタイムスタンプが単調増加であることを前提とした二分探索となる。
+ *
+ * ファイル形式 (big endian)
+ *  header (24 byte)
+ *   int   magic 'KMFI'
+ *   short version
+ *   short flags (bit0: タイムスタンプ有り)
+ *   int   レコードサイズ
+ *   int   reserved
+ *   long  フレーム数
+ *  record (28 byte) x フレーム数
+ *   long  フレーム番号
+ *   long  録画ファイル内のフレーム先頭位置
+ *   int   フレーム長
+ *   long  タイムスタンプ (ms) 無い場合は {@link #NO_TIMESTAMP}
+ *
+ * スレッドセーフ
+ * {@code
+ * try (FrameIndex index = FrameIndex.open(index_path);
+ *      FileChannel ch = FileChannel.open(mjpeg_path, StandardOpenOption.READ)) {
+ *   byte[] jpeg = index.readFrame(ch, index.findByTimestamp(t));
+ * }
+ * }
+ * </pre>
+ * License : MIT License
+ */
+public class FrameIndex implements AutoCloseable {
+    /** タイムスタンプ無しを表す値 */
+    public static final long NO_TIMESTAMP = -1;
+
+    static final int MAGIC = 0x4b4d4649;    // 'KMFI'
+    static final short VERSION = 1;
+    static final short FLAG_TIMESTAMP = 0x0001;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 28;
+
+    private static final int OFFSET_OF_FRAME_NO = 0;
+    private static final int OFFSET_OF_POSITION = 8;
+    private static final int OFFSET_OF_LENGTH = 16;
+    private static final int OFFSET_OF_TIMESTAMP = 20;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int frames;
+    private final boolean hasTimestamp;
+
+    private FrameIndex(FileChannel channel, MappedByteBuffer map, int frames, boolean has_timestamp) {
+        this.channel = channel;
+        this.map = map;
+        this.frames = frames;
+        this.hasTimestamp = has_timestamp;
+    }
+
+    /**
+     * インデックスファイルを開く。
+     * @param index インデックスファイル notnull
+     * @return FrameIndex
+     * @throws IOException 読み込みに失敗した場合, ファイル形式が不正な場合
+     */
+    public static FrameIndex open(Path index) throws IOException {
+        Objects.requireNonNull(index, "index should not be null");
+
+        FileChannel ch = FileChannel.open(index, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < HEADER_SIZE)
+                throw new IOException("Index file is too short");
+            if (Integer.MAX_VALUE < size)
+                throw new IOException("Index file is too large to map");
+
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != MAGIC)
+                throw new IOException("Invalid index file");
+            if (map.getShort(4) != VERSION)
+                throw new IOException("Unsupported index version " + map.getShort(4));
+            if (map.getInt(8) != RECORD_SIZE)
+                throw new IOException("Unsupported record size " + map.getInt(8));
+            long frames = map.getLong(16);
+            if (size < HEADER_SIZE + frames * RECORD_SIZE)
+                throw new IOException("Index file is truncated");
+
+            boolean has_timestamp = (map.getShort(6) & FLAG_TIMESTAMP) != 0;
+            return new FrameIndex(ch, map, (int) frames, has_timestamp);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return インデックスに含まれるフレーム数
+     */
+    public int size() {
+        return frames;
+    }
+
+    /**
+     * @return タイムスタンプが記録されている場合は true
+     */
+    public boolean hasTimestamp() {
+        return hasTimestamp;
+    }
+
+    /**
+     * @param n 0 から数えたレコード番号
+     * @return フレーム番号
+     * @throws IndexOutOfBoundsException n が範囲外の場合
+     */
+    public long getFrameNumber(int n) {
+        return map.getLong(recordPos(n) + OFFSET_OF_FRAME_NO);
+    }
+
+    /**
+     * @param n 0 から数えたレコード番号
+     * @return 録画ファイル内のフレーム先頭位置 (バイト)
+     * @throws IndexOutOfBoundsException n が範囲外の場合
+     */
+    public long getOffset(int n) {
+        return map.getLong(recordPos(n) + OFFSET_OF_POSITION);
+    }
+
+    /**
+     * @param n 0 から数えたレコード番号
+     * @return フレーム長 (バイト)
+     * @throws IndexOutOfBoundsException n が範囲外の場合
+     */
+    public int getLength(int n) {
+        return map.getInt(recordPos(n) + OFFSET_OF_LENGTH);
+    }
+
+    /**
+     * @param n 0 から数えたレコード番号
+     * @return タイムスタンプ (ms) 無い場合は {@link #NO_TIMESTAMP}
+     * @throws IndexOutOfBoundsException n が範囲外の場合
+     */
+    public long getTimestamp(int n) {
+        return map.getLong(recordPos(n) + OFFSET_OF_TIMESTAMP);
+    }
+
+    /**
+     * タイムスタンプが timestamp 以上となる最初のフレームを探す。
+     * @param timestamp タイムスタンプ (ms)
+     * @return レコード番号 該当フレームが無い場合は -1
+     * @throws IllegalStateException タイムスタンプが記録されていない場合
+     */
+    public int findByTimestamp(long timestamp) {
+        if (!hasTimestamp)
+            throw new IllegalStateException("Index has no timestamp");
+
+        int lo = 0;
+        int hi = frames;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getTimestamp(mid) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (lo < frames) ? lo : -1;
+    }
+
+    /**
+     * 録画ファイルから n 番目のフレームを読み込む。
+     * @param source 録画ファイル notnull
+     * @param n 0 から数えたレコード番号
+     * @return フレームデータ
+     * @throws IndexOutOfBoundsException n が範囲外の場合
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public byte[] readFrame(FileChannel source, int n) throws IOException {
+        Objects.requireNonNull(source, "source should not be null");
+
+        long pos = getOffset(n);
+        byte[] frame = new byte[getLength(n)];
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        while (buf.hasRemaining()) {
+            int len = source.read(buf, pos);
+            if (len < 0)
+                throw new IOException("Unexpected end of file at " + pos);
+            pos += len;
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int recordPos(int n) {
+        if (n < 0 || frames <= n)
+            throw new IndexOutOfBoundsException("n is out of range : " + n);
+        return HEADER_SIZE + n * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.kmkt.util.ParallelStreamSplitter;
+
+/**
+ * MJPEG 録画ファイルのフレーム位置インデックス (サイドカーファイル) を書き出すクラス
+ * <pre>
+ * 1フレーム毎に (フレーム番号, バイトオフセット, 長さ, タイムスタンプ) の固定長レコードを書き出す。
+ * 書き出したインデックスは {@link FrameIndex} で memory-map して参照する。
+ * ファイル形式は {@link FrameIndex} を参照のこと。
+ * 非スレッドセーフ
+ * </pre>
+ * License : MIT License
+ */
+public class FrameIndexWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(FrameIndexWriter.class);
+
+    /** まとめて書き出すレコード数 */
+    private static final int RECORDS_PER_WRITE = 4096;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(FrameIndex.RECORD_SIZE * RECORDS_PER_WRITE);
+    private boolean hasTimestamp;   // buildFromMultipart ではタイムスタンプの有無を close 前に確定する
+    private long frames = 0;
+    private long lastOffset = -1;
+
+    /**
+     * index に新規のインデックスファイルを作成する。
+     * 既存ファイルは上書きされる。
+     * @param index インデックスファイル notnull
+     * @param has_timestamp タイムスタンプを記録する場合は true
+     * @throws IOException ファイル作成に失敗した場合
+     */
+    public FrameIndexWriter(Path index, boolean has_timestamp) throws IOException {
+        Objects.requireNonNull(index, "index should not be null");
+
+        this.channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.hasTimestamp = has_timestamp;
+        writeHeader();
+        channel.position(FrameIndex.HEADER_SIZE);
+    }
+
+    /**
+     * 次のフレームのレコードを追加する。
+     * フレーム番号は追加順に 0 から採番される。
+     * @param offset 録画ファイル内のフレーム先頭位置 (バイト) 直前のフレームより後ろであること
+     * @param length フレーム長 (バイト)
+     * @param timestamp フレームのタイムスタンプ (ms) 無い場合は {@link FrameIndex#NO_TIMESTAMP}
+     * @return 追加したフレームのフレーム番号
+     * @throws IllegalArgumentException offset が直前のフレーム以前, length が負の場合
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public long add(long offset, int length, long timestamp) throws IOException {
+        if (offset <= lastOffset)
+            throw new IllegalArgumentException("offset should be larger than previous one");
+        if (length < 0)
+            throw new IllegalArgumentException("length must be zero or positive");
+
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        long frame_no = frames;
+        buffer.putLong(frame_no);
+        buffer.putLong(offset);
+        buffer.putInt(length);
+        buffer.putLong(hasTimestamp ? timestamp : FrameIndex.NO_TIMESTAMP);
+        frames++;
+        lastOffset = offset;
+        return frame_no;
+    }
+
+    /**
+     * 追加済みのフレーム数を取得する。
+     * @return フレーム数
+     */
+    public long getNumOfFrames() {
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            writeHeader();  // 確定したフレーム数で更新
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameIndex.HEADER_SIZE);
+        header.putInt(FrameIndex.MAGIC);
+        header.putShort(FrameIndex.VERSION);
+        header.putShort(hasTimestamp ? FrameIndex.FLAG_TIMESTAMP : 0);
+        header.putInt(FrameIndex.RECORD_SIZE);
+        header.putInt(0);       // reserved
+        header.putLong(frames);
+        header.flip();
+        long pos = 0;
+        while (header.hasRemaining()) {
+            pos += channel.write(header, pos);
+        }
+    }
+
+    /**
+     * multipart/x-mixed-replace 形式で記録された MJPEG ファイルを分割し、インデックスを作成する。
+     * <pre>
+     * source を boundary で {@link ParallelStreamSplitter} により並列に分割し、各 part 内の JPEG (SOI～EOI) 位置を記録する。
+     * part ヘッダに X-Timestamp (ms) がある場合はタイムスタンプとして記録する。
+     * X-Timestamp を持つ part が 1 つも無い場合は、タイムスタンプ無しのインデックスとなる。
+     * JPEG を含まない part は無視される。
+     * </pre>
+     * @param source MJPEG ファイル notnull
+     * @param boundary multipart の boundary 文字列 ("--" を含まない) notnull
+     * @param index 作成するインデックスファイル notnull
+     * @return インデックスに記録したフレーム数
+     * @throws IOException 読み込みあるいは書き込みに失敗した場合
+     */
+    public static long buildFromMultipart(FileChannel source, String boundary, Path index) throws IOException {
+        Objects.requireNonNull(source, "source should not be null");
+        Objects.requireNonNull(boundary, "boundary should not be null");
+        Objects.requireNonNull(index, "index should not be null");
+
+        byte[] delimiter = ("--" + boundary.replaceFirst("^--", "")).getBytes(StandardCharsets.US_ASCII);
+        ParallelStreamSplitter splitter = new ParallelStreamSplitter(source, delimiter);
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger timestamped = new AtomicInteger();
+        try (FrameIndexWriter writer = new FrameIndexWriter(index, true)) {
+            splitter.stream(true)
+                .map(FrameIndexWriter::locateFrame)
+                .forEachOrdered(frame -> {
+                    if (frame == null) {
+                        skipped.incrementAndGet();
+                        return;
+                    }
+                    if (frame[2] != FrameIndex.NO_TIMESTAMP)
+                        timestamped.incrementAndGet();
+                    try {
+                        writer.add(frame[0], (int) frame[1], frame[2]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            writer.hasTimestamp = (0 < timestamped.get());
+            logger.debug("Indexed {} frames ({} with timestamp), {} parts skipped",
+                    writer.getNumOfFrames(), timestamped.get(), skipped.get());
+            return writer.getNumOfFrames();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * part 内の JPEG 位置とタイムスタンプを探す
+     * @return {offset, length, timestamp} JPEG を含まない場合は null
+     */
+    private static long[] locateFrame(ParallelStreamSplitter.Part part) {
+        if (part.getLength() == 0)
+            return null;
+        ByteBuffer b = part.read();
+        byte[] buf = b.array();
+        int size = b.limit();
+
+        // ヘッダ/ボディ境界
+        int body_pos = -1;
+        for (int i = 0; i + 3 < size; i++) {
+            if (buf[i] == 0x0d && buf[i + 1] == 0x0a && buf[i + 2] == 0x0d && buf[i + 3] == 0x0a) {
+                body_pos = i + 4;
+                break;
+            }
+        }
+        if (body_pos < 0)
+            return null;
+
+        long timestamp = FrameIndex.NO_TIMESTAMP;
+        String headers = new String(buf, 0, body_pos, StandardCharsets.ISO_8859_1);
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (0 < colon && "X-Timestamp".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                try {
+                    timestamp = Long.parseLong(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    logger.debug("Ignore invalid X-Timestamp header '{}'", line);
+                }
+            }
+        }
+
+        // JPEG部の探索
+        int pos_soi = JpegMarkers.findSOI(buf, body_pos, size);
+        int pos_eoi = JpegMarkers.findLastEOI(buf, pos_soi, size);
+        if (pos_soi < 0 || pos_eoi < 0)
+            return null;
+
+        return new long[]{part.getOffset() + pos_soi, pos_eoi + 2 - pos_soi, timestamp};
+    }
+}
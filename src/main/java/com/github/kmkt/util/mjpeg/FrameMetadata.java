@@ -0,0 +1,121 @@
+package com.github.kmkt.util.mjpeg;
+
+/**
+ * 受信フレームのメタデータ
+ * <pre>
+ * 受信時刻、通番、part ヘッダ (MJPEG over HTTP の場合) を保持する。
+ * インスタンスは受信ストリーム毎に 1 つだけ生成されフレーム毎に上書きされるため、
+ * 値は callback 中でのみ有効。callback 後も必要な値は callback 内で取り出して保持すること。
+ * 受信時刻はフレーム先頭を含むデータを socket から読み出した直後の時刻。
+ * MJPEG over HTTP の場合は part 先頭の boundary 行、RAW MJPEG の場合は SOI を含む読み出しの時刻となる。
+ * </pre>
+ * License : MIT License
+ */
+public final class FrameMetadata {
+    /** タイムスタンプヘッダ名 */
+    public static final String TIMESTAMP_HEADER = "X-Timestamp";
+    /** タイムスタンプが無い場合の値 */
+    public static final long NO_TIMESTAMP = -1;
+
+    private long sequence = -1;
+    private long arrivalNanos = 0;
+    private long arrivalMillis = 0;
+    private MultipartStreamParser.PartHeader header = null;
+
+    FrameMetadata() {
+    }
+
+    /**
+     * 内容を更新する
+     */
+    void set(long sequence, long arrival_nanos, long arrival_millis, MultipartStreamParser.PartHeader header) {
+        this.sequence = sequence;
+        this.arrivalNanos = arrival_nanos;
+        this.arrivalMillis = arrival_millis;
+        this.header = header;
+    }
+
+    /**
+     * フレームの通番を返す。
+     * 受信開始時を 0 とし、受信したフレーム毎に 1 ずつ増加する。
+     * 間引かれたフレームや不正なフレームも番号を消費するため、欠番からフレームの欠落を検出できる。
+     * @return 通番
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return 受信時刻 ({@link System#nanoTime()} の値) 同一 JVM 内での遅延計測・並べ替え用
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /**
+     * @return 受信時刻 ({@link System#currentTimeMillis()} の値) 送信元の時刻との比較用
+     */
+    public long getArrivalMillis() {
+        return arrivalMillis;
+    }
+
+    /**
+     * @return part ヘッダ数 part ヘッダが無い場合は 0
+     */
+    public int getNumOfHeaders() {
+        return (header == null) ? 0 : header.getNumOfHeaders();
+    }
+
+    /**
+     * @param i ヘッダ番号
+     * @return i 番目のヘッダ名
+     * @throws IndexOutOfBoundsException i が範囲外の場合
+     */
+    public String getHeaderName(int i) {
+        if (header == null)
+            throw new IndexOutOfBoundsException("No header");
+        return header.getHeaderName(i);
+    }
+
+    /**
+     * @param i ヘッダ番号
+     * @return i 番目のヘッダ値
+     * @throws IndexOutOfBoundsException i が範囲外の場合
+     */
+    public String getHeaderValue(int i) {
+        if (header == null)
+            throw new IndexOutOfBoundsException("No header");
+        return header.getHeaderValue(i);
+    }
+
+    /**
+     * part ヘッダの値を取得する。ヘッダ名の大文字小文字は区別しない。
+     * @param name ヘッダ名 notnull
+     * @return 最初に一致したヘッダの値 無い場合は null
+     */
+    public String getHeader(String name) {
+        return (header == null) ? null : header.getHeader(name);
+    }
+
+    /**
+     * part ヘッダの値を整数として取得する。String を生成せずに解析する。
+     * @param name ヘッダ名 notnull
+     * @param default_value ヘッダが無い場合あるいは整数でない場合の値
+     * @return ヘッダ値
+     */
+    public long getHeaderAsLong(String name, long default_value) {
+        return (header == null) ? default_value : header.getHeaderAsLong(name, default_value);
+    }
+
+    /**
+     * @return 送信元が付与した X-Timestamp ヘッダの値 (ms) 無い場合は {@link #NO_TIMESTAMP}
+     */
+    public long getTimestamp() {
+        return getHeaderAsLong(TIMESTAMP_HEADER, NO_TIMESTAMP);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameMetadata[seq: " + sequence + ", arrival: " + arrivalMillis + ", timestamp: " + getTimestamp() + "]";
+    }
+}
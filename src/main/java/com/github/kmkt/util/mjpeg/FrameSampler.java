@@ -0,0 +1,89 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 受信フレームの間引き条件
+ * <pre>
+ * N フレーム毎に 1 フレーム、あるいは一定時間毎に高々 1 フレームを採用する。
+ * 採否は part ヘッダ受信時に判定され、不採用の part はバッファへコピーされずに読み捨てられる。
+ * 状態を持つため、受信ストリーム毎にインスタンスを生成すること。
+ * スレッドセーフではない。
+ * </pre>
+ * License : MIT License
+ */
+public final class FrameSampler {
+    private final int every;
+    private final long intervalNanos;
+
+    private long count = 0;
+    private long lastAccepted = 0;
+    private boolean accepted = false;
+
+    private FrameSampler(int every, long interval_nanos) {
+        this.every = every;
+        this.intervalNanos = interval_nanos;
+    }
+
+    /**
+     * N フレーム毎に 1 フレームを採用する Sampler を生成する。
+     * 最初のフレームは常に採用される。
+     * @param n 採用間隔 (フレーム数) 1 以上
+     * @return FrameSampler
+     * @throws IllegalArgumentException n が 1 未満の場合
+     */
+    public static FrameSampler everyNth(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("n should be 1 or larger");
+        return new FrameSampler(n, 0);
+    }
+
+    /**
+     * interval 毎に高々 1 フレームを採用する Sampler を生成する。
+     * 最初のフレームは常に採用される。
+     * @param interval 最小採用間隔 0 より大きい値
+     * @param unit interval の単位
+     * @return FrameSampler
+     * @throws IllegalArgumentException interval が 0 以下の場合
+     */
+    public static FrameSampler perInterval(long interval, TimeUnit unit) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        if (unit == null)
+            throw new IllegalArgumentException("unit should not be null");
+        return new FrameSampler(0, unit.toNanos(interval));
+    }
+
+    /**
+     * 次のフレームを採用するか否かを判定する。フレーム毎に 1 回呼び出すこと。
+     * @return 採用する場合 true
+     */
+    public boolean sample() {
+        if (0 < every) {
+            return count++ % every == 0;
+        }
+
+        long now = System.nanoTime();
+        if (!accepted || intervalNanos <= now - lastAccepted) {
+            accepted = true;
+            lastAccepted = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 判定状態を初期化する。次のフレームは採用される。
+     */
+    public void reset() {
+        count = 0;
+        accepted = false;
+    }
+
+    @Override
+    public String toString() {
+        if (0 < every)
+            return "FrameSampler[every " + every + " frames]";
+        return "FrameSampler[per " + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + " ms]";
+    }
+}
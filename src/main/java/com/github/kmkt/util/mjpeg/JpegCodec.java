@@ -0,0 +1,152 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Objects;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * ImageIO による JPEG の縮小デコード・エンコード補助クラス
+ * <pre>
+ * ImageReader / ImageWriter はスレッド毎に生成して再利用する。
+ * 縮小デコードは {@link ImageReadParam#setSourceSubsampling(int, int, int, int)} により、
+ * 目的のサイズを下回らない範囲で画素を間引いて読み込むため、全画素のデコードより高速に動作する。
+ * 各メソッドはスレッドセーフ。
+ * </pre>
+ * License : MIT License
+ */
+public final class JpegCodec {
+    private static final ThreadLocal<ImageReader> READER = ThreadLocal.withInitial(() -> {
+        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!it.hasNext())
+            throw new IllegalStateException("No JPEG ImageReader");
+        return it.next();
+    });
+    private static final ThreadLocal<ImageWriter> WRITER = ThreadLocal.withInitial(() -> {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext())
+            throw new IllegalStateException("No JPEG ImageWriter");
+        return it.next();
+    });
+
+    private JpegCodec() {
+    }
+
+    /**
+     * JPEG をデコードする。
+     * @param b JPEG データを含むバイト配列 notnull
+     * @param off JPEG データ開始位置
+     * @param len JPEG データ長
+     * @return デコードした画像
+     * @throws IOException JPEG として不正なデータの場合
+     */
+    public static BufferedImage decode(byte[] b, int off, int len) throws IOException {
+        return decode(b, off, len, 0, 0);
+    }
+
+    /**
+     * 縦横が max_width x max_height を下回らない範囲で画素を間引いて JPEG をデコードする。
+     * 返される画像のサイズは max_width x max_height と一致しないため、必要であれば {@link #scale} すること。
+     * @param b JPEG データを含むバイト配列 notnull
+     * @param off JPEG データ開始位置
+     * @param len JPEG データ長
+     * @param max_width 必要な幅 0 以下の場合は間引かない
+     * @param max_height 必要な高さ 0 以下の場合は間引かない
+     * @return デコードした画像
+     * @throws IOException JPEG として不正なデータの場合
+     */
+    public static BufferedImage decode(byte[] b, int off, int len, int max_width, int max_height) throws IOException {
+        Objects.requireNonNull(b, "b should not be null");
+
+        ImageReader reader = READER.get();
+        try (MemoryCacheImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(b, off, len))) {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (0 < max_width && 0 < max_height) {
+                int subsampling = subsampling(reader.getWidth(0), reader.getHeight(0), max_width, max_height);
+                if (1 < subsampling) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+            }
+            return reader.read(0, param);
+        } finally {
+            reader.reset();
+        }
+    }
+
+    /**
+     * width x height の画像を dst_width x dst_height 以上に保つ最大の間引き率を返す。
+     * @return 間引き率 1 以上
+     */
+    static int subsampling(int width, int height, int dst_width, int dst_height) {
+        return Math.max(1, Math.min(width / dst_width, height / dst_height));
+    }
+
+    /**
+     * 画像を JPEG にエンコードする。
+     * @param image 画像 notnull アルファチャネルを持たないこと
+     * @param quality 品質 0.0 - 1.0
+     * @return JPEG データ
+     * @throws IOException エンコードに失敗した場合
+     */
+    public static byte[] encode(BufferedImage image, float quality) throws IOException {
+        Objects.requireNonNull(image, "image should not be null");
+        if (quality < 0.0f || 1.0f < quality)
+            throw new IllegalArgumentException("quality should be in [0.0, 1.0]");
+
+        ImageWriter writer = WRITER.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 画像をアスペクト比を保って width x height に収まるよう拡大縮小し、width x height の画像の中央に配置する。
+     * 余白は黒となる。
+     * @param image 画像 notnull
+     * @param width 出力画像の幅
+     * @param height 出力画像の高さ
+     * @return TYPE_3BYTE_BGR の画像
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        drawFit(dst.createGraphics(), image, 0, 0, width, height);
+        return dst;
+    }
+
+    /**
+     * 画像をアスペクト比を保って (x, y, width, height) の領域の中央に描画し、g を破棄する。
+     */
+    static void drawFit(Graphics2D g, BufferedImage image, int x, int y, int width, int height) {
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            double ratio = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+            int w = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+            int h = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+            g.drawImage(image, x + (width - w) / 2, y + (height - h) / 2, w, h, null);
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.kmkt.util.mjpeg;
+
+/**
+ * JPEG の SOI / EOI マーカ探索
+ *
+ * License : MIT License
+ */
+final class JpegMarkers {
+    private JpegMarkers() {
+    }
+
+    /**
+     * b[off, off+len) が SOI で始まり EOI で終わるか否か
+     * @return SOI で始まり EOI で終わる場合 true
+     */
+    static boolean isWholeFrame(byte[] b, int off, int len) {
+        int limit = off + len;
+        return 4 <= len && b[off] == (byte) 0xff && b[off + 1] == (byte) 0xd8 &&
+               b[limit - 2] == (byte) 0xff && b[limit - 1] == (byte) 0xd9;
+    }
+
+    /**
+     * b[off, limit) 内の最初の SOI を前から探索する
+     * @return SOI 先頭位置 無い場合は -1
+     */
+    static int findSOI(byte[] b, int off, int limit) {
+        for (int i = off; i + 1 < limit; i++) {
+            if (b[i] == (byte) 0xff && b[i + 1] == (byte) 0xd8)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * (pos_soi, limit) 内の最後の EOI を後ろから探索する
+     * @return EOI 先頭位置 無い場合は -1
+     */
+    static int findLastEOI(byte[] b, int pos_soi, int limit) {
+        for (int i = limit - 2; pos_soi < i; i--) {
+            if (b[i] == (byte) 0xff && b[i + 1] == (byte) 0xd9)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * b[off, limit) の JPEG のマーカセグメントを辿り、最初の SOS に続くエントロピー符号化データの先頭を探す
+     * @param off SOI の位置
+     * @return エントロピー符号化データの先頭位置 見つからない場合は -1
+     */
+    static int findScanData(byte[] b, int off, int limit) {
+        int p = off + 2;    // SOI の次
+        while (p + 4 <= limit) {
+            if (b[p] != (byte) 0xff)
+                return -1;
+            int marker = b[p + 1] & 0xff;
+            if (marker == 0xff) {
+                p++;        // fill byte
+                continue;
+            }
+            if (marker == 0x01 || (0xd0 <= marker && marker <= 0xd7)) {
+                p += 2;     // 長さを持たないマーカ
+                continue;
+            }
+            int length = ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+            if (length < 2)
+                return -1;
+            p += 2 + length;
+            if (marker == 0xda)
+                return (p <= limit) ? p : -1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.kmkt.util.ChannelRegistry;
+
+/**
+ * 複数チャネルの MJPEG over HTTP 配信 servlet
+ *
+ * <pre>
+ * "/path/*" にマップし、/path/{channel} への GET をチャネル毎の {@link MjpegServlet} に振り分ける。
+ * チャネル毎のインスタンスは servlet として登録されず、{@link ChannelRegistry} で管理される。
+ * {@link #pourFrame(String, FrameBuffer)} のフレームはそのチャネルのクライアントにのみ送られる。
+ * チャネルは pourFrame 時に生成され、クライアントが無く idle_timeout の間参照されないと破棄される。
+ * チャネル毎のインスタンスは縮小レンディションを無効として生成する。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class MjpegChannelServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ChannelRegistry<MjpegServlet> registry;
+
+    /**
+     * チャネル破棄までの時間を {@link ChannelRegistry#DEFAULT_IDLE_TIMEOUT} として生成する。
+     */
+    public MjpegChannelServlet() {
+        this(ChannelRegistry.DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param idle_timeout クライアントの無いチャネルを破棄するまでの時間 1 ms 以上
+     * @param unit idle_timeout の単位 notnull
+     * @throws IllegalArgumentException idle_timeout が 1 ms 未満の場合
+     */
+    public MjpegChannelServlet(long idle_timeout, TimeUnit unit) {
+        this.registry = new ChannelRegistry<>(
+                channel -> new MjpegServlet(),
+                servlet -> 0 < servlet.getNumOfClients(),
+                (channel, servlet) -> servlet.destroy(),
+                idle_timeout, unit);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        registry.start();
+    }
+
+    @Override
+    public void destroy() {
+        registry.stop();
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        // チャネルは pourFrame でのみ生成し、クライアントの要求では生成しない
+        String channel = ChannelRegistry.channelOf(req.getPathInfo());
+        MjpegServlet servlet = registry.lookup(channel);
+        if (servlet == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel");
+            return;
+        }
+        servlet.service(req, resp);
+    }
+
+    /**
+     * チャネルに JPEG フレームデータを供給する。チャネルが存在しない場合は生成する。
+     * @param channel チャネル名
+     * @param frame JPEG フレームデータ
+     * @throws IllegalArgumentException チャネル名が無効な場合
+     * @see MjpegServlet#pourFrame(byte[])
+     */
+    public void pourFrame(String channel, byte[] frame) {
+        registry.get(channel).pourFrame(frame);
+    }
+
+    /**
+     * チャネルに JPEG フレームデータを供給する。チャネルが存在しない場合は生成する。
+     * @param channel チャネル名
+     * @param frame JPEG フレームデータ
+     * @throws IllegalArgumentException チャネル名が無効な場合
+     * @see MjpegServlet#pourFrame(FrameBuffer)
+     */
+    public void pourFrame(String channel, FrameBuffer frame) {
+        registry.get(channel).pourFrame(frame);
+    }
+
+    /**
+     * @param channel チャネル名
+     * @return チャネルの servlet 存在しない場合は null
+     */
+    public MjpegServlet getChannel(String channel) {
+        return registry.peek(channel);
+    }
+
+    /**
+     * @return 存在するチャネル名
+     */
+    public Set<String> getChannels() {
+        return registry.getChannels();
+    }
+
+    /**
+     * @return 存在するチャネル数
+     */
+    public int getNumOfChannels() {
+        return registry.getNumOfChannels();
+    }
+}
@@ -1,6 +1,6 @@
 package com.github.kmkt.util.mjpeg;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -21,16 +21,18 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.kmkt.util.StreamSplitter;
-
 
 /**
  * MJPEG over HTTP ストリームを受け取り、callback するクラス
  *
+ * part ヘッダに Content-Length がある場合は、その長さを JPEG フレームとして切り出し、
+ * boundary や SOI/EOI の探索を行わない。
+ *
  * License : MIT License
  */
 public class MjpegHTTPReader {
@@ -62,6 +64,36 @@ public class MjpegHTTPReader {
         void onRecvFrame(byte[] b, int off, int len);
     }
 
+    /**
+     * フレーム受信毎に呼び出される callback interface
+     */
+    @FunctionalInterface
+    public interface RecvPooledFrameCallback {
+        /**
+         * フレーム受信毎に呼び出される callback
+         * frame は callback から戻った時点で release される。
+         * callback 後もフレームを保持する場合は {@link FrameBuffer#retain()} し、不要になった時点で release すること。
+         * @param frame JPEG フレームが格納されるプールされたバッファ
+         */
+        void onRecvFrame(FrameBuffer frame);
+    }
+
+    /**
+     * フレーム受信毎にメタデータと共に呼び出される callback interface
+     */
+    @FunctionalInterface
+    public interface RecvFrameWithMetadataCallback {
+        /**
+         * フレーム受信毎に呼び出される callback
+         * b, meta は受信スレッドで再利用されるため、callback 後も必要な値はコピーすること。
+         * @param b JPEG フレームが格納されるバッファ
+         * @param off b 内の JPEG フレーム開始位置
+         * @param len b 内の JPEG フレームサイズ
+         * @param meta フレームの受信時刻, 通番, part ヘッダ
+         */
+        void onRecvFrame(byte[] b, int off, int len, FrameMetadata meta);
+    }
+
     /**
      * ストリーム受信終了時に呼び出される callback
      */
@@ -99,11 +131,30 @@ public class MjpegHTTPReader {
     private RecvFrameCallback recvCallback = null;
     /** フレーム受信毎に呼び出される callback */
     private RecvFrameOnBufferCallback recvOnBufferCallback = null;
+    /** フレーム受信毎に呼び出される callback */
+    private RecvPooledFrameCallback recvPooledCallback = null;
+    /** フレーム受信毎に呼び出される callback */
+    private RecvFrameWithMetadataCallback recvMetadataCallback = null;
+    /** recvPooledCallback に渡すフレームバッファのプール */
+    private FrameBufferPool frameBufferPool = null;
     /** ストリーム受信終了時に呼び出される callback */
     private StreamClosedCallback streamClosedCallback = null;
     /** 受信スレッド終了時に呼び出される callback */
     private ThreadTerminatedCallback threadTerminatedCallback = null;
 
+    /** フレームの間引き条件 null 時は全フレームを通知する */
+    private FrameSampler frameSampler = null;
+    /** 再接続ポリシー null 時は切断で受信を終了する */
+    private ReconnectPolicy reconnectPolicy = null;
+    /** 受信中のリクエスト */
+    private volatile HttpGet currentRequest = null;
+    // 再接続の計測値
+    private volatile long reconnectCount = 0;
+    private volatile long lastGapMillis = 0;
+    private volatile long maxGapMillis = 0;
+    private volatile long totalGapMillis = 0;
+    private volatile long disconnectedSince = 0;
+
 
     /**
      * target URL から MJPEG を受信するインスタンスを生成する。
@@ -151,7 +202,7 @@ public class MjpegHTTPReader {
      *
      * JPEG フレームを含む受信データと JPEG フレーム位置が recv_callback で指定された callback に渡される。
      * callback に渡されるバイト配列は原則として受信バッファそのものが渡されるため、必要があればコピーを作成すること。
-     * 受信バッファが溢れる場合には、動的バッファに切り替えられるためデータロスは生じない（メモリ消費量は増加する）。
+     * 受信バッファが溢れる場合には、バッファが倍々に拡張されるためデータロスは生じない（メモリ消費量は増加する）。
      *
      * @param target MJPEG 配信元 URL notnull
      * @param recv_buffer_size 受信バッファサイズ(バイト) 1 以上の整数
@@ -171,7 +222,7 @@ public class MjpegHTTPReader {
      *
      * JPEG フレームを含む受信データと JPEG フレーム位置が recv_callback で指定された callback に渡される
      * callback に渡されるバイト配列は受信バッファそのものが渡されるため、必要があればコピーを作成すること。
-     * 受信バッファが溢れる場合には、動的バッファに切り替えられるためデータロスは生じない（メモリ消費量は増加する）。
+     * 受信バッファが溢れる場合には、バッファが倍々に拡張されるためデータロスは生じない（メモリ消費量は増加する）。
      *
      * @param target MJPEG 配信元 URL notnull
      * @param recv_buffer_size 受信バッファサイズ(バイト) 1 以上の整数
@@ -194,6 +245,97 @@ public class MjpegHTTPReader {
         this.receiveBufferSize = recv_buffer_size;
     }
 
+    /**
+     * target URL から MJPEG を受信するインスタンスを生成する。
+     *
+     * 受信できた JPEG フレームは pool から借りたバッファにコピーされ、recv_callback で指定された callback に渡される。
+     * バッファは callback から戻った時点でプールに返却されるため、定常状態ではフレーム毎のメモリ確保が生じない。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param pool フレームバッファのプール notnull
+     * @param recv_callback フレーム受信毎に呼び出される callback null 時は無視される
+     * @param stream_closed_callback 状態変化時に呼び出される callback null 時は無視される
+     * @param thread_terminated_callback 受信スレッド終了時に呼び出される callback null 時は無視される
+     * @throws NullPointerException target, pool == null 時
+     */
+    public MjpegHTTPReader(URI target, FrameBufferPool pool, RecvPooledFrameCallback recv_callback,
+            StreamClosedCallback stream_closed_callback, ThreadTerminatedCallback thread_terminated_callback) {
+        this(target, pool, recv_callback, stream_closed_callback, thread_terminated_callback, null, null);
+    }
+
+    /**
+     * Basic 認証付き target URL から MJPEG を受信するインスタンスを生成する。
+     *
+     * 受信できた JPEG フレームは pool から借りたバッファにコピーされ、recv_callback で指定された callback に渡される。
+     * バッファは callback から戻った時点でプールに返却されるため、定常状態ではフレーム毎のメモリ確保が生じない。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param pool フレームバッファのプール notnull
+     * @param recv_callback フレーム受信毎に呼び出される callback null 時は無視される
+     * @param stream_closed_callback 状態変化時に呼び出される callback null 時は無視される
+     * @param thread_terminated_callback 受信スレッド終了時に呼び出される callback null 時は無視される
+     * @param user Basic 認証ユーザ名 null 時は Basic認証を行わない
+     * @param pass Basic 認証パスワード null 時は Basic認証を行わない
+     * @throws NullPointerException target, pool == null 時
+     */
+    public MjpegHTTPReader(URI target, FrameBufferPool pool, RecvPooledFrameCallback recv_callback,
+            StreamClosedCallback stream_closed_callback, ThreadTerminatedCallback thread_terminated_callback,
+            String user, String pass) {
+        this(target, stream_closed_callback, thread_terminated_callback, user, pass);
+        Objects.requireNonNull(pool, "pool should not be null");
+
+        this.frameBufferPool = pool;
+        this.recvPooledCallback = recv_callback;
+    }
+
+    /**
+     * target URL から MJPEG を受信するインスタンスを生成する。
+     *
+     * JPEG フレームを含む受信データと JPEG フレーム位置が、受信時刻・通番・part ヘッダと共に
+     * recv_callback で指定された callback に渡される。
+     * バイト配列は受信バッファそのもの、メタデータは再利用されるインスタンスが渡されるため、必要があればコピーを作成すること。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param recv_buffer_size 受信バッファサイズ(バイト) 1 以上の整数
+     * @param recv_callback フレーム受信毎に呼び出される callback null 時は無視される
+     * @param stream_closed_callback 状態変化時に呼び出される callback null 時は無視される
+     * @param thread_terminated_callback 受信スレッド終了時に呼び出される callback null 時は無視される
+     * @throws NullPointerException target == null 時
+     * @throws IllegalArgumentException recv_buffer_size に 0 以下を与えた場合
+     */
+    public MjpegHTTPReader(URI target, int recv_buffer_size, RecvFrameWithMetadataCallback recv_callback,
+            StreamClosedCallback stream_closed_callback, ThreadTerminatedCallback thread_terminated_callback) {
+        this(target, recv_buffer_size, recv_callback, stream_closed_callback, thread_terminated_callback, null, null);
+    }
+
+    /**
+     * Basic 認証付き target URL から MJPEG を受信するインスタンスを生成する。
+     *
+     * JPEG フレームを含む受信データと JPEG フレーム位置が、受信時刻・通番・part ヘッダと共に
+     * recv_callback で指定された callback に渡される。
+     * バイト配列は受信バッファそのもの、メタデータは再利用されるインスタンスが渡されるため、必要があればコピーを作成すること。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param recv_buffer_size 受信バッファサイズ(バイト) 1 以上の整数
+     * @param recv_callback フレーム受信毎に呼び出される callback null 時は無視される
+     * @param stream_closed_callback 状態変化時に呼び出される callback null 時は無視される
+     * @param thread_terminated_callback 受信スレッド終了時に呼び出される callback null 時は無視される
+     * @param user Basic 認証ユーザ名 null 時は Basic認証を行わない
+     * @param pass Basic 認証パスワード null 時は Basic認証を行わない
+     * @throws NullPointerException target == null 時
+     * @throws IllegalArgumentException recv_buffer_size に 0 以下を与えた場合
+     */
+    public MjpegHTTPReader(URI target, int recv_buffer_size, RecvFrameWithMetadataCallback recv_callback,
+            StreamClosedCallback stream_closed_callback, ThreadTerminatedCallback thread_terminated_callback,
+            String user, String pass) {
+        this(target, stream_closed_callback, thread_terminated_callback, user, pass);
+        if (recv_buffer_size <= 0)
+            throw new IllegalArgumentException("recv_buffer_size must be positive");
+
+        this.recvMetadataCallback = recv_callback;
+        this.receiveBufferSize = recv_buffer_size;
+    }
+
     /**
      * 内部コンストラクタ
      *
@@ -227,6 +369,83 @@ public class MjpegHTTPReader {
         return (this.streamReadThread != null && threadLoop);
     }
 
+    /**
+     * 切断時に自動で再接続する監視モードを設定する。
+     *
+     * <pre>
+     * 監視モードでは、切断やエラー時にスレッドを終了せず、policy に従った待ち時間を置いて再接続する。
+     * フレームを受信した後の切断では、最初の再接続は待ち時間無しで行われる。
+     * 接続できてもフレームを 1 つも受信せずに切断された場合は、接続失敗と同様に待ち時間を延ばして再接続する。
+     * 再接続は切断後に最初のフレームを受信した時点で成功とみなす。
+     * HttpClient とその接続プールは再接続をまたいで再利用される。
+     * 監視モードでは {@link #start(int, int)} は接続失敗時に例外を投げず、受信スレッドで接続を繰り返す。
+     * また StreamClosedCallback は呼び出されない。
+     * {@link #start(int, int)} 前に呼び出すこと。
+     * </pre>
+     *
+     * @param policy 再接続ポリシー null 時は監視モードを無効にする
+     * @throws IllegalStateException 既に受信中の場合
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        if (isActive())
+            throw new IllegalStateException("Already started");
+        this.reconnectPolicy = policy;
+    }
+
+    /**
+     * 受信フレームの間引き条件を設定する。
+     *
+     * <pre>
+     * 間引かれたフレームは part ヘッダの受信時点で破棄され、受信バッファへのコピーも callback 呼び出しも行われない。
+     * Content-Length が既知の part は長さ分を読み飛ばし、不明な part は次の boundary まで読み捨てる。
+     * {@link #start(int, int)} 前に呼び出すこと。
+     * </pre>
+     *
+     * @param sampler 間引き条件 null 時は全フレームを通知する
+     * @throws IllegalStateException 既に受信中の場合
+     */
+    public synchronized void setFrameSampler(FrameSampler sampler) {
+        if (isActive())
+            throw new IllegalStateException("Already started");
+        this.frameSampler = sampler;
+    }
+
+    /**
+     * @return 監視モードでの再接続成功回数 (再接続後にフレームを受信した回数)
+     */
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return 直近の切断から再接続後の最初のフレーム受信までの時間 (ms)
+     */
+    public long getLastGapMillis() {
+        return lastGapMillis;
+    }
+
+    /**
+     * @return 切断から再接続後の最初のフレーム受信までの時間の最大値 (ms)
+     */
+    public long getMaxGapMillis() {
+        return maxGapMillis;
+    }
+
+    /**
+     * @return 切断から再接続後の最初のフレーム受信までの時間の累計 (ms)
+     */
+    public long getTotalGapMillis() {
+        return totalGapMillis;
+    }
+
+    /**
+     * @return 切断中の場合は切断からの経過時間 (ms) 接続中は 0
+     */
+    public long getCurrentGapMillis() {
+        long since = disconnectedSince;
+        return (since == 0) ? 0 : System.currentTimeMillis() - since;
+    }
+
     /**
      * MJPEG の受信を開始する。
      *
@@ -248,7 +467,7 @@ public class MjpegHTTPReader {
         RequestConfig config = RequestConfig.custom()
                 .setConnectTimeout(connecte_timeout)
                 .setSocketTimeout(read_timeout).build();
-        HttpClient httpclient;
+        CloseableHttpClient httpclient;
         if (credential == null) {
             httpclient = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
         } else {
@@ -257,6 +476,111 @@ public class MjpegHTTPReader {
             httpclient = HttpClientBuilder.create().setDefaultCredentialsProvider(provider).setDefaultRequestConfig(config).build();
         }
 
+        final ReconnectPolicy policy = reconnectPolicy;
+        OpenedStream first_stream = null;
+        if (policy == null) {
+            // 非監視モードでは最初の接続失敗を呼び出し元に通知する
+            try {
+                first_stream = openStream(httpclient);
+            } catch (IOException e) {
+                httpclient.close();
+                throw e;
+            }
+        }
+
+        if (frameSampler != null) {
+            frameSampler.reset();
+        }
+
+        final OpenedStream opened_stream = first_stream;
+        threadLoop = true;
+        streamReadThread = new Thread(() -> {
+            logger.info("Start recv thread");
+
+            FrameDispatcher dispatcher = new FrameDispatcher();
+            OpenedStream stream = opened_stream;
+            int attempt = 0;
+            try {
+                while (threadLoop) {
+                    if (stream == null) {
+                        // (再)接続
+                        long delay = policy.getDelay(attempt);
+                        if (0 < delay) {
+                            logger.debug("Wait {} ms before reconnecting", delay);
+                            Thread.sleep(delay);
+                        }
+                        attempt++;
+                        try {
+                            stream = openStream(httpclient);
+                        } catch (IOException e) {
+                            logger.info("Connection failed (attempt {}) : {}", attempt, e.getMessage());
+                            continue;
+                        }
+                    }
+
+                    dispatcher.startStream();
+                    boolean ended = receive(stream, dispatcher);
+                    stream = null;
+                    if (policy == null) {
+                        if (ended && streamClosedCallback != null) {
+                            streamClosedCallback.onStreamClosed();
+                        }
+                        break;
+                    }
+                    if (!threadLoop)
+                        break;
+                    if (dispatcher.isStreamUp()) {
+                        // フレームを受信できたストリームの切断 : 待ち時間無しで再接続する
+                        attempt = 0;
+                        disconnectedSince = System.currentTimeMillis();
+                        logger.info("Stream disconnected. Start reconnecting");
+                    } else {
+                        // フレームを受信する前に切断された : 接続失敗として待ち時間を延ばす
+                        if (disconnectedSince == 0)
+                            disconnectedSince = System.currentTimeMillis();
+                        logger.info("Stream closed before first frame (attempt {})", attempt);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Recv thread interrupted");
+            } finally {
+                disconnectedSince = 0;
+                try {
+                    httpclient.close();
+                } catch (IOException e) {
+                    logger.error("IOException when HttpClient closing", e);
+                }
+            }
+            threadLoop = false;
+            logger.info("Stop recv thread");
+            if (threadTerminatedCallback != null) {
+                threadTerminatedCallback.onFinished();
+            }
+        });
+
+        streamReadThread.start();
+    }
+
+    /**
+     * 接続済みの MJPEG ストリーム
+     */
+    private static class OpenedStream {
+        final HttpGet request;
+        final HttpEntity entity;
+        final String boundary;
+
+        OpenedStream(HttpGet request, HttpEntity entity, String boundary) {
+            this.request = request;
+            this.entity = entity;
+            this.boundary = boundary;
+        }
+    }
+
+    /**
+     * target に GET リクエストを送り、MJPEG ストリームのレスポンスであることを確認する
+     * @throws IOException 接続に失敗した場合, レスポンスが MJPEG ストリームでない場合
+     */
+    private OpenedStream openStream(HttpClient httpclient) throws IOException {
         HttpGet httpget = new HttpGet(target);
         HttpResponse response;
         try {
@@ -278,7 +602,7 @@ public class MjpegHTTPReader {
 
         HttpEntity entity = response.getEntity();
         Header content_type_header = entity.getContentType();
-        if (content_type_header.getElements().length == 0) {
+        if (content_type_header == null || content_type_header.getElements().length == 0) {
             httpget.abort();
             throw new IOException("HTTP Response should have a Content-type header");
         }
@@ -302,174 +626,208 @@ public class MjpegHTTPReader {
             throw new IOException("Content-type should have non-empty boundary option");
         }
 
-        // boundary バイト列作成
+        return new OpenedStream(httpget, entity, boundary_value);
+    }
+
+    /**
+     * ストリームを終端あるいはエラーまで受信する
+     * @return ストリームが終端した場合 true, エラーあるいは停止の場合 false
+     */
+    private boolean receive(OpenedStream stream, FrameDispatcher dispatcher) {
+        currentRequest = stream.request;
         // RFC2046 に反して、"--"を含むバウンダリ文字列そのものを boundary option に
-        // 設定するサーバ対策として、boundary_value 頭にある "--" は一端削除する。
-        // これにより、multipart body の末尾に "--" が残るが、 JPEG フレーム切り出し時に
-        // 切り捨てられるため、出力される JPEG フレームには影響しない。
-        String boundary_str = "--"+boundary_value.replaceFirst("--", "");
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
-        b.write(boundary_str.getBytes());
-        b.write((byte) 0x0d);
-        b.write((byte) 0x0a);
-        byte[] boundary = b.toByteArray();
+        // 設定するサーバ対策として、boundary 頭にある "--" は MultipartStreamParser で削除される。
+        MultipartStreamParser parser = new MultipartStreamParser(stream.boundary, dispatcher, receiveBufferSize);
+        try {
+            InputStream source_stream = stream.entity.getContent();
+            if (recvMetadataCallback != null) {
+                source_stream = dispatcher.stamp(source_stream);
+            }
+            while (threadLoop) {
+                if (parser.readFrom(source_stream) < 0 || parser.isFinished()) {
+                    logger.info("Stream ended");
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            if (threadLoop) {
+                logger.error("IOException when stream reading", e);
+            }
+        } finally {
+            // 無限長のストリームを読み切らずに接続を解放する
+            stream.request.abort();
+            currentRequest = null;
+        }
+        return false;
+    }
 
-        threadLoop = true;
-        streamReadThread = new Thread(() -> {
-            logger.info("Start recv thread");
+    /**
+     * 受信した part から JPEG フレームを取り出し、callback に渡す
+     */
+    private class FrameDispatcher implements MultipartStreamParser.PartListener {
+        // 計測カウンタ
+        private long recvFrames = 0;
+        private long recvBytes = 0;
+        private long skippedFrames = 0;
+        private long errorFrames = 0;
+        private long notifyFrames = 0;
+        private long notifyBytes = 0;
+        private long lastShownStatistics = System.currentTimeMillis();
+
+        // メタデータ
+        private final FrameMetadata metadata = new FrameMetadata();
+        private long sequence = 0;
+        private long partSequence = -1;
+        private long partArrivalNanos = 0;
+        private long partArrivalMillis = 0;
+        private long lastReadNanos = 0;
+        private long lastReadMillis = 0;
+        private boolean streamUp = false;   // 現在のストリームでフレームを受信済み
 
-            final byte[] SOI = new byte[]{(byte) 0xff, (byte) 0xd8};    // JPEG SOI
-            final byte[] EOI = new byte[]{(byte) 0xff, (byte) 0xd9};    // JPEG EOI
-            // multipart の ヘッダ/ボディ境界
-            final byte[] deleimter_of_header = new byte[]{(byte) 0x0d, (byte) 0x0a, (byte) 0x0d, (byte) 0x0a};
-            // 計測カウンタ
-            long recv_frames = 0;
-            long recv_bytes = 0;
-            long error_frames = 0;
-            long notify_frames = 0;
-            long notify_bytes = 0;
-            long last_shown_statistics = System.currentTimeMillis();
-            // 受信バッファ
-            byte[] recv_buf = new byte[receiveBufferSize];
-
-            try (final InputStream source_stream = entity.getContent();
-                 final StreamSplitter splitter = new StreamSplitter(source_stream, boundary)) {
+        /**
+         * 新しいストリームの受信開始時に呼び出す
+         */
+        void startStream() {
+            streamUp = false;
+        }
 
-                while (threadLoop) {
-                    logger.trace("Wait next stream");
-                    InputStream is = splitter.nextStream();
-                    if (is == null) {
-                        logger.info("Stream ended");
-                        if (streamClosedCallback != null) {
-                            streamClosedCallback.onStreamClosed();
-                        }
-                        break;
-                    }
+        /**
+         * @return 現在のストリームでフレームを受信済みの場合 true
+         */
+        boolean isStreamUp() {
+            return streamUp;
+        }
 
-                    // boundary 間のデータ受信
-                    int off = 0;
-                    ByteArrayOutputStream bos = null;   // recv_buf overflow 時用代替バッファ
-
-                    logger.trace("Wait receiving");
-                    while (true) {
-                        int len = is.read(recv_buf, off, recv_buf.length - off);
-                        if (len == -1)
-                            break;
-
-                        if (bos != null) {
-                            bos.write(recv_buf, 0, len);
-                            off = 0;
-                        } else {
-                            off += len;
-                            if (recv_buf.length == off) {
-                                logger.debug("Pre-defined buffer is overflowed. Switch to ByteArrayOutputStream");
-                                // recv_buf overflow -> switch to ByteArrayOutputStream
-                                bos = new ByteArrayOutputStream();
-                                bos.write(recv_buf, 0, recv_buf.length);
-                            }
-                        }
-                    }
+        /**
+         * ストリームの最初のフレーム受信時に、切断中であれば再接続までの時間を計上する
+         */
+        private void onFirstFrame() {
+            streamUp = true;
+            long since = disconnectedSince;
+            if (since != 0) {
+                long gap = System.currentTimeMillis() - since;
+                lastGapMillis = gap;
+                maxGapMillis = Math.max(maxGapMillis, gap);
+                totalGapMillis += gap;
+                reconnectCount++;
+                disconnectedSince = 0;
+                logger.info("Reconnected after {} ms", gap);
+            }
+        }
 
-                    int recv_size = off;
-                    if (bos != null) {
-                        recv_buf = bos.toByteArray();
-                        recv_size = recv_buf.length;
-                        bos = null;
-                    }
+        /**
+         * 読み出し毎に読み出し時刻を記録する InputStream を返す
+         */
+        InputStream stamp(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int r = super.read();
+                    if (0 <= r)
+                        stampRead();
+                    return r;
+                }
 
-                    logger.trace("Recv {} byte", recv_size);
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int r = super.read(b, off, len);
+                    if (0 < r)
+                        stampRead();
+                    return r;
+                }
+            };
+        }
 
-                    recv_frames++;
-                    recv_bytes += recv_size;
+        private void stampRead() {
+            lastReadNanos = System.nanoTime();
+            lastReadMillis = System.currentTimeMillis();
+        }
 
-                    // TODO multipart のヘッダ確認
+        @Override
+        public void onPartStart() {
+            // part 先頭の boundary 行を含む読み出しの時刻をフレームの受信時刻とする
+            // (part ヘッダが複数の読み出しに分かれて届いた場合も、先頭を受信した時刻となる)
+            partArrivalNanos = lastReadNanos;
+            partArrivalMillis = lastReadMillis;
+        }
 
-                    // body 部の取り出し
-                    int body_pos = -1;
-                    found_jpegbody:
-                    for (int i = 0; i < recv_size; i++) {
-                        for (int j = 0; j < deleimter_of_header.length && i + j < recv_size; j++) {
-                            if (recv_buf[i + j] != deleimter_of_header[j])
-                                break;
-                            if (j == deleimter_of_header.length - 1) {  // found delimiter
-                                body_pos = i + deleimter_of_header.length;
-                                break found_jpegbody;
-                            }
-                        }
-                    }
-                    if (body_pos < 0) {
-                        logger.warn("Invalid chunk received. Cannot found chunk body.");
-                        error_frames++;
-                        continue;
-                    }
+        @Override
+        public boolean onPartHeader(MultipartStreamParser.PartHeader header) {
+            logger.trace("Recv part header. Content-Length {}", header.getContentLength());
+            partSequence = sequence++;
+            if (!streamUp)
+                onFirstFrame();
+            if (frameSampler != null && !frameSampler.sample()) {
+                skippedFrames++;
+                return false;   // body は MultipartStreamParser 内で読み捨てる
+            }
+            return true;
+        }
 
-                    // JPEG部の探索
-                    int pos_soi = -1;
-                    int pos_eoi = -1;
-                    found_SOI:
-                    for (int i = body_pos; i < recv_size; i++) {
-                        for (int j = 0; j < SOI.length && i + j < recv_size; j++) {
-                            if (recv_buf[i + j] != SOI[j])
-                                break;
-                            if (j == SOI.length - 1) {  // found soi
-                                pos_soi = i;
-                                break found_SOI;
-                            }
-                        }
-                    }
-                    found_EOI:
-                    for (int i = recv_size - EOI.length; pos_soi < i; i--) {    // 後ろから探索
-                        for (int j = 0; j < EOI.length && i + j < recv_size; j++) {
-                            if (recv_buf[i + j] != EOI[j])
-                                break;
-                            if (j == EOI.length - 1) {  // found eoi
-                                pos_eoi = i;
-                                break found_EOI;
-                            }
-                        }
-                    }
+        @Override
+        public void onPartBody(byte[] b, int off, int len, MultipartStreamParser.PartHeader header) {
+            logger.trace("Recv {} byte", len);
+
+            recvFrames++;
+            recvBytes += len;
+
+            int pos_soi;
+            int pos_eoi;
+            if (JpegMarkers.isWholeFrame(b, off, len)) {
+                // Content-Length 通りの JPEG フレーム : 探索不要
+                pos_soi = off;
+                pos_eoi = off + len - 2;
+            } else {
+                // JPEG部の探索
+                pos_soi = JpegMarkers.findSOI(b, off, off + len);
+                pos_eoi = JpegMarkers.findLastEOI(b, pos_soi, off + len);
+            }
 
-                    if (pos_soi < 0 || pos_eoi < 0) {
-                        logger.warn("Invalid JPEG frame received. Cannot found SOI or EOI.");
-                        error_frames++;
-                        continue;
-                    }
-                    logger.trace("Frame size {} byte", pos_eoi + 2 - pos_soi);
+            if (pos_soi < 0 || pos_eoi < 0) {
+                logger.warn("Invalid JPEG frame received. Cannot found SOI or EOI.");
+                errorFrames++;
+                return;
+            }
+            int frame_size = pos_eoi + 2 - pos_soi;
+            logger.trace("Frame size {} byte", frame_size);
 
-                    if (recvOnBufferCallback != null) {
-                        recvOnBufferCallback.onRecvFrame(recv_buf, pos_soi, pos_eoi + 2 - pos_soi);
-                        notify_frames++;
-                        notify_bytes += (pos_eoi + 2 - pos_soi);
-                    }
-                    if (recvCallback != null) {
-                        byte[] jpeg_frame = Arrays.copyOfRange(recv_buf, pos_soi, pos_eoi + 2);
-                        recvCallback.onRecvFrame(jpeg_frame);
-                        notify_frames++;
-                        notify_bytes += jpeg_frame.length;
-                    }
-                    if (StatisticsDispleyPeriod < System.currentTimeMillis() - last_shown_statistics) {
-                        last_shown_statistics = System.currentTimeMillis();
-                        logger.debug("Statistics [Frames Recv: {}, Send: {}, Error: {}, Size Recv: {}, Send: {}]",
-                                recv_frames, notify_frames, error_frames,
-                                recv_bytes, notify_bytes);
-                    }
-                }
-            } catch (IOException e) {
-                if (threadLoop) {
-                    logger.error("IOException when stream reading", e);
+            if (recvOnBufferCallback != null) {
+                recvOnBufferCallback.onRecvFrame(b, pos_soi, frame_size);
+                notifyFrames++;
+                notifyBytes += frame_size;
+            }
+            if (recvCallback != null) {
+                byte[] jpeg_frame = Arrays.copyOfRange(b, pos_soi, pos_eoi + 2);
+                recvCallback.onRecvFrame(jpeg_frame);
+                notifyFrames++;
+                notifyBytes += jpeg_frame.length;
+            }
+            if (recvPooledCallback != null) {
+                FrameBuffer frame = frameBufferPool.acquire(frame_size);
+                try {
+                    System.arraycopy(b, pos_soi, frame.getArray(), 0, frame_size);
+                    recvPooledCallback.onRecvFrame(frame);
+                } finally {
+                    frame.release();
                 }
+                notifyFrames++;
+                notifyBytes += frame_size;
             }
-            threadLoop = false;
-            logger.info("Stop recv thread");
-            if (threadTerminatedCallback != null) {
-                threadTerminatedCallback.onFinished();
+            if (recvMetadataCallback != null) {
+                metadata.set(partSequence, partArrivalNanos, partArrivalMillis, header);
+                recvMetadataCallback.onRecvFrame(b, pos_soi, frame_size, metadata);
+                notifyFrames++;
+                notifyBytes += frame_size;
             }
-        });
-
-        streamReadThread.start();
+            if (StatisticsDispleyPeriod < System.currentTimeMillis() - lastShownStatistics) {
+                lastShownStatistics = System.currentTimeMillis();
+                logger.debug("Statistics [Frames Recv: {}, Skip: {}, Send: {}, Error: {}, Size Recv: {}, Send: {}]",
+                        recvFrames, skippedFrames, notifyFrames, errorFrames,
+                        recvBytes, notifyBytes);
+            }
+        }
     }
 
-
     /**
      * MJPEG の受信を停止する。
      *
@@ -483,6 +841,10 @@ public class MjpegHTTPReader {
             return;
 
         threadLoop = false;
+        HttpGet request = currentRequest;
+        if (request != null) {
+            request.abort();    // 受信待ちの解除
+        }
         Thread.State thread_state = streamReadThread.getState();
         if (thread_state == Thread.State.BLOCKED ||
             thread_state == Thread.State.WAITING ||
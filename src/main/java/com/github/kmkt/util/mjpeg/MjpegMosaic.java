@@ -0,0 +1,323 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 複数の MJPEG ソースのフレームをタイル状に並べた 1 本の MJPEG を生成するクラス
+ *
+ * <pre>
+ * 各スロットには {@link #pourFrame(int, byte[])} で最新フレームを与える。
+ * 目標 FPS 毎に、前回以降に更新されたスロットのフレームをデコードプール上で並列に縮小デコードし、
+ * 合成した画像を JPEG にエンコードして出力先 {@link MjpegServlet} に供給する。
+ * 縮小デコードには {@link JpegCodec} の間引き読み込みを用いる。
+ * スロット毎に保持するのは最新フレームのみで、合成までに上書きされたフレームは破棄される。
+ * 出力先のクライアントが居ない間はデコード・エンコードを行わない。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class MjpegMosaic {
+    private static final Logger logger = LoggerFactory.getLogger(MjpegMosaic.class);
+
+    private final int columns;
+    private final int rows;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final long periodNanos;
+    private final float quality;
+    private final MjpegServlet output;
+    private final ExecutorService decodePool;
+    private final boolean ownDecodePool;
+
+    /** スロット毎の未合成の最新フレーム */
+    private final AtomicReferenceArray<FrameBuffer> pending;
+    /** 合成画像 */
+    private final BufferedImage canvas;
+
+    private ScheduledExecutorService ticker = null;
+    /** stop 後は供給されたフレームを保持しない */
+    private volatile boolean stopped = false;
+
+    // statistics
+    private final AtomicLong composedFrames = new AtomicLong();
+    private final AtomicLong decodedFrames = new AtomicLong();
+    private final AtomicLong overwrittenFrames = new AtomicLong();
+    private final AtomicLong errorFrames = new AtomicLong();
+    private volatile long lastComposeNanos = 0;
+
+    /**
+     * columns x rows のモザイクを生成する。デコードプールは CPU 数のスレッドで生成される。
+     *
+     * @param columns 横方向のタイル数 1 以上
+     * @param rows 縦方向のタイル数 1 以上
+     * @param tile_width タイルの幅 (pixel) 1 以上
+     * @param tile_height タイルの高さ (pixel) 1 以上
+     * @param fps 目標フレームレート 0 より大きい値
+     * @param quality 出力 JPEG の品質 0.0 - 1.0
+     * @param output 出力先 servlet notnull
+     * @throws NullPointerException output == null 時
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    public MjpegMosaic(int columns, int rows, int tile_width, int tile_height, double fps, float quality,
+            MjpegServlet output) {
+        this(columns, rows, tile_width, tile_height, fps, quality, output, null);
+    }
+
+    /**
+     * columns x rows のモザイクを生成する。
+     *
+     * @param columns 横方向のタイル数 1 以上
+     * @param rows 縦方向のタイル数 1 以上
+     * @param tile_width タイルの幅 (pixel) 1 以上
+     * @param tile_height タイルの高さ (pixel) 1 以上
+     * @param fps 目標フレームレート 0 より大きい値
+     * @param quality 出力 JPEG の品質 0.0 - 1.0
+     * @param output 出力先 servlet notnull
+     * @param decode_pool デコードを行う ExecutorService null 時は CPU 数のスレッドで生成し、stop 時に shutdown する
+     * @throws NullPointerException output == null 時
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    public MjpegMosaic(int columns, int rows, int tile_width, int tile_height, double fps, float quality,
+            MjpegServlet output, ExecutorService decode_pool) {
+        Objects.requireNonNull(output, "output should not be null");
+        if (columns <= 0 || rows <= 0)
+            throw new IllegalArgumentException("columns and rows must be positive");
+        if (tile_width <= 0 || tile_height <= 0)
+            throw new IllegalArgumentException("tile_width and tile_height must be positive");
+        if (!(0 < fps))
+            throw new IllegalArgumentException("fps must be positive");
+        if (quality < 0.0f || 1.0f < quality)
+            throw new IllegalArgumentException("quality should be in [0.0, 1.0]");
+
+        this.columns = columns;
+        this.rows = rows;
+        this.tileWidth = tile_width;
+        this.tileHeight = tile_height;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        this.quality = quality;
+        this.output = output;
+        this.pending = new AtomicReferenceArray<>(columns * rows);
+        this.canvas = new BufferedImage(columns * tile_width, rows * tile_height, BufferedImage.TYPE_3BYTE_BGR);
+
+        if (decode_pool != null) {
+            this.decodePool = decode_pool;
+            this.ownDecodePool = false;
+        } else {
+            this.decodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "MjpegMosaic-decode");
+                t.setDaemon(true);
+                return t;
+            });
+            this.ownDecodePool = true;
+        }
+    }
+
+    /**
+     * @return スロット数 (columns x rows)
+     */
+    public int getNumOfSlots() {
+        return columns * rows;
+    }
+
+    /**
+     * スロットに JPEG フレームを供給する。
+     * frame は合成されるまで参照されるため、呼び出し後に内容を変更しないこと。
+     *
+     * @param slot スロット番号 (左上から行優先で 0 origin)
+     * @param frame JPEG フレームデータ notnull
+     * @throws IndexOutOfBoundsException slot が範囲外の場合
+     */
+    public void pourFrame(int slot, byte[] frame) {
+        Objects.requireNonNull(frame, "frame should not be null");
+        FrameBuffer buffer = FrameBuffer.wrap(frame);
+        pourFrame(slot, buffer);
+        buffer.release();
+    }
+
+    /**
+     * スロットに JPEG フレームを供給する。
+     * frame は合成されるまで retain され、合成後あるいは次のフレームで上書きされた時点で release される。
+     * {@link #stop()} 後に供給されたフレームは保持せずに破棄する。
+     * 呼び出し元が持つ参照は呼び出し元で release すること。
+     *
+     * @param slot スロット番号 (左上から行優先で 0 origin)
+     * @param frame JPEG フレームデータ notnull
+     * @throws IndexOutOfBoundsException slot が範囲外の場合
+     */
+    public void pourFrame(int slot, FrameBuffer frame) {
+        Objects.requireNonNull(frame, "frame should not be null");
+        if (slot < 0 || pending.length() <= slot)
+            throw new IndexOutOfBoundsException("slot is out of range : " + slot);
+
+        if (stopped)
+            return;
+
+        FrameBuffer old = pending.getAndSet(slot, frame.retain());
+        if (old != null) {
+            old.release();
+            overwrittenFrames.incrementAndGet();
+        }
+        if (stopped) {
+            // stop の解放処理と競合した場合、解放漏れが無いようここでも取り除く
+            FrameBuffer f = pending.getAndSet(slot, null);
+            if (f != null)
+                f.release();
+        }
+    }
+
+    /**
+     * スロットにフレームを供給する {@link MjpegHTTPReader} 用 callback を返す。
+     * @param slot スロット番号
+     * @return callback
+     */
+    public MjpegHTTPReader.RecvPooledFrameCallback sourceOf(int slot) {
+        if (slot < 0 || pending.length() <= slot)
+            throw new IndexOutOfBoundsException("slot is out of range : " + slot);
+        return frame -> pourFrame(slot, frame);
+    }
+
+    /**
+     * 合成を開始する。開始済みの場合は何もしない。
+     */
+    public synchronized void start() {
+        if (ticker != null)
+            return;
+        stopped = false;
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MjpegMosaic-compose");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::compose, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 合成を停止する。開始していない場合は何もしない。
+     * 保持していた未合成のフレームは release し、以降 {@link #start()} までに供給されたフレームは破棄する。
+     * デコードプールを内部で生成した場合はプールも停止するため、再開できない。
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (ticker == null)
+            return;
+        ticker.shutdown();
+        ticker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        ticker = null;
+        stopped = true;
+        if (ownDecodePool) {
+            decodePool.shutdown();
+        }
+        for (int i = 0; i < pending.length(); i++) {
+            FrameBuffer frame = pending.getAndSet(i, null);
+            if (frame != null)
+                frame.release();
+        }
+    }
+
+    /**
+     * 更新されたスロットを並列にデコード・縮小し、合成画像を出力する。
+     */
+    private void compose() {
+        try {
+            if (output.getNumOfClients() == 0)
+                return;     // 更新は保持したまま、クライアント接続時に合成する
+
+            long start = System.nanoTime();
+            List<Integer> slots = new ArrayList<>();
+            List<Future<BufferedImage>> tiles = new ArrayList<>();
+            for (int i = 0; i < pending.length(); i++) {
+                FrameBuffer frame = pending.getAndSet(i, null);
+                if (frame == null)
+                    continue;
+                slots.add(i);
+                tiles.add(decodePool.submit(() -> {
+                    try {
+                        BufferedImage image = JpegCodec.decode(frame.getArray(), 0, frame.getLength(), tileWidth, tileHeight);
+                        return JpegCodec.scale(image, tileWidth, tileHeight);
+                    } finally {
+                        frame.release();
+                    }
+                }));
+            }
+            if (tiles.isEmpty())
+                return;
+
+            Graphics2D g = canvas.createGraphics();
+            try {
+                for (int i = 0; i < tiles.size(); i++) {
+                    int slot = slots.get(i);
+                    try {
+                        BufferedImage tile = tiles.get(i).get();
+                        g.drawImage(tile, (slot % columns) * tileWidth, (slot / columns) * tileHeight, null);
+                        decodedFrames.incrementAndGet();
+                    } catch (ExecutionException e) {
+                        errorFrames.incrementAndGet();
+                        logger.warn("Failed to decode a frame of slot {} : {}", slot, e.getCause().toString());
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+
+            output.pourFrame(JpegCodec.encode(canvas, quality));
+            composedFrames.incrementAndGet();
+            lastComposeNanos = System.nanoTime() - start;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            // 例外で scheduleAtFixedRate が停止しないよう、ここで止める
+            logger.error("Failed to compose mosaic", e);
+        }
+    }
+
+    /**
+     * @return 出力した合成フレーム数
+     */
+    public long getNumOfComposedFrames() {
+        return composedFrames.get();
+    }
+
+    /**
+     * @return デコードしたフレーム数
+     */
+    public long getNumOfDecodedFrames() {
+        return decodedFrames.get();
+    }
+
+    /**
+     * @return 合成前に次のフレームで上書きされ、破棄されたフレーム数
+     */
+    public long getNumOfOverwrittenFrames() {
+        return overwrittenFrames.get();
+    }
+
+    /**
+     * @return デコードに失敗したフレーム数
+     */
+    public long getNumOfErrorFrames() {
+        return errorFrames.get();
+    }
+
+    /**
+     * @return 直近の合成に要した時間 (ns)
+     */
+    public long getLastComposeNanos() {
+        return lastComposeNanos;
+    }
+}
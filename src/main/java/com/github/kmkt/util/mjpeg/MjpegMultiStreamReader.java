@@ -0,0 +1,731 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.kmkt.util.mjpeg.MjpegHTTPReader.RecvFrameCallback;
+import com.github.kmkt.util.mjpeg.MjpegHTTPReader.RecvFrameOnBufferCallback;
+import com.github.kmkt.util.mjpeg.MjpegHTTPReader.StreamClosedCallback;
+
+/**
+ * 複数の MJPEG over HTTP ストリームを少数の I/O スレッドで受信し、callback するクラス
+ * <pre>
+ * {@link MjpegHTTPReader} はストリーム毎に HttpClient と受信スレッドを持つが、このクラスは
+ * JDK の non-blocking SocketChannel と Selector を用い、全ストリームで I/O スレッドを共有する。
+ * 受信データは各ストリームの {@link MultipartStreamParser} に逐次与えられ、
+ * JPEG フレームは {@link RecvFrameCallback} あるいは {@link RecvFrameOnBufferCallback} で通知される。
+ * callback は I/O スレッド上で呼び出されるため、時間のかかる処理は別スレッドに引き渡すこと。
+ * 接続先の名前解決はブロックするため、I/O スレッドではなく少数の名前解決用スレッドで順に行う。
+ * 名前解決の待ち・実行中も接続タイムアウトの対象とし、connect_timeout 以内に解決できない場合は接続失敗とする。
+ * http スキームのみ対応 (https 非対応)
+ * スレッドセーフ
+ * {@code
+ * MjpegMultiStreamReader reader = new MjpegMultiStreamReader(2, 3000, 10000);
+ * for (URI camera : cameras) {
+ *   reader.addStream(camera, null, null, frame -> {...}, () -> {...});
+ * }
+ * ...
+ * reader.shutdown();
+ * }
+ * </pre>
+ * License : MIT License
+ */
+public class MjpegMultiStreamReader {
+    private static final Logger logger = LoggerFactory.getLogger(MjpegMultiStreamReader.class);
+
+    /** 集計情報のログ出力間隔 (ms)*/
+    public static long StatisticsDispleyPeriod = 60*1000;
+    /** ソケット読み込みバッファサイズ (バイト) */
+    private static final int READ_BUFFER_SIZE = 64*1024;
+    /** HTTP レスポンスヘッダの最大サイズ (バイト) */
+    private static final int MAX_RESPONSE_HEADER_SIZE = 16*1024;
+    /** タイムアウト確認間隔 (ms) */
+    private static final long TIMEOUT_CHECK_PERIOD = 500;
+    /** 名前解決用スレッド数 */
+    private static final int RESOLVER_THREADS = 4;
+
+    private final IOThread[] ioThreads;
+    /** 名前解決用スレッド */
+    private final ExecutorService resolver;
+    private final AtomicInteger nextThread = new AtomicInteger();
+    private final int connectTimeout;
+    private final int readTimeout;
+    private volatile boolean running = true;
+
+    /**
+     * インスタンスを生成し、I/O スレッドを開始する。
+     * @param io_threads I/O スレッド数 1 以上の整数
+     * @param connect_timeout 接続タイムアウト (ms) 1以上の整数
+     * @param read_timeout 受信タイムアウト (ms) 1以上の整数
+     * @throws IllegalArgumentException 引数に 0 以下を与えた場合
+     * @throws IOException Selector の生成に失敗した場合
+     */
+    public MjpegMultiStreamReader(int io_threads, int connect_timeout, int read_timeout) throws IOException {
+        if (io_threads <= 0)
+            throw new IllegalArgumentException("io_threads must be positive");
+        if (connect_timeout <= 0)
+            throw new IllegalArgumentException("connect_timeout must be positive");
+        if (read_timeout <= 0)
+            throw new IllegalArgumentException("read_timeout must be positive");
+
+        this.connectTimeout = connect_timeout;
+        this.readTimeout = read_timeout;
+        this.resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, r -> {
+            Thread t = new Thread(r, "MjpegMultiStreamReader-resolver");
+            t.setDaemon(true);
+            return t;
+        });
+        this.ioThreads = new IOThread[io_threads];
+        for (int i = 0; i < io_threads; i++) {
+            ioThreads[i] = new IOThread(Selector.open());
+        }
+        for (int i = 0; i < io_threads; i++) {
+            Thread t = new Thread(ioThreads[i], "MjpegMultiStreamReader-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * 受信中のストリームを表すハンドル
+     */
+    public interface StreamHandle {
+        /**
+         * @return MJPEG 配信元 URL
+         */
+        URI getTarget();
+
+        /**
+         * @return 受信中の場合 true
+         */
+        boolean isActive();
+
+        /**
+         * ストリームの受信を停止する。
+         * StreamClosedCallback は呼び出されない。
+         */
+        void close();
+    }
+
+    /**
+     * ストリームの受信を開始する。
+     * 受信できた JPEG フレームのコピーが recv_callback に渡される。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param user Basic 認証ユーザ名 null 時は Basic認証を行わない
+     * @param pass Basic 認証パスワード null 時は Basic認証を行わない
+     * @param recv_callback フレーム受信毎に呼び出される callback notnull
+     * @param stream_closed_callback 接続失敗・切断時に呼び出される callback null 時は無視される
+     * @return ストリームのハンドル
+     * @throws NullPointerException target, recv_callback == null 時
+     * @throws IllegalArgumentException target が http スキームでない場合
+     * @throws IllegalStateException shutdown 後の場合
+     */
+    public StreamHandle addStream(URI target, String user, String pass,
+            RecvFrameCallback recv_callback, StreamClosedCallback stream_closed_callback) {
+        Objects.requireNonNull(recv_callback, "recv_callback should not be null");
+        return addStream(target, user, pass,
+                (b, off, len) -> recv_callback.onRecvFrame(Arrays.copyOfRange(b, off, off + len)),
+                stream_closed_callback);
+    }
+
+    /**
+     * ストリームの受信を開始する。
+     * JPEG フレームを含む受信バッファと JPEG フレーム位置が recv_callback に渡される。
+     * 受信バッファはストリームで再利用されるため、必要があればコピーを作成すること。
+     *
+     * @param target MJPEG 配信元 URL notnull
+     * @param user Basic 認証ユーザ名 null 時は Basic認証を行わない
+     * @param pass Basic 認証パスワード null 時は Basic認証を行わない
+     * @param recv_callback フレーム受信毎に呼び出される callback notnull
+     * @param stream_closed_callback 接続失敗・切断時に呼び出される callback null 時は無視される
+     * @return ストリームのハンドル
+     * @throws NullPointerException target, recv_callback == null 時
+     * @throws IllegalArgumentException target が http スキームでない場合
+     * @throws IllegalStateException shutdown 後の場合
+     */
+    public StreamHandle addStream(URI target, String user, String pass,
+            RecvFrameOnBufferCallback recv_callback, StreamClosedCallback stream_closed_callback) {
+        Objects.requireNonNull(target, "target should not be null");
+        Objects.requireNonNull(recv_callback, "recv_callback should not be null");
+        if (!"http".equalsIgnoreCase(target.getScheme()))
+            throw new IllegalArgumentException("Only http scheme is supported");
+        if (target.getHost() == null)
+            throw new IllegalArgumentException("target should have host");
+        if (!running)
+            throw new IllegalStateException("Already shutdown");
+
+        IOThread io = ioThreads[Math.floorMod(nextThread.getAndIncrement(), ioThreads.length)];
+        Connection conn = new Connection(io, target, user, pass, recv_callback, stream_closed_callback);
+        io.resolving.add(conn);     // 名前解決中も I/O スレッドで接続タイムアウトを判定する
+        try {
+            resolver.execute(() -> {
+                if (!conn.isActive())   // 名前解決待ちの間にタイムアウトあるいは close された
+                    return;
+                // 名前解決に失敗した場合は unresolved のまま I/O スレッドに渡し、接続失敗とする
+                int port = (target.getPort() < 0) ? 80 : target.getPort();
+                conn.address = new InetSocketAddress(target.getHost(), port);
+                io.register(conn);
+            });
+        } catch (RejectedExecutionException e) {
+            io.resolving.remove(conn);
+            throw new IllegalStateException("Already shutdown", e);
+        }
+        return conn;
+    }
+
+    /**
+     * 全ストリームの受信を停止し、I/O スレッドを終了する。
+     */
+    public void shutdown() {
+        running = false;
+        resolver.shutdownNow();
+        for (IOThread io : ioThreads) {
+            io.selector.wakeup();
+        }
+    }
+
+    /**
+     * Selector を 1 つ持つ I/O スレッド
+     */
+    private class IOThread implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        /** 名前解決中の Connection */
+        private final Set<Connection> resolving = ConcurrentHashMap.newKeySet();
+        // 全 Connection で共有する読み込みバッファ
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        IOThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Connection conn) {
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            logger.info("Start I/O thread");
+            long last_check = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(TIMEOUT_CHECK_PERIOD);
+
+                    Connection conn;
+                    while ((conn = pending.poll()) != null) {
+                        resolving.remove(conn);
+                        conn.open(selector);
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            c.handle(key, readBuffer);
+                        } catch (CancelledKeyException e) {
+                            // closed
+                        } catch (IOException e) {
+                            c.fail(e.getMessage(), e);
+                        } catch (RuntimeException e) {
+                            c.fail("Unexpected exception", e);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (TIMEOUT_CHECK_PERIOD <= now - last_check) {
+                        last_check = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ((Connection) key.attachment()).checkTimeout(now);
+                        }
+                        for (Connection c : resolving) {
+                            c.checkTimeout(now);
+                            if (!c.isActive())
+                                resolving.remove(c);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.error("Exception occured in I/O thread", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                for (Connection c : resolving) {
+                    c.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error("Exception occured when Selector closing", e);
+                }
+                logger.info("Stop I/O thread");
+            }
+        }
+    }
+
+    /** 接続状態 */
+    private enum State {
+        CONNECTING, SENDING_REQUEST, RESPONSE_HEADER, BODY, CLOSED,
+    }
+
+    /**
+     * 1 ストリームの接続
+     * close 以外は I/O スレッドからのみ操作される
+     * close は任意のスレッドから呼ばれるため、close が参照するフィールドは volatile とする
+     */
+    private class Connection implements StreamHandle, MultipartStreamParser.PartListener {
+        private final IOThread io;
+        private final URI target;
+        private final String authorization;
+        private final RecvFrameOnBufferCallback recvCallback;
+        private final StreamClosedCallback streamClosedCallback;
+
+        private volatile State state = State.CONNECTING;
+        /** 名前解決済みの接続先 名前解決用スレッドで設定される */
+        private volatile InetSocketAddress address = null;
+        private volatile SocketChannel channel = null;
+        private volatile SelectionKey key = null;
+        private long lastActivity = System.currentTimeMillis();
+
+        private ByteBuffer request = null;
+        private byte[] header = new byte[1024];
+        private int headerLength = 0;
+        private MultipartStreamParser parser = null;
+        private ChunkedDecoder chunked = null;
+
+        // 計測カウンタ
+        private long recvFrames = 0;
+        private long errorFrames = 0;
+        private long recvBytes = 0;
+        private long lastShownStatistics = System.currentTimeMillis();
+
+        Connection(IOThread io, URI target, String user, String pass,
+                RecvFrameOnBufferCallback recv_callback, StreamClosedCallback stream_closed_callback) {
+            this.io = io;
+            this.target = target;
+            this.recvCallback = recv_callback;
+            this.streamClosedCallback = stream_closed_callback;
+            if (user != null && pass != null) {
+                String cred = user + ":" + pass;
+                this.authorization = "Basic " + Base64.getEncoder().encodeToString(cred.getBytes(StandardCharsets.UTF_8));
+            } else {
+                this.authorization = null;
+            }
+        }
+
+        @Override
+        public URI getTarget() {
+            return target;
+        }
+
+        @Override
+        public boolean isActive() {
+            return state != State.CLOSED;
+        }
+
+        @Override
+        public void close() {
+            if (state == State.CLOSED)
+                return;
+            state = State.CLOSED;
+            release();
+            io.selector.wakeup();
+        }
+
+        /**
+         * SelectionKey と SocketChannel を解放する
+         */
+        private void release() {
+            SelectionKey k = key;
+            if (k != null) {
+                k.cancel();
+            }
+            SocketChannel ch = channel;
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    logger.error("Exception occured when SocketChannel closing", e);
+                }
+            }
+        }
+
+        /**
+         * 接続失敗・切断
+         */
+        void fail(String reason, Throwable e) {
+            if (state == State.CLOSED)
+                return;
+            if (e != null && !(e instanceof IOException)) {
+                logger.error("Stream {} closed : {}", target, reason, e);
+            } else {
+                logger.info("Stream {} closed : {}", target, reason);
+            }
+            close();
+            if (streamClosedCallback != null) {
+                streamClosedCallback.onStreamClosed();
+            }
+        }
+
+        void open(Selector selector) {
+            if (state == State.CLOSED)
+                return;
+            if (address.isUnresolved()) {
+                fail("Connection failed : unknown host " + target.getHost(), null);
+                return;
+            }
+            try {
+                SocketChannel ch = SocketChannel.open();
+                channel = ch;
+                ch.configureBlocking(false);
+                lastActivity = System.currentTimeMillis();
+                if (ch.connect(address)) {
+                    key = ch.register(selector, SelectionKey.OP_WRITE, this);
+                    startRequest();
+                } else {
+                    key = ch.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+                // channel, key の設定前に他スレッドから close された場合
+                if (state == State.CLOSED)
+                    release();
+            } catch (IOException e) {
+                fail("Connection failed " + e.getMessage(), e);
+            }
+        }
+
+        void checkTimeout(long now) {
+            long timeout = (state == State.CONNECTING) ? connectTimeout : readTimeout;
+            if (timeout < now - lastActivity) {
+                fail("Timeout in " + state, null);
+            }
+        }
+
+        void handle(SelectionKey key, ByteBuffer read_buffer) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                lastActivity = System.currentTimeMillis();
+                startRequest();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable() && state == State.SENDING_REQUEST) {
+                channel.write(request);
+                if (!request.hasRemaining()) {
+                    request = null;
+                    state = State.RESPONSE_HEADER;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                read_buffer.clear();
+                int n = channel.read(read_buffer);
+                if (n < 0) {
+                    fail("Stream ended", null);
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                onReceive(read_buffer.array(), 0, n);
+            }
+        }
+
+        private void startRequest() {
+            String path = target.getRawPath();
+            if (path == null || path.isEmpty())
+                path = "/";
+            if (target.getRawQuery() != null)
+                path += "?" + target.getRawQuery();
+            String host = target.getHost() + ((target.getPort() < 0) ? "" : ":" + target.getPort());
+
+            StringBuilder req = new StringBuilder();
+            req.append("GET ").append(path).append(" HTTP/1.1\r\n");
+            req.append("Host: ").append(host).append("\r\n");
+            req.append("Accept: multipart/x-mixed-replace, */*\r\n");
+            if (authorization != null)
+                req.append("Authorization: ").append(authorization).append("\r\n");
+            req.append("\r\n");
+            request = ByteBuffer.wrap(req.toString().getBytes(StandardCharsets.ISO_8859_1));
+            state = State.SENDING_REQUEST;
+        }
+
+        private void onReceive(byte[] b, int off, int len) throws IOException {
+            if (state == State.RESPONSE_HEADER) {
+                // レスポンスヘッダ終端 (CRLFCRLF) を探す
+                int consumed = 0;
+                int body_pos = -1;
+                while (consumed < len) {
+                    if (header.length == headerLength) {
+                        if (MAX_RESPONSE_HEADER_SIZE <= headerLength)
+                            throw new IOException("Too large response header");
+                        header = Arrays.copyOf(header, header.length * 2);
+                    }
+                    header[headerLength++] = b[off + consumed++];
+                    if (4 <= headerLength &&
+                        header[headerLength - 4] == 0x0d && header[headerLength - 3] == 0x0a &&
+                        header[headerLength - 2] == 0x0d && header[headerLength - 1] == 0x0a) {
+                        body_pos = off + consumed;
+                        break;
+                    }
+                }
+                if (body_pos < 0)
+                    return;
+
+                ResponseHead head = ResponseHead.parse(new String(header, 0, headerLength - 4, StandardCharsets.ISO_8859_1));
+                logger.debug("Content-type '{}'", head.getContentType());
+                parser = new MultipartStreamParser(head.getBoundary(), this);
+                if (head.isChunked()) {
+                    chunked = new ChunkedDecoder(parser);
+                }
+                logger.info("Start receiving {}", target);
+                header = null;
+                state = State.BODY;
+                len -= (body_pos - off);
+                off = body_pos;
+            }
+            if (state == State.BODY && 0 < len) {
+                recvBytes += len;
+                if (chunked != null) {
+                    chunked.feed(b, off, len);
+                } else {
+                    parser.feed(b, off, len);
+                }
+                if (parser.isFinished()) {
+                    fail("Stream ended", null);
+                }
+            }
+        }
+
+        @Override
+        public boolean onPartHeader(MultipartStreamParser.PartHeader header) {
+            return true;
+        }
+
+        @Override
+        public void onPartBody(byte[] b, int off, int len, MultipartStreamParser.PartHeader header) {
+            int pos_soi;
+            int pos_eoi;
+            if (JpegMarkers.isWholeFrame(b, off, len)) {
+                pos_soi = off;
+                pos_eoi = off + len - 2;
+            } else {
+                pos_soi = JpegMarkers.findSOI(b, off, off + len);
+                pos_eoi = JpegMarkers.findLastEOI(b, pos_soi, off + len);
+            }
+            if (pos_soi < 0 || pos_eoi < 0) {
+                logger.warn("Invalid JPEG frame received from {}. Cannot found SOI or EOI.", target);
+                errorFrames++;
+                return;
+            }
+
+            recvFrames++;
+            try {
+                recvCallback.onRecvFrame(b, pos_soi, pos_eoi + 2 - pos_soi);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected exception in RecvFrameCallback", e);
+            }
+            if (StatisticsDispleyPeriod < System.currentTimeMillis() - lastShownStatistics) {
+                lastShownStatistics = System.currentTimeMillis();
+                logger.debug("Statistics of {} [Frames Recv: {}, Error: {}, Size Recv: {}]",
+                        target, recvFrames, errorFrames, recvBytes);
+            }
+        }
+    }
+
+    /**
+     * MJPEG ストリームの HTTP レスポンスヘッダ
+     */
+    public static final class ResponseHead {
+        private final String contentType;
+        private final String boundary;
+        private final boolean chunked;
+
+        private ResponseHead(String content_type, String boundary, boolean chunked) {
+            this.contentType = content_type;
+            this.boundary = boundary;
+            this.chunked = chunked;
+        }
+
+        /**
+         * ステータス行とヘッダを解析し、multipart/x-mixed-replace の 200 レスポンスであることを検証する。
+         * @param response ステータス行からヘッダ末尾まで (終端の空行を含まない) notnull
+         * @return 解析結果
+         * @throws IOException 200 でない場合、Content-Type が multipart/x-mixed-replace でない場合、boundary が無い場合
+         */
+        public static ResponseHead parse(String response) throws IOException {
+            Objects.requireNonNull(response, "response should not be null");
+
+            String[] lines = response.split("\r\n");
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/"))
+                throw new IOException("Invalid HTTP response " + lines[0]);
+            if (!"200".equals(status[1]))
+                throw new IOException("HTTP Response is not 200 but " + status[1]);
+
+            String content_type = null;
+            boolean is_chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if ("Content-Type".equalsIgnoreCase(name)) {
+                    content_type = value;
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    is_chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+                }
+            }
+            if (content_type == null)
+                throw new IOException("HTTP Response should have a Content-type header");
+
+            String[] params = content_type.split(";");
+            if (!"multipart/x-mixed-replace".equalsIgnoreCase(params[0].trim()))
+                throw new IOException("Content-type is not multipart/x-mixed-replace but " + params[0].trim());
+
+            String boundary = null;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.toLowerCase(Locale.ENGLISH).startsWith("boundary=")) {
+                    boundary = p.substring("boundary=".length()).trim();
+                    if (2 <= boundary.length() && boundary.startsWith("\"") && boundary.endsWith("\""))
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                }
+            }
+            if (boundary == null || boundary.isEmpty() || "--".equals(boundary))
+                throw new IOException("Content-type should have non-empty boundary option");
+
+            return new ResponseHead(content_type, boundary, is_chunked);
+        }
+
+        /**
+         * @return Content-Type ヘッダの値
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return boundary パラメータ (引用符を除く)
+         */
+        public String getBoundary() {
+            return boundary;
+        }
+
+        /**
+         * @return Transfer-Encoding: chunked の場合 true
+         */
+        public boolean isChunked() {
+            return chunked;
+        }
+    }
+
+    /**
+     * Transfer-Encoding: chunked のデコーダ
+     * <pre>
+     * 受信データを任意の位置で分割して feed してよい。デコードしたデータは MultipartStreamParser に与える。
+     * MJPEG ストリームは終わらないため、最終 chunk (サイズ 0) は切断として IOException とする。
+     * 非スレッドセーフ
+     * </pre>
+     */
+    public static final class ChunkedDecoder {
+        /** chunk サイズ行の最大長 */
+        private static final int MAX_LINE_LENGTH = 256;
+
+        private final MultipartStreamParser parser;
+        private final StringBuilder line = new StringBuilder();
+        private long remaining = 0;
+        private boolean inData = false;     // chunk データ受信中
+        private boolean inDataEnd = false;  // chunk データ後の CRLF 受信中
+
+        /**
+         * @param parser デコードしたデータを与える parser notnull
+         */
+        public ChunkedDecoder(MultipartStreamParser parser) {
+            this.parser = Objects.requireNonNull(parser, "parser should not be null");
+        }
+
+        /**
+         * chunked エンコードされたデータを与える
+         * @param b データ
+         * @param off データ開始位置
+         * @param len データ長
+         * @throws IOException chunk サイズ行が不正な場合、最終 chunk を受信した場合
+         */
+        public void feed(byte[] b, int off, int len) throws IOException {
+            int limit = off + len;
+            while (off < limit) {
+                if (inData) {
+                    int n = (int) Math.min(remaining, limit - off);
+                    parser.feed(b, off, n);
+                    off += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        inData = false;
+                        inDataEnd = true;
+                    }
+                    continue;
+                }
+
+                byte c = b[off++];
+                if (c != 0x0a) {
+                    if (c != 0x0d)
+                        line.append((char) (c & 0xff));
+                    if (MAX_LINE_LENGTH < line.length())
+                        throw new IOException("Invalid chunk size line");
+                    continue;
+                }
+
+                // 行末
+                if (inDataEnd) {
+                    inDataEnd = false;
+                    line.setLength(0);
+                    continue;
+                }
+                String size = line.toString();
+                line.setLength(0);
+                int ext = size.indexOf(';');
+                if (0 <= ext)
+                    size = size.substring(0, ext);
+                size = size.trim();
+                if (size.isEmpty())
+                    continue;   // trailer 等
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size " + size);
+                }
+                if (remaining < 0)
+                    throw new IOException("Invalid chunk size " + size);
+                if (remaining == 0)
+                    throw new IOException("Last chunk received");
+                inData = true;
+            }
+        }
+    }
+}
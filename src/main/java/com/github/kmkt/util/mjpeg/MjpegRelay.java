@@ -0,0 +1,263 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 1 台の MJPEG over HTTP 配信元を {@link MjpegServlet} で中継するクラス
+ *
+ * <pre>
+ * 配信元からの受信は {@link MjpegHTTPReader} で行い、受信フレームは {@link FrameBufferPool} のバッファに
+ * 1 回だけコピーされ、コピー無しで全クライアントに共有される。
+ * 配信元への接続はクライアントが 1 つ以上接続している間だけ行い、クライアントが居なくなってから
+ * idle_grace の間クライアントが接続しなければ切断する。
+ * 配信元との切断時は {@link ReconnectPolicy} に従い再接続する。
+ * </pre>
+ *
+ * License : MIT License
+ */
+public class MjpegRelay {
+    private static final Logger logger = LoggerFactory.getLogger(MjpegRelay.class);
+
+    /** 標準の切断猶予時間 (ms) */
+    public static final long DEFAULT_IDLE_GRACE = 10*1000;
+    /** 標準の接続タイムアウト (ms) */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5*1000;
+    /** 標準の Socket Read タイムアウト (ms) */
+    public static final int DEFAULT_READ_TIMEOUT = 10*1000;
+
+    private final MjpegServlet servlet;
+    private final MjpegHTTPReader reader;
+    private final long idleGrace;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /** 接続・切断処理用スレッド */
+    private volatile ScheduledExecutorService controlThread = null;
+    /** 予約中の切断処理 */
+    private ScheduledFuture<?> idleDisconnect = null;
+
+    // statistics
+    private final AtomicLong upstreamConnects = new AtomicLong();
+    private final AtomicLong upstreamFrames = new AtomicLong();
+    private final AtomicLong upstreamBytes = new AtomicLong();
+    private final AtomicLong relayNanos = new AtomicLong();
+
+    /**
+     * 配信元 upstream を servlet で中継するインスタンスを生成する。
+     * 切断猶予時間、タイムアウトは標準値となる。
+     *
+     * @param upstream MJPEG 配信元 URL notnull
+     * @param servlet 中継先 servlet notnull
+     * @throws NullPointerException upstream, servlet == null 時
+     */
+    public MjpegRelay(URI upstream, MjpegServlet servlet) {
+        this(upstream, null, null, servlet, new FrameBufferPool(), DEFAULT_IDLE_GRACE,
+                DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Basic 認証付き配信元 upstream を servlet で中継するインスタンスを生成する。
+     *
+     * @param upstream MJPEG 配信元 URL notnull
+     * @param user Basic 認証ユーザ名 null 時は Basic認証を行わない
+     * @param pass Basic 認証パスワード null 時は Basic認証を行わない
+     * @param servlet 中継先 servlet notnull
+     * @param pool フレームバッファのプール notnull
+     * @param idle_grace クライアントが居なくなってから配信元を切断するまでの猶予時間 (ms) 0 以上
+     * @param connect_timeout 接続タイムアウト (ms) 1以上の整数
+     * @param read_timeout Socket Read タイムアウト (ms) 1以上の整数
+     * @throws NullPointerException upstream, servlet, pool == null 時
+     * @throws IllegalArgumentException idle_grace が負, connect_timeout, read_timeout に 0 以下を与えた場合
+     */
+    public MjpegRelay(URI upstream, String user, String pass, MjpegServlet servlet, FrameBufferPool pool,
+            long idle_grace, int connect_timeout, int read_timeout) {
+        Objects.requireNonNull(servlet, "servlet should not be null");
+        if (idle_grace < 0)
+            throw new IllegalArgumentException("idle_grace should not be negative");
+        if (connect_timeout <= 0)
+            throw new IllegalArgumentException("connect_timeout must be positive");
+        if (read_timeout <= 0)
+            throw new IllegalArgumentException("read_timeout must be positive");
+
+        this.servlet = servlet;
+        this.idleGrace = idle_grace;
+        this.connectTimeout = connect_timeout;
+        this.readTimeout = read_timeout;
+        this.reader = new MjpegHTTPReader(upstream, pool, this::relay, null, null, user, pass);
+        this.reader.setReconnectPolicy(new ReconnectPolicy());
+    }
+
+    private void relay(FrameBuffer frame) {
+        upstreamFrames.incrementAndGet();
+        upstreamBytes.addAndGet(frame.getLength());
+        long start = System.nanoTime();
+        servlet.pourFrame(frame);
+        relayNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * 中継を開始する。
+     * 既にクライアントが接続している場合は配信元に接続する。
+     * 開始済みの場合は何もしない。
+     */
+    public synchronized void start() {
+        if (controlThread != null)
+            return;
+
+        controlThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MjpegRelay-control");
+            t.setDaemon(true);
+            return t;
+        });
+        servlet.setClientCountListener(count -> {
+            ScheduledExecutorService exec = controlThread;
+            if (exec != null && !exec.isShutdown()) {
+                exec.execute(this::update);
+            }
+        });
+        controlThread.execute(this::update);
+    }
+
+    /**
+     * 中継を停止し、配信元から切断する。
+     * 開始していない場合は何もしない。
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            if (controlThread == null)
+                return;
+            servlet.setClientCountListener(null);
+            exec = controlThread;
+            controlThread = null;
+        }
+        exec.shutdownNow();
+        exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        disconnect();
+    }
+
+    /**
+     * クライアント数に応じて配信元への接続状態を更新する。制御スレッドから呼び出される。
+     */
+    private void update() {
+        if (0 < servlet.getNumOfClients()) {
+            if (idleDisconnect != null) {
+                idleDisconnect.cancel(false);
+                idleDisconnect = null;
+            }
+            if (!reader.isActive()) {
+                connect();
+            }
+        } else if (reader.isActive() && idleDisconnect == null) {
+            ScheduledExecutorService exec = controlThread;
+            if (exec == null)
+                return;     // 停止中
+            logger.debug("No client. Disconnect after {} ms", idleGrace);
+            idleDisconnect = exec.schedule(() -> {
+                idleDisconnect = null;
+                if (servlet.getNumOfClients() == 0) {
+                    disconnect();
+                }
+            }, idleGrace, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void connect() {
+        logger.info("Connect to upstream");
+        try {
+            reader.start(connectTimeout, readTimeout);
+            upstreamConnects.incrementAndGet();
+        } catch (IOException e) {
+            // 監視モードでは接続失敗は受信スレッドで処理される
+            logger.error("Failed to start upstream reader", e);
+        }
+    }
+
+    private void disconnect() {
+        if (!reader.isActive())
+            return;
+        logger.info("Disconnect from upstream");
+        try {
+            reader.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Failed to stop upstream reader", e);
+        }
+    }
+
+    /**
+     * @return 配信元に接続中 (再接続待ちを含む) の場合 true
+     */
+    public boolean isUpstreamActive() {
+        return reader.isActive();
+    }
+
+    /**
+     * @return クライアント接続による配信元への接続回数
+     */
+    public long getNumOfUpstreamConnects() {
+        return upstreamConnects.get();
+    }
+
+    /**
+     * @return 配信元との切断後の再接続回数
+     */
+    public long getNumOfUpstreamReconnects() {
+        return reader.getReconnectCount();
+    }
+
+    /**
+     * @return 配信元からの受信フレーム数
+     */
+    public long getNumOfUpstreamFrames() {
+        return upstreamFrames.get();
+    }
+
+    /**
+     * @return 配信元からの受信フレームの累計サイズ (バイト)
+     */
+    public long getNumOfUpstreamBytes() {
+        return upstreamBytes.get();
+    }
+
+    /**
+     * @return 受信フレームを servlet に引き渡すのに要した時間の累計 (ns)
+     */
+    public long getTotalRelayNanos() {
+        return relayNanos.get();
+    }
+
+    /**
+     * @return 接続中のクライアント数
+     */
+    public int getNumOfClients() {
+        return servlet.getNumOfClients();
+    }
+
+    /**
+     * @return 全クライアントへの送信フレーム数の累計
+     */
+    public long getNumOfSentFrames() {
+        return servlet.getNumOfSentFrames();
+    }
+
+    /**
+     * @return 送信中のため破棄されたフレーム数の累計 (全クライアント)
+     */
+    public long getNumOfDroppedFrames() {
+        return servlet.getNumOfDroppedFrames();
+    }
+}
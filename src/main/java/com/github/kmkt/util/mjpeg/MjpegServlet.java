@@ -1,13 +1,22 @@
 package com.github.kmkt.util.mjpeg;
 
+import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
@@ -18,9 +27,23 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.kmkt.util.XXHash64;
+
 /**
  * MJPEG over HTTP servlet
  * 
+ * <pre>
+ * {@link #MjpegServlet(int)} で生成した場合、クライアントは ?w=幅&amp;q=品質 で縮小・再圧縮した
+ * レンディションを要求できる。レンディションは要求しているクライアントが居る間だけ、
+ * フレーム毎にレンディション毎 1 回だけ変換され、同じレンディションのクライアントで共有される。
+ * 変換は上限付きのスレッドプールで行い、前のフレームの変換が終わっていないレンディションでは
+ * フレームを破棄する。
+ *
+ * {@link #setDuplicateSuppression(long)} で重複抑制を有効にした場合、クライアント毎に直前に受け渡したフレームと
+ * エントロピー符号化データ (SOS 以降) の xxHash64 が一致するフレームは、keepalive 間隔が経過するまで配信しない。
+ * APP セグメント等のヘッダのみが異なるフレームも重複とみなされる。
+ * </pre>
+ *
  * License : MIT License
  */
 public class MjpegServlet extends HttpServlet {
@@ -31,10 +54,45 @@ public class MjpegServlet extends HttpServlet {
     private static final byte[] CRLF = new byte[]{0x0d, 0x0a};
     private static final String CONTENT_TYPE = "multipart/x-mixed-replace";
 
+    /** レンディションの最大幅 (pixel) */
+    public static final int MAX_RENDITION_WIDTH = 8192;
+    /** レンディションの標準品質 */
+    public static final int DEFAULT_RENDITION_QUALITY = 75;
+
+    /**
+     * 接続クライアント数の変化時に呼び出される callback
+     */
+    @FunctionalInterface
+    public interface ClientCountListener {
+        /**
+         * 接続クライアント数の変化時に呼び出される callback
+         * クライアントの接続・切断を処理するスレッドから呼び出される。
+         * @param count 変化後の接続クライアント数
+         */
+        void onClientCountChanged(int count);
+    }
+
     private Set<ClientChannel> clientConnectionSet = new CopyOnWriteArraySet<ClientChannel>();
+    /** 購読中のレンディション */
+    private final Map<String, Rendition> renditions = new ConcurrentHashMap<String, Rendition>();
+    /** レンディション変換用スレッドプール null 時はレンディション無効 */
+    private final ThreadPoolExecutor transcodePool;
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private volatile ClientCountListener clientCountListener = null;
+    // statistics
+    private final AtomicLong totalSentFrames = new AtomicLong();
+    private final AtomicLong totalDropFrames = new AtomicLong();
+    private final AtomicLong totalSuppressedFrames = new AtomicLong();
+
+    /** 重複フレームでも再送する間隔 (ms) 負の場合は重複抑制無効 */
+    private volatile long keepaliveInterval = -1;
 
     class ClientChannel {
-        final BlockingQueue<byte[]> frameServer = new SynchronousQueue<byte[]>();
+        final BlockingQueue<FrameBuffer> frameServer = new SynchronousQueue<FrameBuffer>();
+        // 重複抑制 : 直前に受け渡したフレームの hash (ClientChannel で同期)
+        boolean hasLastHash = false;
+        long lastHash = 0;
+        long lastDeliveredAt = 0;
         // statistics
         long channelOpenedAt = 0;
         long lastShownStatistics = 0;
@@ -43,6 +101,60 @@ public class MjpegServlet extends HttpServlet {
         final AtomicLong dropFrames = new AtomicLong();
         final AtomicLong recvedBytes = new AtomicLong();
         final AtomicLong sentBytes =  new AtomicLong();
+
+        /**
+         * 直前に受け渡したフレームと同一で、keepalive 間隔が経過していないか否か
+         */
+        boolean isDuplicate(long hash, long keepalive, long now) {
+            return hasLastHash && hash == lastHash && now - lastDeliveredAt < keepalive;
+        }
+    }
+
+    /**
+     * 縮小・再圧縮したフレームの配信チャネル
+     */
+    class Rendition {
+        final String key;
+        final int width;        // 0 の場合は縮小しない
+        final int quality;
+        final Set<ClientChannel> clients = new CopyOnWriteArraySet<ClientChannel>();
+        /** 変換中のフレームの有無 */
+        final AtomicBoolean busy = new AtomicBoolean();
+        // statistics
+        final AtomicLong transcodedFrames = new AtomicLong();
+        final AtomicLong skippedFrames = new AtomicLong();
+
+        Rendition(String key, int width, int quality) {
+            this.key = key;
+            this.width = width;
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * オリジナルのフレームのみを配信する servlet を生成する。
+     */
+    public MjpegServlet() {
+        this.transcodePool = null;
+    }
+
+    /**
+     * レンディションを配信可能な servlet を生成する。
+     * @param transcode_threads レンディション変換を行うスレッド数 1 以上
+     * @throws IllegalArgumentException transcode_threads が 0 以下の場合
+     */
+    public MjpegServlet(int transcode_threads) {
+        if (transcode_threads <= 0)
+            throw new IllegalArgumentException("transcode_threads must be positive");
+
+        this.transcodePool = new ThreadPoolExecutor(transcode_threads, transcode_threads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(transcode_threads),
+                r -> {
+                    Thread t = new Thread(r, "MjpegServlet-transcode");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
     }
 
     /**
@@ -59,11 +171,269 @@ public class MjpegServlet extends HttpServlet {
      * @param frame JPEG フレームデータ
      */
     public void pourFrame(byte[] frame) {
-        for (ClientChannel client : clientConnectionSet) {
-            client.recvedFrames.incrementAndGet();
-            client.recvedBytes.addAndGet(frame.length);
-            if (!client.frameServer.offer(frame)) {
-                client.dropFrames.incrementAndGet();
+        pourFrame(FrameBuffer.wrap(frame));
+    }
+
+    /**
+     * JPEG フレームデータを FrameBuffer で供給する。
+     *
+     * <pre>
+     * {@link #pourFrame(byte[])} と同様だが、フレームはコピーされずに全クライアントで共有される。
+     * 送信待ちのクライアント毎に {@link FrameBuffer#retain()} され、送信後に release される。
+     * 呼び出し元が持つ参照は呼び出し元で release すること。
+     * </pre>
+     *
+     * @param frame JPEG フレームデータ
+     */
+    public void pourFrame(FrameBuffer frame) {
+        if (clientConnectionSet.isEmpty() && renditions.isEmpty())
+            return;
+        long keepalive = keepaliveInterval;
+        long hash = (0 <= keepalive) ? hashOf(frame) : 0;
+        offer(clientConnectionSet, frame, keepalive, hash);
+        for (Rendition rendition : renditions.values()) {
+            if (0 <= keepalive && !isNeeded(rendition.clients, keepalive, hash)) {
+                totalSuppressedFrames.incrementAndGet();
+                continue;   // 全クライアントが受け取り済みのフレームは変換しない
+            }
+            transcode(rendition, frame, keepalive, hash);
+        }
+    }
+
+    /**
+     * 重複抑制を設定する。
+     *
+     * <pre>
+     * 有効時はクライアント毎に、直前に受け渡したフレームとエントロピー符号化データが同一のフレームを配信しない。
+     * 送信中のため直前のフレームを受け取れなかったクライアントや新規クライアントには、同一フレームでも配信する。
+     * また直前の受け渡しから keepalive_interval 以上経過した場合は、同一フレームでも配信する。
+     * </pre>
+     *
+     * @param keepalive_interval 重複フレームでも再送する間隔 (ms) 負の値の場合は重複抑制を無効にする
+     */
+    public void setDuplicateSuppression(long keepalive_interval) {
+        this.keepaliveInterval = keepalive_interval;
+    }
+
+    /**
+     * @return 重複のため配信しなかったフレーム数のクライアント毎の累計 (変換しなかったレンディションは 1 とする)
+     */
+    public long getNumOfSuppressedFrames() {
+        return totalSuppressedFrames.get();
+    }
+
+    /**
+     * 重複判定に用いる hash を計算する。SOS 以降が見つかる場合はそれ以降のみを対象とする。
+     */
+    private static long hashOf(FrameBuffer frame) {
+        byte[] b = frame.getArray();
+        int len = frame.getLength();
+        int scan = JpegMarkers.findScanData(b, 0, len);
+        return (scan < 0) ? XXHash64.hash(b, 0, len) : XXHash64.hash(b, scan, len - scan);
+    }
+
+    /**
+     * hash のフレームを受け取っていないクライアントが居るか否か
+     */
+    private static boolean isNeeded(Set<ClientChannel> clients, long keepalive, long hash) {
+        long now = System.currentTimeMillis();
+        for (ClientChannel client : clients) {
+            synchronized (client) {
+                if (!client.isDuplicate(hash, keepalive, now))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * クライアントにフレームを受け渡す。
+     * 重複抑制が有効な場合、hash のフレームを受け取り済みのクライアントには受け渡さない。
+     * @param keepalive 重複抑制の keepalive 間隔 負の場合は重複抑制無効
+     * @param hash 重複判定に用いる hash (重複抑制が有効な場合のみ有効)
+     */
+    private void offer(Set<ClientChannel> clients, FrameBuffer frame, long keepalive, long hash) {
+        boolean dedup = 0 <= keepalive;
+        long now = dedup ? System.currentTimeMillis() : 0;
+        for (ClientChannel client : clients) {
+            synchronized (client) {
+                if (dedup && client.isDuplicate(hash, keepalive, now)) {
+                    totalSuppressedFrames.incrementAndGet();
+                    continue;
+                }
+                client.recvedFrames.incrementAndGet();
+                client.recvedBytes.addAndGet(frame.getLength());
+                frame.retain();
+                if (!client.frameServer.offer(frame)) {
+                    frame.release();
+                    client.dropFrames.incrementAndGet();
+                    totalDropFrames.incrementAndGet();
+                    continue;
+                }
+                // 重複抑制が無効な間に受け渡したフレームは記録しない
+                client.hasLastHash = dedup;
+                client.lastHash = hash;
+                client.lastDeliveredAt = now;
+            }
+        }
+    }
+
+    /**
+     * レンディションの変換を予約する。前のフレームの変換中あるいはプールが満杯の場合は破棄する。
+     */
+    private void transcode(Rendition rendition, FrameBuffer frame, long keepalive, long hash) {
+        if (!rendition.busy.compareAndSet(false, true)) {
+            rendition.skippedFrames.incrementAndGet();
+            totalDropFrames.incrementAndGet();
+            return;
+        }
+
+        frame.retain();
+        try {
+            transcodePool.execute(() -> {
+                try {
+                    byte[] jpeg = transcode(frame.getArray(), frame.getLength(), rendition.width, rendition.quality);
+                    FrameBuffer transcoded = FrameBuffer.wrap(jpeg);
+                    offer(rendition.clients, transcoded, keepalive, hash);
+                    transcoded.release();
+                    rendition.transcodedFrames.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to transcode a frame for {} : {}", rendition.key, e.toString());
+                } finally {
+                    frame.release();
+                    rendition.busy.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            frame.release();
+            rendition.busy.set(false);
+            rendition.skippedFrames.incrementAndGet();
+            totalDropFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * JPEG を幅 width に縮小し、品質 quality で再圧縮する
+     */
+    private static byte[] transcode(byte[] jpeg, int len, int width, int quality) throws IOException {
+        BufferedImage image;
+        if (width <= 0) {
+            image = JpegCodec.decode(jpeg, 0, len);
+        } else {
+            image = JpegCodec.decode(jpeg, 0, len, width, 1);
+            if (width < image.getWidth()) {
+                int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+                image = JpegCodec.scale(image, width, height);
+            }
+        }
+        return JpegCodec.encode(image, quality / 100.0f);
+    }
+
+    /**
+     * @return 購読中のレンディション数
+     */
+    public int getNumOfRenditions() {
+        return renditions.size();
+    }
+
+    /**
+     * レンディションを購読する
+     */
+    private Rendition subscribe(int width, int quality, ClientChannel client) {
+        String key = "w=" + width + ",q=" + quality;
+        synchronized (renditions) {
+            Rendition rendition = renditions.get(key);
+            if (rendition == null) {
+                rendition = new Rendition(key, width, quality);
+                renditions.put(key, rendition);
+                logger.debug("Start rendition {}", key);
+            }
+            rendition.clients.add(client);
+            return rendition;
+        }
+    }
+
+    /**
+     * レンディションの購読を解除し、クライアントが居なくなったレンディションを削除する
+     */
+    private void unsubscribe(Rendition rendition, ClientChannel client) {
+        synchronized (renditions) {
+            rendition.clients.remove(client);
+            if (rendition.clients.isEmpty()) {
+                renditions.remove(rendition.key);
+                logger.debug("Stop rendition {} [Transcoded: {}, Skipped: {}]",
+                        rendition.key, rendition.transcodedFrames.get(), rendition.skippedFrames.get());
+            }
+        }
+    }
+
+    /**
+     * 非負整数 value を 10 進数の ASCII 文字列として String を生成せずに書き込む
+     * @param digits 作業領域 10 byte 以上
+     */
+    private static void writeDecimal(OutputStream out, int value, byte[] digits) throws IOException {
+        int p = digits.length;
+        do {
+            digits[--p] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, p, digits.length - p);
+    }
+
+    /**
+     * パラメータを整数として取得する
+     * @return パラメータが無い場合は default_value
+     * @throws NumberFormatException 整数でない場合
+     */
+    private static int intParameter(HttpServletRequest req, String name, int default_value) {
+        String value = req.getParameter(name);
+        return (value == null || value.isEmpty()) ? default_value : Integer.parseInt(value);
+    }
+
+    @Override
+    public void destroy() {
+        if (transcodePool != null) {
+            transcodePool.shutdown();
+        }
+        super.destroy();
+    }
+
+    /**
+     * 接続クライアント数の変化時に呼び出される callback を設定する。
+     * @param listener callback null 時は解除
+     */
+    public void setClientCountListener(ClientCountListener listener) {
+        this.clientCountListener = listener;
+    }
+
+    /**
+     * @return 接続中のクライアント数
+     */
+    public int getNumOfClients() {
+        return clientCount.get();
+    }
+
+    /**
+     * @return 全クライアントへの送信フレーム数の累計
+     */
+    public long getNumOfSentFrames() {
+        return totalSentFrames.get();
+    }
+
+    /**
+     * @return 送信中のため破棄されたフレーム数の累計 (全クライアント)
+     */
+    public long getNumOfDroppedFrames() {
+        return totalDropFrames.get();
+    }
+
+    private void notifyClientCount(int count) {
+        ClientCountListener listener = clientCountListener;
+        if (listener != null) {
+            try {
+                listener.onClientCountChanged(count);
+            } catch (RuntimeException e) {
+                logger.error("Exception in ClientCountListener", e);
             }
         }
     }
@@ -74,54 +444,80 @@ public class MjpegServlet extends HttpServlet {
         logger.debug("doGet");
         
         String remote = req.getRemoteAddr() + ":" + req.getRemotePort();
-        
+
+        int width = 0;
+        int quality = 0;
+        if (transcodePool != null) {
+            try {
+                width = intParameter(req, "w", 0);
+                quality = intParameter(req, "q", (width == 0) ? 0 : DEFAULT_RENDITION_QUALITY);
+            } catch (NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "w and q should be integers");
+                return;
+            }
+            if (width < 0 || MAX_RENDITION_WIDTH < width || quality < 0 || 100 < quality) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "w or q is out of range");
+                return;
+            }
+        }
+
         ClientChannel client = new ClientChannel();
         client.channelOpenedAt = System.currentTimeMillis();
         client.lastShownStatistics = client.channelOpenedAt;
+        Rendition rendition = null;
         try {
-            clientConnectionSet.add(client);
+            if (0 < quality) {
+                rendition = subscribe(width, quality, client);
+            } else {
+                clientConnectionSet.add(client);
+            }
             logger.debug("queueSet size : {}", clientConnectionSet.size());
+            notifyClientCount(clientCount.incrementAndGet());
 
-            logger.info("Accept HTTP connection from {}", remote);
+            logger.info("Accept HTTP connection from {}{}", remote, (rendition == null) ? "" : " for " + rendition.key);
 
             String delemeter_str = Long.toHexString(System.currentTimeMillis());
-            byte[] delimiter = ("--"+delemeter_str).getBytes();
-            byte[] content_type = "Content-Type: image/jpeg".getBytes();
+            // part ヘッダのうちフレーム毎に変わらない部分は接続時に 1 度だけ生成する
+            byte[] part_header_prefix = ("--" + delemeter_str + "\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+            byte[] digits = new byte[10];
 
             resp.setStatus(HttpServletResponse.SC_OK);
             resp.setContentType(CONTENT_TYPE+";boundary=" + delemeter_str);
-            resp.setHeader("Connection", "Close");
+            // Connection: Close は付与しない (HTTP/1.1 の keep-alive, HTTP/2 の多重化を妨げないため)
 
-            BlockingQueue<byte[]> frameServer = client.frameServer;
+            BlockingQueue<FrameBuffer> frameServer = client.frameServer;
 
             OutputStream out = new BufferedOutputStream(resp.getOutputStream());
             try {
                 frameServer.clear();
                 int i=-1;
                 while (true) {
-                    byte[] frame = frameServer.poll(10, TimeUnit.SECONDS);
+                    FrameBuffer frame = frameServer.poll(10, TimeUnit.SECONDS);
                     if (frame == null)
                         continue;
 
-                    byte[] content_length = ("Content-Length: " + frame.length).getBytes();
-
-                    i++;
+                    int frame_length = frame.getLength();
+                    try {
+                        i++;
 
-                    logger.trace("Send frame {}", i);
+                        logger.trace("Send frame {}", i);
 
-                    out.write(delimiter);
-                    out.write(CRLF);
-                    out.write(content_type);
-                    out.write(CRLF);
-                    out.write(content_length);
-                    out.write(CRLF);
-                    out.write(CRLF);
-                    out.write(frame);
-                    out.write(CRLF);
-                    out.flush();
+                        out.write(part_header_prefix);
+                        writeDecimal(out, frame_length, digits);
+                        out.write(CRLF);
+                        out.write(CRLF);
+                        out.write(frame.getArray(), 0, frame_length);
+                        out.write(CRLF);
+                        out.flush();
+                    } finally {
+                        frame.release();
+                    }
 
                     client.sentFrames.incrementAndGet();
-                    client.sentBytes.addAndGet(frame.length);
+                    client.sentBytes.addAndGet(frame_length);
+                    totalSentFrames.incrementAndGet();
                     if (StatisticsDispleyPeriod < System.currentTimeMillis() - client.lastShownStatistics) {
                         client.lastShownStatistics = System.currentTimeMillis();
                         logger.debug("Statistics of {} [Frames Recv: {}, Send: {}, Drop: {}, Size Recv: {}, Send: {}]", 
@@ -137,8 +533,13 @@ public class MjpegServlet extends HttpServlet {
                 logger.info(e.getMessage(), e);
             }
         } finally {
-            clientConnectionSet.remove(client);
+            if (rendition != null) {
+                unsubscribe(rendition, client);
+            } else {
+                clientConnectionSet.remove(client);
+            }
             logger.debug("queueSet size : {}", clientConnectionSet.size());
+            notifyClientCount(clientCount.decrementAndGet());
         }
     }
 }
@@ -0,0 +1,659 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * multipart/x-mixed-replace ストリームを逐次解析し、part 毎に callback するパーサ
+ * <pre>
+ * 受信データを {@link #feed(byte[], int, int)} あるいは {@link #readFrom(InputStream)} で与えると、
+ * part ヘッダを逐次解析する。
+ * part ヘッダに Content-Length がある場合は、その長さのボディをそのまま切り出し、boundary の探索を行わない。
+ * Content-Length が無い場合のみ、次の boundary を探索してボディを切り出す。
+ * ボディが最大フレームサイズを超える part は読み捨てる。Content-Length 指定のボディの格納バッファは
+ * Content-Length 分を一度に確保せず、受信に応じて拡張する。
+ * 非スレッドセーフ
+ * </pre>
+ * License : MIT License
+ */
+public class MultipartStreamParser {
+    private static final Logger logger = LoggerFactory.getLogger(MultipartStreamParser.class);
+
+    /** part ヘッダの最大サイズ (バイト) これを超える場合は不正な part として読み捨てる */
+    public static final int MAX_HEADER_SIZE = 16*1024;
+    /** 標準の受信バッファサイズ (バイト) */
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+    /** 標準の最大フレームサイズ (バイト) */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 32*1024*1024;
+
+    /**
+     * part 受信時に呼び出される callback interface
+     */
+    public interface PartListener {
+        /**
+         * part 先頭の boundary 行受信時に呼び出される callback
+         * 続く part ヘッダの受信完了を待たずに呼び出されるため、part の受信開始時刻の記録に使用できる。
+         */
+        default void onPartStart() {
+        }
+
+        /**
+         * part ヘッダ受信完了時に呼び出される callback
+         * @param header part ヘッダ 呼び出し後に再利用されるため保持しないこと
+         * @return ボディを受け取る場合は true, 読み捨てる場合は false
+         */
+        boolean onPartHeader(PartHeader header);
+
+        /**
+         * part ボディ受信完了時に呼び出される callback
+         * b はパーサ内部のバッファのため、callback 後も内容が必要な場合はコピーを作成すること。
+         * @param b ボディが格納されるバッファ
+         * @param off b 内のボディ開始位置
+         * @param len ボディサイズ
+         * @param header part ヘッダ 呼び出し後に再利用されるため保持しないこと
+         */
+        void onPartBody(byte[] b, int off, int len, PartHeader header);
+    }
+
+    /**
+     * 解析した part ヘッダ
+     * インスタンスは part 間で再利用される。
+     */
+    public static final class PartHeader {
+        private byte[] raw = new byte[256];     // ヘッダ行の内容 ("name: value" を連結したもの)
+        private int rawLength = 0;
+        private int[] nameOff = new int[8];
+        private int[] nameLen = new int[8];
+        private int[] valueOff = new int[8];
+        private int[] valueLen = new int[8];
+        private int count = 0;
+        private long contentLength = -1;
+
+        void reset() {
+            rawLength = 0;
+            count = 0;
+            contentLength = -1;
+        }
+
+        /**
+         * ヘッダ 1 行を追加する
+         * @return 追加できた場合 true
+         */
+        boolean addLine(byte[] b, int off, int len) {
+            int colon = -1;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon <= off)
+                return false;
+
+            if (raw.length < rawLength + len) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + len));
+            }
+            if (count == nameOff.length) {
+                int n = count * 2;
+                nameOff = Arrays.copyOf(nameOff, n);
+                nameLen = Arrays.copyOf(nameLen, n);
+                valueOff = Arrays.copyOf(valueOff, n);
+                valueLen = Arrays.copyOf(valueLen, n);
+            }
+            System.arraycopy(b, off, raw, rawLength, len);
+
+            int name_st = rawLength;
+            int name_ed = rawLength + (colon - off);
+            int value_st = name_ed + 1;
+            int value_ed = rawLength + len;
+            while (name_st < name_ed && raw[name_ed - 1] == ' ')
+                name_ed--;
+            while (value_st < value_ed && (raw[value_st] == ' ' || raw[value_st] == '\t'))
+                value_st++;
+            while (value_st < value_ed && (raw[value_ed - 1] == ' ' || raw[value_ed - 1] == '\t'))
+                value_ed--;
+
+            nameOff[count] = name_st;
+            nameLen[count] = name_ed - name_st;
+            valueOff[count] = value_st;
+            valueLen[count] = value_ed - value_st;
+            rawLength += len;
+            count++;
+
+            if (nameEquals(count - 1, "Content-Length")) {
+                contentLength = parseLong(count - 1, -1);
+            }
+            return true;
+        }
+
+        /**
+         * @return Content-Length ヘッダの値 無い場合あるいは不正な値の場合は -1
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @return Content-Type ヘッダの値 無い場合は null
+         */
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        /**
+         * @return ヘッダ数
+         */
+        public int getNumOfHeaders() {
+            return count;
+        }
+
+        /**
+         * @param i ヘッダ番号
+         * @return i 番目のヘッダ名
+         * @throws IndexOutOfBoundsException i が範囲外の場合
+         */
+        public String getHeaderName(int i) {
+            checkIndex(i);
+            return new String(raw, nameOff[i], nameLen[i], StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @param i ヘッダ番号
+         * @return i 番目のヘッダ値
+         * @throws IndexOutOfBoundsException i が範囲外の場合
+         */
+        public String getHeaderValue(int i) {
+            checkIndex(i);
+            return new String(raw, valueOff[i], valueLen[i], StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * ヘッダ値を取得する。ヘッダ名の大文字小文字は区別しない。
+         * @param name ヘッダ名 notnull
+         * @return 最初に一致したヘッダの値 無い場合は null
+         */
+        public String getHeader(String name) {
+            int i = indexOf(name);
+            return (i < 0) ? null : getHeaderValue(i);
+        }
+
+        /**
+         * ヘッダ値を整数として取得する。String を生成せずに解析する。
+         * @param name ヘッダ名 notnull
+         * @param default_value ヘッダが無い場合あるいは整数でない場合の値
+         * @return ヘッダ値
+         */
+        public long getHeaderAsLong(String name, long default_value) {
+            int i = indexOf(name);
+            return (i < 0) ? default_value : parseLong(i, default_value);
+        }
+
+        private int indexOf(String name) {
+            Objects.requireNonNull(name, "name should not be null");
+            for (int i = 0; i < count; i++) {
+                if (nameEquals(i, name))
+                    return i;
+            }
+            return -1;
+        }
+
+        private boolean nameEquals(int i, String name) {
+            if (nameLen[i] != name.length())
+                return false;
+            for (int j = 0; j < nameLen[i]; j++) {
+                int c1 = raw[nameOff[i] + j] & 0xff;
+                int c2 = name.charAt(j);
+                if (c1 != c2 && Character.toLowerCase(c1) != Character.toLowerCase(c2))
+                    return false;
+            }
+            return true;
+        }
+
+        private long parseLong(int i, long default_value) {
+            int len = valueLen[i];
+            if (len == 0 || 18 < len)
+                return default_value;
+            long v = 0;
+            for (int j = valueOff[i]; j < valueOff[i] + len; j++) {
+                int c = raw[j] - '0';
+                if (c < 0 || 9 < c)
+                    return default_value;
+                v = v * 10 + c;
+            }
+            return v;
+        }
+
+        private void checkIndex(int i) {
+            if (i < 0 || count <= i)
+                throw new IndexOutOfBoundsException("i is out of range : " + i);
+        }
+    }
+
+    /** 解析状態 */
+    private enum State {
+        /** boundary 探索中 */
+        BOUNDARY,
+        /** part ヘッダ受信中 */
+        HEADER,
+        /** Content-Length 指定のボディ受信中 */
+        BODY_LENGTH,
+        /** boundary 探索によるボディ受信中 */
+        BODY_SEARCH,
+        /** Content-Length 指定のボディ読み捨て中 */
+        DISCARD_LENGTH,
+        /** boundary 探索によるボディ読み捨て中 */
+        DISCARD_SEARCH,
+        /** 終端 boundary 受信済み */
+        END,
+    }
+
+    private final byte[] boundary;          // "--" + boundary 文字列
+    private final PartListener listener;
+    private final int maxFrameSize;
+    private final PartHeader header = new PartHeader();
+
+    private State state = State.BOUNDARY;
+
+    private byte[] buf;             // 受信バッファ
+    private int start = 0;          // 未処理データ先頭
+    private int end = 0;            // 未処理データ末
+    private int scanPos = 0;        // boundary 探索再開位置
+
+    private byte[] frameBuf = new byte[0];  // Content-Length 指定ボディの格納バッファ
+    private int frameLen = 0;               // frameBuf 内の受信済みサイズ
+    private long remaining = 0;             // Content-Length 指定ボディの残りサイズ
+
+    /**
+     * 受信バッファサイズ {@link #DEFAULT_BUFFER_SIZE} でインスタンスを生成する。
+     * @param boundary Content-Type の boundary パラメータ notnull 先頭の "--" は有っても無くても良い
+     * @param listener part 受信時に呼び出される callback notnull
+     * @throws NullPointerException boundary, listener が null の場合
+     * @throws IllegalArgumentException boundary が空の場合
+     */
+    public MultipartStreamParser(String boundary, PartListener listener) {
+        this(boundary, listener, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * 最大フレームサイズ {@link #DEFAULT_MAX_FRAME_SIZE} でインスタンスを生成する。
+     * @param boundary Content-Type の boundary パラメータ notnull 先頭の "--" は有っても無くても良い
+     * @param listener part 受信時に呼び出される callback notnull
+     * @param buffer_size 受信バッファの初期サイズ(バイト) 必要に応じて倍々に拡張される
+     * @throws NullPointerException boundary, listener が null の場合
+     * @throws IllegalArgumentException boundary が空の場合, buffer_size が 0 以下の場合
+     */
+    public MultipartStreamParser(String boundary, PartListener listener, int buffer_size) {
+        this(boundary, listener, buffer_size, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * インスタンスを生成する。
+     * @param boundary Content-Type の boundary パラメータ notnull 先頭の "--" は有っても無くても良い
+     * @param listener part 受信時に呼び出される callback notnull
+     * @param buffer_size 受信バッファの初期サイズ(バイト) 必要に応じて倍々に拡張される
+     * @param max_frame_size 最大フレームサイズ(バイト) これを超えるボディの part は読み捨てる
+     * @throws NullPointerException boundary, listener が null の場合
+     * @throws IllegalArgumentException boundary が空の場合, buffer_size, max_frame_size が 0 以下の場合
+     */
+    public MultipartStreamParser(String boundary, PartListener listener, int buffer_size, int max_frame_size) {
+        Objects.requireNonNull(boundary, "boundary should not be null");
+        Objects.requireNonNull(listener, "listener should not be null");
+        if (buffer_size <= 0)
+            throw new IllegalArgumentException("buffer_size must be positive");
+        if (max_frame_size <= 0)
+            throw new IllegalArgumentException("max_frame_size must be positive");
+
+        // RFC2046 に反して "--" を含むバウンダリ文字列そのものを boundary に設定するサーバ対策
+        String b = boundary.startsWith("--") ? boundary.substring(2) : boundary;
+        if (b.isEmpty())
+            throw new IllegalArgumentException("boundary should not be empty");
+
+        this.boundary = ("--" + b).getBytes(StandardCharsets.ISO_8859_1);
+        this.listener = listener;
+        this.maxFrameSize = max_frame_size;
+        this.buf = new byte[Math.max(buffer_size, this.boundary.length * 2)];
+    }
+
+    /**
+     * 終端 boundary を受信済みか否かを返す。
+     * @return 終端 boundary を受信済みの場合 true
+     */
+    public boolean isFinished() {
+        return state == State.END;
+    }
+
+    /**
+     * 受信データを与える。
+     * 完了した part があれば、このメソッド内で callback が呼び出される。
+     * @param b 受信データ notnull
+     * @param off b 内の受信データ開始位置
+     * @param len 受信データサイズ
+     */
+    public void feed(byte[] b, int off, int len) {
+        Objects.requireNonNull(b, "b should not be null");
+        if (off < 0 || len < 0 || b.length < off + len)
+            throw new IndexOutOfBoundsException();
+
+        while (0 < len) {
+            int n = Math.min(len, reserve(len));
+            System.arraycopy(b, off, buf, end, n);
+            end += n;
+            off += n;
+            len -= n;
+            process();
+        }
+    }
+
+    /**
+     * in から読み込めるだけ読み込み、解析する。
+     * Content-Length 指定のボディ受信中は、in から直接ボディ格納バッファに読み込む。
+     * 完了した part があれば、このメソッド内で callback が呼び出される。
+     * @param in 読み込み元 notnull
+     * @return 読み込んだバイト数 in が終端に達している場合は -1
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public int readFrom(InputStream in) throws IOException {
+        if (state == State.BODY_LENGTH && start == end) {
+            // ボディ格納バッファへ直接読み込み
+            int space = reserveFrame();     // frameBuf を拡張しうるため先に確保する
+            int n = in.read(frameBuf, frameLen, space);
+            if (n < 0)
+                return -1;
+            frameLen += n;
+            remaining -= n;
+            if (remaining == 0) {
+                finishBody(frameBuf, 0, frameLen);
+                process();
+            }
+            return n;
+        }
+
+        int space = reserve(buf.length / 2);
+        int n = in.read(buf, end, space);
+        if (n < 0)
+            return -1;
+        end += n;
+        process();
+        return n;
+    }
+
+    /**
+     * buf の末尾に書き込み可能な領域を確保する。
+     * 必要に応じて未処理データを先頭に詰め、足りない場合は倍々に拡張する。
+     * @param wanted 希望するサイズ
+     * @return 書き込み可能なサイズ (1 以上)
+     */
+    private int reserve(int wanted) {
+        if (buf.length - end < wanted && 0 < start) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            scanPos -= start;
+            start = 0;
+        }
+        if (buf.length == end) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        return buf.length - end;
+    }
+
+    /**
+     * frameBuf の末尾に書き込み可能な領域を確保する。
+     * Content-Length 分を一度に確保せず、受信済みサイズに応じて倍々に拡張する。
+     * @return 書き込み可能なサイズ (1 以上) remaining を超えない
+     */
+    private int reserveFrame() {
+        if (frameBuf.length == frameLen) {
+            long cap = Math.min(frameLen + remaining, Math.max(frameLen * 2L, buf.length));
+            frameBuf = Arrays.copyOf(frameBuf, (int) cap);
+        }
+        return (int) Math.min(remaining, frameBuf.length - frameLen);
+    }
+
+    /**
+     * 未処理データを状態に応じて処理する
+     */
+    private void process() {
+        while (start < end) {
+            switch (state) {
+            case BOUNDARY:
+                if (!processBoundary())
+                    return;
+                break;
+            case HEADER:
+                if (!processHeader())
+                    return;
+                break;
+            case BODY_LENGTH:
+                processBodyLength();
+                break;
+            case DISCARD_LENGTH: {
+                int n = (int) Math.min(remaining, end - start);
+                start += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    scanPos = start;
+                    state = State.BOUNDARY;
+                }
+                break;
+            }
+            case BODY_SEARCH:
+            case DISCARD_SEARCH:
+                if (!processBodySearch())
+                    return;
+                break;
+            case END:
+                start = end;    // 終端以降は読み捨て
+                return;
+            }
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scanPos = 0;
+        }
+    }
+
+    /**
+     * boundary 行の探索
+     * @return 処理を継続できる場合 true
+     */
+    private boolean processBoundary() {
+        int pos = indexOfBoundary(Math.max(start, scanPos));
+        if (pos < 0) {
+            // boundary の一部が末尾に残っている可能性がある分は残して読み捨て
+            start = Math.max(start, end - boundary.length + 1);
+            scanPos = start;
+            return false;
+        }
+
+        int line_end = indexOf((byte) 0x0a, pos + boundary.length);
+        if (line_end < 0) {
+            start = pos;
+            scanPos = pos;
+            if (MAX_HEADER_SIZE < end - pos) {
+                logger.warn("Invalid boundary line received.");
+                start = pos + boundary.length;
+                scanPos = start;
+                return true;
+            }
+            return false;
+        }
+
+        int after = pos + boundary.length;
+        if (after + 1 < end && buf[after] == '-' && buf[after + 1] == '-') {
+            // 終端 boundary
+            logger.debug("Close delimiter received");
+            state = State.END;
+            start = end;
+            return false;
+        }
+
+        start = line_end + 1;
+        scanPos = start;
+        header.reset();
+        state = State.HEADER;
+        listener.onPartStart();
+        return true;
+    }
+
+    /**
+     * part ヘッダ行の受信
+     * @return 処理を継続できる場合 true
+     */
+    private boolean processHeader() {
+        int line_end = indexOf((byte) 0x0a, start);
+        if (line_end < 0) {
+            if (MAX_HEADER_SIZE < end - start) {
+                logger.warn("Too large part header received.");
+                scanPos = start;
+                state = State.BOUNDARY;
+                return true;
+            }
+            return false;
+        }
+
+        int len = line_end - start;
+        if (0 < len && buf[line_end - 1] == 0x0d)
+            len--;
+
+        if (len == 0) {
+            // ヘッダ終了
+            start = line_end + 1;
+            scanPos = start;
+            boolean accept = listener.onPartHeader(header);
+            long content_length = header.getContentLength();
+            if (accept && maxFrameSize < content_length) {
+                logger.warn("Too large part received : Content-Length {}", content_length);
+                accept = false;
+            }
+            if (0 <= content_length) {
+                remaining = content_length;
+                frameLen = 0;
+                if (accept) {
+                    state = State.BODY_LENGTH;
+                } else {
+                    state = State.DISCARD_LENGTH;
+                }
+                if (remaining == 0) {
+                    if (accept)
+                        finishBody(frameBuf, 0, 0);
+                    state = State.BOUNDARY;
+                }
+            } else {
+                state = accept ? State.BODY_SEARCH : State.DISCARD_SEARCH;
+            }
+            return true;
+        }
+
+        if (!header.addLine(buf, start, len)) {
+            logger.debug("Ignore invalid header line");
+        }
+        start = line_end + 1;
+        scanPos = start;
+        return true;
+    }
+
+    /**
+     * Content-Length 指定のボディ受信
+     */
+    private void processBodyLength() {
+        int avail = end - start;
+        if (frameLen == 0 && remaining <= avail) {
+            // ボディ全体が受信バッファ内にあるのでコピーせずに callback
+            int len = (int) remaining;
+            int off = start;
+            start += len;
+            remaining = 0;
+            finishBody(buf, off, len);
+            return;
+        }
+
+        int n = Math.min(reserveFrame(), avail);
+        System.arraycopy(buf, start, frameBuf, frameLen, n);
+        frameLen += n;
+        start += n;
+        remaining -= n;
+        if (remaining == 0) {
+            finishBody(frameBuf, 0, frameLen);
+        }
+    }
+
+    /**
+     * boundary 探索によるボディ受信・読み捨て
+     * @return 処理を継続できる場合 true
+     */
+    private boolean processBodySearch() {
+        int pos = indexOfBoundary(Math.max(start, scanPos));
+        if (pos < 0) {
+            if (state == State.DISCARD_SEARCH) {
+                // 読み捨て中はバッファに溜めない
+                start = Math.max(start, end - boundary.length + 1);
+                scanPos = start;
+            } else if (maxFrameSize < end - start - boundary.length) {
+                logger.warn("Too large part received : exceeds {} bytes", maxFrameSize);
+                state = State.DISCARD_SEARCH;
+                start = Math.max(start, end - boundary.length + 1);
+                scanPos = start;
+            } else {
+                scanPos = Math.max(start, end - boundary.length + 1);
+            }
+            return false;
+        }
+
+        if (state == State.BODY_SEARCH) {
+            // boundary 直前の CRLF はボディに含めない
+            int body_end = pos;
+            if (start + 2 <= body_end && buf[body_end - 2] == 0x0d && buf[body_end - 1] == 0x0a) {
+                body_end -= 2;
+            }
+            int off = start;
+            start = pos;
+            finishBody(buf, off, body_end - off);
+        } else {
+            start = pos;
+        }
+        scanPos = pos;
+        state = State.BOUNDARY;
+        return true;
+    }
+
+    private void finishBody(byte[] b, int off, int len) {
+        state = State.BOUNDARY;
+        scanPos = start;
+        listener.onPartBody(b, off, len, header);
+    }
+
+    /**
+     * buf[from, end) 内の boundary を探索する
+     * @return boundary 先頭位置 無い場合は -1
+     */
+    private int indexOfBoundary(int from) {
+        byte first = boundary[0];
+        int limit = end - boundary.length;
+        outer:
+        for (int i = from; i <= limit; i++) {
+            if (buf[i] != first)
+                continue;
+            for (int j = 1; j < boundary.length; j++) {
+                if (buf[i + j] != boundary[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+}
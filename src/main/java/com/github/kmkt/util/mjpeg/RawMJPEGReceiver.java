@@ -103,6 +103,19 @@ public class RawMJPEGReceiver {
          * @param attachement コンストラクタで与えたオブジェクト
          */
         public abstract void onReceive(byte[] frame, T attachement);
+
+        /**
+         * Socket での MJPEG フレーム受信時に、受信時刻・通番と共に呼び出される callback
+         * 標準では {@link #onReceive(byte[], Object)} を呼び出す。メタデータが必要な場合はオーバーライドすること。
+         * meta は受信スレッドで再利用されるため、callback 後も必要な値はコピーすること。
+         *
+         * @param frame 受信された MJPEG フレーム (JPEGフレーム)
+         * @param meta フレームの受信時刻, 通番 (part ヘッダは無い)
+         * @param attachement コンストラクタで与えたオブジェクト
+         */
+        public void onReceive(byte[] frame, FrameMetadata meta, T attachement) {
+            this.onReceive(frame, attachement);
+        }
         
         /**
          * Socket close 時に呼び出される callback
@@ -110,8 +123,8 @@ public class RawMJPEGReceiver {
          */
         public abstract void onClose(T attachement);
 
-        void onReceive(byte[] frame) {
-            this.onReceive(frame, this.attachment);
+        void onReceive(byte[] frame, FrameMetadata meta) {
+            this.onReceive(frame, meta, this.attachment);
         }
         void onClose() {
             this.onClose(this.attachment);
@@ -153,6 +166,12 @@ public class RawMJPEGReceiver {
                         public void run() {
                             FrameParser parser = new FrameParser(8*1024*1024);
                             ByteBuffer buffer = parser.getByteBuffer();
+                            FrameMetadata meta = new FrameMetadata();
+                            long sequence = 0;
+                            // 受信中のフレーム先頭を含む読み出しの時刻 (未受信時は pending = false)
+                            boolean pending = false;
+                            long start_nanos = 0;
+                            long start_millis = 0;
                             activeChannels.add(result);
                             try {
                                 while (result.isOpen()) {
@@ -160,13 +179,26 @@ public class RawMJPEGReceiver {
                                     if (result.read(buffer).get() < 0) {
                                         break;  // EoS
                                     }
+                                    long read_nanos = System.nanoTime();
+                                    long read_millis = System.currentTimeMillis();
+                                    if (!pending) {
+                                        pending = true;
+                                        start_nanos = read_nanos;
+                                        start_millis = read_millis;
+                                    }
 
                                     byte[] frame = null;
                                     while ((frame = parser.getFrame()) != null) {
                                         if (listen != null) {
-                                            listen.onReceive(frame);
+                                            meta.set(sequence, start_nanos, start_millis, null);
+                                            listen.onReceive(frame, meta);
                                         }
+                                        sequence++;
+                                        // 残りのデータは今回の読み出しで受信したもの
+                                        start_nanos = read_nanos;
+                                        start_millis = read_millis;
                                     }
+                                    pending = 0 < buffer.position();
                                 }
                             } catch (InterruptedException e) {
                                 logger.debug("Exception occured when SocketChannel reading", e);
@@ -0,0 +1,73 @@
+package com.github.kmkt.util.mjpeg;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 再接続の待ち時間を決める jitter 付き指数バックオフ
+ * <pre>
+ * 切断後の最初の再接続は待ち時間無しで行い、2 回目以降は
+ * initial_delay * multiplier^(n-1) を max_delay で頭打ちにした値に ±jitter の揺らぎを加えた時間だけ待つ。
+ * 不変オブジェクト
+ * </pre>
+ * License : MIT License
+ */
+public class ReconnectPolicy {
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * 初期待ち時間 500ms, 最大待ち時間 30s, 倍率 2, 揺らぎ ±20% のポリシーを生成する。
+     */
+    public ReconnectPolicy() {
+        this(500, 30*1000, 2.0, 0.2);
+    }
+
+    /**
+     * ポリシーを生成する。
+     * @param initial_delay 2 回目の再接続前の待ち時間 (ms) 1 以上
+     * @param max_delay 最大待ち時間 (ms) initial_delay 以上
+     * @param multiplier 再接続失敗毎の待ち時間の倍率 1.0 以上
+     * @param jitter 待ち時間の揺らぎの割合 0.0 以上 1.0 未満
+     * @throws IllegalArgumentException 引数が範囲外の場合
+     */
+    public ReconnectPolicy(long initial_delay, long max_delay, double multiplier, double jitter) {
+        if (initial_delay <= 0)
+            throw new IllegalArgumentException("initial_delay must be positive");
+        if (max_delay < initial_delay)
+            throw new IllegalArgumentException("max_delay should be larger than initial_delay");
+        if (multiplier < 1.0)
+            throw new IllegalArgumentException("multiplier should be 1.0 or larger");
+        if (jitter < 0.0 || 1.0 <= jitter)
+            throw new IllegalArgumentException("jitter should be in [0.0, 1.0)");
+
+        this.initialDelay = initial_delay;
+        this.maxDelay = max_delay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * 再接続前の待ち時間を返す。
+     * @param attempt 切断後の再接続試行回数 (0 origin)
+     * @return 待ち時間 (ms) attempt が 0 の場合は 0
+     */
+    public long getDelay(int attempt) {
+        if (attempt <= 0)
+            return 0;
+
+        double delay = initialDelay * Math.pow(multiplier, attempt - 1);
+        delay = Math.min(delay, maxDelay);
+        if (0 < jitter) {
+            delay *= 1.0 + jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+        }
+        return Math.max(1, (long) delay);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReconnectPolicy[initial: %d ms, max: %d ms, multiplier: %.2f, jitter: %.2f]",
+                initialDelay, maxDelay, multiplier, jitter);
+    }
+}
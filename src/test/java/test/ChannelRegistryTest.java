@@ -0,0 +1,85 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.ChannelRegistry;
+
+public class ChannelRegistryTest {
+
+    @Test
+    public void channelName() {
+        assertEquals("cam-01", ChannelRegistry.channelOf("/cam-01"));
+        assertEquals("a.b_c", ChannelRegistry.channelOf("/a.b_c"));
+        assertNull(ChannelRegistry.channelOf(null));
+        assertNull(ChannelRegistry.channelOf("/"));
+        assertNull(ChannelRegistry.channelOf("cam"));
+        assertNull(ChannelRegistry.channelOf("/cam/1"));
+        assertNull(ChannelRegistry.channelOf("/../x"));
+        assertFalse(ChannelRegistry.isValidName(new String(new char[65]).replace('\0', 'a')));
+    }
+
+    @Test
+    public void createLazily() {
+        AtomicInteger created = new AtomicInteger();
+        ChannelRegistry<StringBuilder> registry = new ChannelRegistry<>(
+                channel -> { created.incrementAndGet(); return new StringBuilder(channel); },
+                sb -> false, null, 1, TimeUnit.MINUTES);
+
+        assertNull(registry.peek("a"));
+        assertNull(registry.lookup("a"));       // lookup では生成しない
+        assertNull(registry.lookup("a/b"));
+        assertEquals(0, created.get());
+        StringBuilder a = registry.get("a");
+        assertSame(a, registry.lookup("a"));
+        assertEquals("a", a.toString());
+        assertSame(a, registry.get("a"));
+        registry.get("b");
+        assertEquals(2, created.get());
+        assertEquals(2, registry.getNumOfChannels());
+        assertTrue(registry.getChannels().contains("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidName() {
+        new ChannelRegistry<Object>(channel -> new Object(), o -> false, null, 1, TimeUnit.MINUTES).get("a/b");
+    }
+
+    @Test
+    public void evictIdle() throws Exception {
+        List<String> evicted = new ArrayList<>();
+        ChannelRegistry<AtomicInteger> registry = new ChannelRegistry<>(
+                channel -> new AtomicInteger(),
+                clients -> 0 < clients.get(),
+                (channel, clients) -> evicted.add(channel),
+                50, TimeUnit.MILLISECONDS);
+
+        registry.get("idle");
+        registry.get("busy").set(1);
+        assertEquals(0, registry.evictIdle());   // 参照直後は破棄しない
+
+        Thread.sleep(100);
+        assertEquals(1, registry.evictIdle());   // 使用中のチャネルは破棄しない
+        assertEquals(1, evicted.size());
+        assertEquals("idle", evicted.get(0));
+        assertNull(registry.peek("idle"));
+        assertNotNull(registry.peek("busy"));
+
+        registry.peek("busy").set(0);
+        registry.get("busy");                   // 参照で破棄を延期する
+        assertEquals(0, registry.evictIdle());
+        Thread.sleep(100);
+        registry.lookup("busy");                // lookup でも破棄を延期する
+        assertEquals(0, registry.evictIdle());
+
+        registry.stop();
+        assertEquals(0, registry.getNumOfChannels());
+        assertEquals(2, registry.getNumOfEvictedChannels());
+    }
+}
@@ -0,0 +1,64 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.FrameBuffer;
+import com.github.kmkt.util.mjpeg.FrameBufferPool;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void reuseBySizeClass() {
+        FrameBufferPool pool = new FrameBufferPool(1024, 8192, 2);
+
+        FrameBuffer a = pool.acquire(100);
+        assertEquals(100, a.getLength());
+        assertEquals(1024, a.getCapacity());
+        a.release();
+
+        FrameBuffer b = pool.acquire(1000);
+        assertSame(a, b);               // 同じサイズクラスは再利用される
+        assertEquals(1000, b.getLength());
+
+        FrameBuffer c = pool.acquire(1025);
+        assertEquals(2048, c.getCapacity());
+        assertNotSame(b, c);
+        b.release();
+        c.release();
+
+        assertEquals(2, pool.getNumOfAllocated());
+        assertEquals(1, pool.getNumOfReused());
+    }
+
+    @Test
+    public void retainAndRelease() {
+        FrameBufferPool pool = new FrameBufferPool(1024, 8192, 2);
+        FrameBuffer a = pool.acquire(10);
+        a.retain();
+        a.release();
+        assertEquals(1, a.getRefCount());
+
+        FrameBuffer b = pool.acquire(10);
+        assertNotSame(a, b);            // 参照中のバッファは貸し出されない
+        a.release();
+        b.release();
+
+        try {
+            a.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void oversizeIsNotPooled() {
+        FrameBufferPool pool = new FrameBufferPool(1024, 8192, 2);
+        FrameBuffer a = pool.acquire(10000);
+        assertEquals(10000, a.getCapacity());
+        a.release();
+        assertNotSame(a, pool.acquire(10000));
+    }
+}
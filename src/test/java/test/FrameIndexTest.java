@@ -0,0 +1,116 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.FrameIndex;
+import com.github.kmkt.util.mjpeg.FrameIndexWriter;
+
+public class FrameIndexTest {
+
+    @Test
+    public void buildAndSeek() throws IOException {
+        File mjpeg = File.createTempFile("frameindex", ".mjpeg");
+        File index = File.createTempFile("frameindex", ".idx");
+        mjpeg.deleteOnExit();
+        index.deleteOnExit();
+
+        // multipart/x-mixed-replace 形式の録画ファイル作成
+        List<byte[]> frames = new ArrayList<>();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            byte[] frame = new byte[10 + i];
+            frame[0] = (byte) 0xff;
+            frame[1] = (byte) 0xd8;
+            for (int j = 2; j < frame.length - 2; j++) {
+                frame[j] = (byte) (i + j);
+            }
+            frame[frame.length - 2] = (byte) 0xff;
+            frame[frame.length - 1] = (byte) 0xd9;
+            frames.add(frame);
+
+            bos.write(("--myboundary\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length
+                    + "\r\nX-Timestamp: " + (1000 + i * 40) + "\r\n\r\n").getBytes());
+            bos.write(frame);
+            bos.write("\r\n".getBytes());
+        }
+        Files.write(mjpeg.toPath(), bos.toByteArray());
+
+        try (FileChannel ch = FileChannel.open(mjpeg.toPath(), StandardOpenOption.READ)) {
+            assertEquals(100, FrameIndexWriter.buildFromMultipart(ch, "myboundary", index.toPath()));
+
+            try (FrameIndex idx = FrameIndex.open(index.toPath())) {
+                assertEquals(100, idx.size());
+                assertTrue(idx.hasTimestamp());
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(i, idx.getFrameNumber(i));
+                    assertEquals(1000 + i * 40, idx.getTimestamp(i));
+                    assertArrayEquals(frames.get(i), idx.readFrame(ch, i));
+                }
+                assertEquals(0, idx.findByTimestamp(0));
+                assertEquals(47, idx.findByTimestamp(1000 + 47 * 40));
+                assertEquals(48, idx.findByTimestamp(1000 + 47 * 40 + 1));
+                assertEquals(-1, idx.findByTimestamp(1000 + 100 * 40));
+            }
+        } finally {
+            mjpeg.delete();
+            index.delete();
+        }
+    }
+
+    @Test
+    public void buildWithoutTimestamp() throws IOException {
+        File mjpeg = File.createTempFile("frameindex", ".mjpeg");
+        File index = File.createTempFile("frameindex", ".idx");
+        mjpeg.deleteOnExit();
+        index.deleteOnExit();
+
+        byte[] frame = {(byte) 0xff, (byte) 0xd8, 1, 2, 3, (byte) 0xff, (byte) 0xd9};
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            bos.write("--myboundary\r\nContent-Type: image/jpeg\r\n\r\n".getBytes());
+            bos.write(frame);
+            bos.write("\r\n".getBytes());
+        }
+        Files.write(mjpeg.toPath(), bos.toByteArray());
+
+        try (FileChannel ch = FileChannel.open(mjpeg.toPath(), StandardOpenOption.READ)) {
+            assertEquals(3, FrameIndexWriter.buildFromMultipart(ch, "myboundary", index.toPath()));
+            try (FrameIndex idx = FrameIndex.open(index.toPath())) {
+                assertEquals(3, idx.size());
+                assertFalse(idx.hasTimestamp());
+                try {
+                    idx.findByTimestamp(0);
+                    fail();
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
+        } finally {
+            mjpeg.delete();
+            index.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offsetShouldIncrease() throws IOException {
+        File index = File.createTempFile("frameindex", ".idx");
+        index.deleteOnExit();
+        try (FrameIndexWriter writer = new FrameIndexWriter(index.toPath(), false)) {
+            writer.add(100, 10, FrameIndex.NO_TIMESTAMP);
+            writer.add(100, 10, FrameIndex.NO_TIMESTAMP);
+        } finally {
+            index.delete();
+        }
+    }
+}
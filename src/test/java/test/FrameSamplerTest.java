@@ -0,0 +1,43 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.FrameSampler;
+
+public class FrameSamplerTest {
+
+    @Test
+    public void everyNth() {
+        FrameSampler sampler = FrameSampler.everyNth(3);
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            boolean sampled = sampler.sample();
+            assertEquals(i % 3 == 0, sampled);
+            if (sampled)
+                accepted++;
+        }
+        assertEquals(4, accepted);
+
+        sampler.reset();
+        assertTrue(sampler.sample());
+    }
+
+    @Test
+    public void perInterval() throws InterruptedException {
+        FrameSampler sampler = FrameSampler.perInterval(200, TimeUnit.MILLISECONDS);
+        assertTrue(sampler.sample());   // 最初のフレームは常に採用
+        assertFalse(sampler.sample());
+        Thread.sleep(250);
+        assertTrue(sampler.sample());
+        assertFalse(sampler.sample());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidN() {
+        FrameSampler.everyNth(0);
+    }
+}
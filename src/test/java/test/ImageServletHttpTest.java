@@ -0,0 +1,311 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kmkt.util.ImageServlet;
+
+/**
+ * ImageServlet の応答を HTTP で確認するテスト
+ */
+public class ImageServletHttpTest {
+    private Server server;
+    private ImageServlet servlet;
+    private String base;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        servlet = new ImageServlet();
+        ServletContextHandler root = new ServletContextHandler(server, "/");
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        root.addServlet(holder, "/image");
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        base = "http://localhost:" + port + "/image";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static byte[] image(int len, int seed) {
+        byte[] image = new byte[len];
+        for (int i = 0; i < len; i++)
+            image[i] = (byte) (i + seed);
+        return image;
+    }
+
+    /**
+     * @param headers ヘッダ名と値の組
+     */
+    private HttpURLConnection request(String method, String query, String... headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + query).openConnection();
+        conn.setRequestMethod(method);
+        for (int i = 0; i < headers.length; i += 2)
+            conn.setRequestProperty(headers[i], headers[i + 1]);
+        return conn;
+    }
+
+    private HttpURLConnection get(String... headers) throws IOException {
+        return request("GET", "", headers);
+    }
+
+    private static byte[] body(HttpURLConnection conn) throws IOException {
+        InputStream in = (conn.getResponseCode() < 400) ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (in == null)
+            return bos.toByteArray();
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0)
+                bos.write(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void noImage() throws Exception {
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, get().getResponseCode());
+    }
+
+    @Test
+    public void ifNoneMatch() throws Exception {
+        byte[] image = image(100, 0);
+        servlet.pourFrame(image, null);
+        HttpURLConnection conn = get();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("image/jpeg", conn.getContentType());
+        assertEquals("no-cache", conn.getHeaderField("Cache-Control"));
+        assertArrayEquals(image, body(conn));
+        String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, get("If-None-Match", etag).getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, get("If-None-Match", "W/" + etag).getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, get("If-None-Match", "\"x\", " + etag).getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, get("If-None-Match", "*").getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_OK, get("If-None-Match", "\"x\"").getResponseCode());
+        assertEquals(4, servlet.getNumOfNotModified());
+
+        // 更新後は古い ETag では 304 とならない
+        servlet.pourFrame(image(100, 1), "image/png");
+        conn = get("If-None-Match", etag);
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("image/png", conn.getContentType());
+        assertNotEquals(etag, conn.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void ifModifiedSince() throws Exception {
+        servlet.pourFrame(image(100, 0), null);
+        HttpURLConnection conn = get();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        String last_modified = conn.getHeaderField("Last-Modified");
+        long modified = conn.getLastModified();
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, get("If-Modified-Since", last_modified).getResponseCode());
+        String earlier = DateGenerator.formatDate(modified - 2000);
+        assertEquals(HttpURLConnection.HTTP_OK, get("If-Modified-Since", earlier).getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_OK, get("If-Modified-Since", "invalid date").getResponseCode());
+
+        // If-None-Match がある場合は If-Modified-Since を無視する
+        assertEquals(HttpURLConnection.HTTP_OK,
+                get("If-None-Match", "\"x\"", "If-Modified-Since", last_modified).getResponseCode());
+    }
+
+    @Test
+    public void longPollReturnsImmediately() throws Exception {
+        servlet.pourFrame(image(10, 0), null);
+        servlet.pourFrame(image(10, 1), null);
+        assertEquals(2, servlet.getSequence());
+
+        // 既に新しいイメージがある場合
+        HttpURLConnection conn = request("GET", "?after=1");
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("2", conn.getHeaderField(ImageServlet.SEQUENCE_HEADER));
+        assertArrayEquals(image(10, 1), body(conn));
+
+        // 現在の通番より大きい場合 (servlet の再起動など)
+        conn = request("GET", "?after=100");
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("2", conn.getHeaderField(ImageServlet.SEQUENCE_HEADER));
+
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, request("GET", "?after=x").getResponseCode());
+        assertEquals(0, servlet.getNumOfWaiters());
+    }
+
+    @Test
+    public void longPollTimeout() throws Exception {
+        servlet.setLongPollTimeout(300, TimeUnit.MILLISECONDS);
+        servlet.pourFrame(image(10, 0), null);
+
+        long start = System.nanoTime();
+        HttpURLConnection conn = request("GET", "?after=1");
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(Long.toString(elapsed), 250 <= elapsed);
+        assertEquals("1", conn.getHeaderField(ImageServlet.SEQUENCE_HEADER));
+        assertEquals(1, servlet.getNumOfLongPollTimeouts());
+        assertEquals(0, servlet.getNumOfWaiters());
+    }
+
+    @Test
+    public void longPollWakeUp() throws Exception {
+        servlet.setLongPollTimeout(30, TimeUnit.SECONDS);
+        servlet.pourFrame(image(10, 0), null);
+
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try {
+            // 同じ通番を待つ複数のリクエストが 1 回の pourFrame でまとめて返る
+            List<Future<HttpURLConnection>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(clients.submit(() -> {
+                    HttpURLConnection conn = request("GET", "?after=1");
+                    conn.getResponseCode();
+                    return conn;
+                }));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (servlet.getNumOfWaiters() < results.size() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(results.size(), servlet.getNumOfWaiters());
+
+            servlet.pourFrame(image(10, 1), null);
+            for (Future<HttpURLConnection> result : results) {
+                HttpURLConnection conn = result.get(5, TimeUnit.SECONDS);
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                assertEquals("2", conn.getHeaderField(ImageServlet.SEQUENCE_HEADER));
+                assertArrayEquals(image(10, 1), body(conn));
+            }
+            assertEquals(0, servlet.getNumOfWaiters());
+            assertEquals(0, servlet.getNumOfLongPollTimeouts());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    /**
+     * Range 付きの GET を行い、206 で返った範囲を確認する
+     */
+    private void assertPartial(byte[] image, String range, int start, int end) throws IOException {
+        HttpURLConnection conn = get("Range", range);
+        assertEquals(range, HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+        assertEquals(range, "bytes " + start + "-" + end + "/" + image.length, conn.getHeaderField("Content-Range"));
+        assertArrayEquals(range, Arrays.copyOfRange(image, start, end + 1), body(conn));
+    }
+
+    /**
+     * Range 付きの GET を行い、Range が無視されて全体が返ることを確認する
+     */
+    private void assertFull(byte[] image, String... headers) throws IOException {
+        HttpURLConnection conn = get(headers);
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Range"));
+        assertArrayEquals(image, body(conn));
+    }
+
+    @Test
+    public void range() throws Exception {
+        byte[] image = image(100, 0);
+        servlet.pourFrame(image, null);
+        assertEquals("bytes", get().getHeaderField("Accept-Ranges"));
+
+        assertPartial(image, "bytes=10-19", 10, 19);
+        assertPartial(image, "bytes=90-", 90, 99);
+        assertPartial(image, "bytes=90-1000", 90, 99);
+        assertPartial(image, "bytes=-5", 95, 99);
+        assertPartial(image, "bytes=-1000", 0, 99);
+        assertPartial(image, " bytes= 0 - 0 ", 0, 0);
+
+        // 満たせない範囲
+        for (String range : new String[] {"bytes=100-", "bytes=200-300", "bytes=-0"}) {
+            HttpURLConnection conn = get("Range", range);
+            assertEquals(range, 416, conn.getResponseCode());
+            assertEquals(range, "bytes */100", conn.getHeaderField("Content-Range"));
+        }
+
+        // 複数範囲・不正な書式は無視して全体を返す
+        for (String range : new String[] {"bytes=0-1,5-6", "bytes=5-2", "bytes=x-1", "bytes=1", "items=0-1"}) {
+            assertFull(image, "Range", range);
+        }
+    }
+
+    @Test
+    public void ifRange() throws Exception {
+        byte[] image = image(100, 0);
+        servlet.pourFrame(image, null);
+        HttpURLConnection conn = get();
+        String etag = conn.getHeaderField("ETag");
+        String last_modified = conn.getHeaderField("Last-Modified");
+
+        HttpURLConnection partial = get("Range", "bytes=0-9", "If-Range", etag);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, partial.getResponseCode());
+        partial = get("Range", "bytes=0-9", "If-Range", last_modified);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, partial.getResponseCode());
+
+        // 弱い ETag, 一致しない日付・ETag の場合は全体を返す
+        assertFull(image, "Range", "bytes=0-9", "If-Range", "W/" + etag);
+        assertFull(image, "Range", "bytes=0-9", "If-Range", DateGenerator.formatDate(conn.getLastModified() - 2000));
+        servlet.pourFrame(image, null);
+        assertFull(image, "Range", "bytes=0-9", "If-Range", etag);
+    }
+
+    @Test
+    public void head() throws Exception {
+        servlet.pourFrame(image(100, 0), null);
+        HttpURLConnection conn = request("HEAD", "");
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals(100, conn.getContentLength());
+        assertNotNull(conn.getHeaderField("ETag"));
+        assertEquals(0, body(conn).length);
+
+        conn = request("HEAD", "", "Range", "bytes=-10");
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+        assertEquals(10, conn.getContentLength());
+        assertEquals(0, servlet.getNumOfSentFrames());
+    }
+
+    @Test
+    public void pourFile() throws Exception {
+        byte[] image = image(100000, 3);
+        Path file = Files.createTempFile("ImageServletHttpTest", ".jpg");
+        try {
+            Files.write(file, image);
+            servlet.pourFile(file, null);
+            assertFull(image);
+            assertPartial(image, "bytes=99990-", 99990, 99999);
+        } finally {
+            servlet.pourFrame(null, null);  // map の参照を外す
+            Files.delete(file);
+        }
+    }
+}
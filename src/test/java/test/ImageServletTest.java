@@ -160,6 +160,7 @@ public class ImageServletTest {
             // MJPEGのセットアップ
             final ImageServlet servlet = new ImageServlet();
             ServletHolder wsh = new ServletHolder(servlet);
+            wsh.setAsyncSupported(true);   // ?after= による long-poll 用
             root.addServlet(wsh, imagepath);
 
             // set callback when receive JPEG frame
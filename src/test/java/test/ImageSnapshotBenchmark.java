@@ -0,0 +1,167 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ImageServlet のイメージ公開方式の比較ベンチマーク
+ *
+ * <pre>
+ * 公平な ReentrantReadWriteLock で複数の volatile フィールドを守る方式 (旧実装) と、
+ * 不変のスナップショットを 1 つの volatile 参照で公開する方式 (現実装) について、
+ * 一定レートの pourFrame 中に複数スレッドから読み出せる回数を比較する。
+ * 各方式はウォームアップの後に計測する。
+ * </pre>
+ */
+public class ImageSnapshotBenchmark {
+
+    /** 読み出し結果 (フレーム長, 通番) を消費する */
+    private static final AtomicLong sink = new AtomicLong();
+
+    private interface Holder {
+        void pour(byte[] image, String content_type);
+        /** @return 読み出した組から計算した値 */
+        long read();
+    }
+
+    /** 旧実装相当 : 公平 ReadWriteLock で守られた volatile フィールド群 */
+    private static class LockedHolder implements Holder {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+        private volatile byte[] frame = null;
+        private volatile String contentType = "";
+        private volatile long sequence = 0;
+        private volatile long timestamp = -1;
+
+        @Override
+        public void pour(byte[] image, String content_type) {
+            lock.writeLock().lock();
+            try {
+                frame = image;
+                contentType = content_type;
+                sequence++;
+                timestamp = System.currentTimeMillis();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public long read() {
+            lock.readLock().lock();
+            try {
+                return frame.length + contentType.length() + sequence + timestamp;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /** 現実装相当 : volatile 参照で公開される不変のスナップショット */
+    private static class SnapshotHolder implements Holder {
+        private static final class Snapshot {
+            final byte[] image;
+            final String contentType;
+            final long sequence;
+            final long timestamp;
+
+            Snapshot(byte[] image, String content_type, long sequence, long timestamp) {
+                this.image = image;
+                this.contentType = content_type;
+                this.sequence = sequence;
+                this.timestamp = timestamp;
+            }
+        }
+
+        private volatile Snapshot snapshot = new Snapshot(new byte[0], "", 0, -1);
+
+        @Override
+        public synchronized void pour(byte[] image, String content_type) {
+            snapshot = new Snapshot(image, content_type, snapshot.sequence + 1, System.currentTimeMillis());
+        }
+
+        @Override
+        public long read() {
+            Snapshot s = snapshot;
+            return s.image.length + s.contentType.length() + s.sequence + s.timestamp;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int readers = (0 < args.length) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int fps = (1 < args.length) ? Integer.parseInt(args[1]) : 30;
+        int duration = (2 < args.length) ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("ImageServlet スナップショット公開方式ベンチマーク");
+        System.out.println("USAGE : ImageSnapshotBenchmark [readers] [pour fps (0 : 連続)] [duration (s)]");
+        System.out.printf("readers: %d, pour fps: %d, duration: %d s%n", readers, fps, duration);
+
+        for (int i = 0; i < 2; i++) {
+            boolean warmup = (i == 0);
+            run("fair-rwlock", new LockedHolder(), readers, fps, warmup ? 1 : duration, warmup);
+            run("snapshot", new SnapshotHolder(), readers, fps, warmup ? 1 : duration, warmup);
+        }
+        System.out.println("(sink " + sink.get() + ")");
+    }
+
+    private static void run(String name, Holder holder, int readers, int fps, int duration, boolean warmup)
+            throws InterruptedException {
+        byte[] frame = new byte[64 * 1024];
+        holder.pour(frame, "image/jpeg");
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong reads = new AtomicLong();
+        for (int i = 0; i < readers; i++) {
+            Thread t = new Thread(() -> {
+                long n = 0;
+                long acc = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end) {
+                    // 時刻取得の負荷を抑えるため 1024 回毎に終了判定する
+                    for (int j = 0; j < 1024; j++) {
+                        acc += holder.read();
+                    }
+                    n += 1024;
+                }
+                reads.addAndGet(n);
+                sink.addAndGet(acc);
+            }, "reader-" + i);
+            t.start();
+            threads.add(t);
+        }
+
+        long pours = 0;
+        long period = (0 < fps) ? TimeUnit.SECONDS.toNanos(1) / fps : 0;
+        long begin = System.nanoTime();
+        long next = begin;
+        start.countDown();
+        while (System.nanoTime() < end) {
+            holder.pour(frame, "image/jpeg");
+            pours++;
+            if (0 < period) {
+                next += period;
+                long wait = next - System.nanoTime();
+                if (0 < wait)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        if (!warmup) {
+            System.out.printf("%-12s reads: %,.0f /s, pours: %,.0f /s%n", name, reads.get() / elapsed, pours / elapsed);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.JpegCodec;
+
+public class JpegCodecTest {
+
+    private static byte[] createJpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, width / 2, height);
+        g.dispose();
+        return JpegCodec.encode(image, 0.8f);
+    }
+
+    @Test
+    public void encodeAndDecode() throws Exception {
+        byte[] jpeg = createJpeg(320, 240);
+        assertEquals((byte) 0xff, jpeg[0]);
+        assertEquals((byte) 0xd8, jpeg[1]);
+
+        BufferedImage image = JpegCodec.decode(jpeg, 0, jpeg.length);
+        assertEquals(320, image.getWidth());
+        assertEquals(240, image.getHeight());
+        assertTrue(200 < ((image.getRGB(10, 10) >> 16) & 0xff));   // 左半分は赤
+    }
+
+    @Test
+    public void subsampledDecode() throws Exception {
+        byte[] jpeg = createJpeg(640, 480);
+
+        // 160x120 を下回らない最大の間引き率 4
+        BufferedImage image = JpegCodec.decode(jpeg, 0, jpeg.length, 150, 100);
+        assertEquals(160, image.getWidth());
+        assertEquals(120, image.getHeight());
+
+        // オフセット付きのデータ
+        byte[] padded = new byte[jpeg.length + 10];
+        System.arraycopy(jpeg, 0, padded, 5, jpeg.length);
+        image = JpegCodec.decode(padded, 5, jpeg.length, 320, 240);
+        assertEquals(320, image.getWidth());
+    }
+
+    @Test
+    public void scaleKeepsAspect() {
+        BufferedImage src = new BufferedImage(400, 100, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = src.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 100);
+        g.dispose();
+
+        BufferedImage dst = JpegCodec.scale(src, 200, 200);
+        assertEquals(200, dst.getWidth());
+        assertEquals(0, dst.getRGB(100, 10) & 0xffffff);            // 上の余白は黒
+        assertEquals(0xffffff, dst.getRGB(100, 100) & 0xffffff);
+    }
+}
@@ -0,0 +1,105 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.FrameBuffer;
+import com.github.kmkt.util.mjpeg.JpegCodec;
+import com.github.kmkt.util.mjpeg.MjpegMosaic;
+import com.github.kmkt.util.mjpeg.MjpegServlet;
+
+public class MjpegMosaicTest {
+
+    /**
+     * クライアントが接続しているものとして、供給されたフレームを記録する出力先
+     */
+    private static class Output extends MjpegServlet {
+        private static final long serialVersionUID = 1L;
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+
+        @Override
+        public int getNumOfClients() {
+            return 1;
+        }
+
+        @Override
+        public void pourFrame(byte[] frame) {
+            frames.add(frame);
+        }
+    }
+
+    private static byte[] createJpeg(Color color, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return JpegCodec.encode(image, 0.9f);
+    }
+
+    @Test
+    public void compose() throws Exception {
+        Output output = new Output();
+        MjpegMosaic mosaic = new MjpegMosaic(2, 2, 80, 60, 20, 0.9f, output);
+        assertEquals(4, mosaic.getNumOfSlots());
+        mosaic.pourFrame(0, createJpeg(Color.RED, 320, 240));
+        mosaic.pourFrame(3, createJpeg(Color.BLUE, 160, 120));
+        mosaic.start();
+        try {
+            byte[] frame = output.frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            BufferedImage image = JpegCodec.decode(frame, 0, frame.length);
+            assertEquals(160, image.getWidth());
+            assertEquals(120, image.getHeight());
+            assertColor(Color.RED, image.getRGB(40, 30));       // slot 0 : 左上
+            assertColor(Color.BLACK, image.getRGB(120, 30));    // slot 1 : 未供給
+            assertColor(Color.BLUE, image.getRGB(120, 90));     // slot 3 : 右下
+            assertEquals(2, mosaic.getNumOfDecodedFrames());
+            assertEquals(0, mosaic.getNumOfErrorFrames());
+        } finally {
+            mosaic.stop();
+        }
+    }
+
+    @Test
+    public void releaseAfterStop() throws Exception {
+        Output output = new Output() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public int getNumOfClients() {
+                return 0;   // 合成させずにフレームを保持させる
+            }
+        };
+        MjpegMosaic mosaic = new MjpegMosaic(1, 1, 80, 60, 20, 0.9f, output);
+        mosaic.start();
+
+        FrameBuffer held = FrameBuffer.wrap(createJpeg(Color.RED, 80, 60));
+        mosaic.pourFrame(0, held);
+        assertEquals(2, held.getRefCount());
+        mosaic.stop();
+        assertEquals(1, held.getRefCount());    // 保持していたフレームは stop で release される
+
+        FrameBuffer late = FrameBuffer.wrap(createJpeg(Color.RED, 80, 60));
+        mosaic.pourFrame(0, late);
+        assertEquals(1, late.getRefCount());    // stop 後のフレームは保持しない
+        held.release();
+        late.release();
+    }
+
+    private static void assertColor(Color expected, int rgb) {
+        Color actual = new Color(rgb);
+        String message = "expected " + expected + " but was " + actual;
+        assertTrue(message, Math.abs(expected.getRed() - actual.getRed()) < 40);
+        assertTrue(message, Math.abs(expected.getGreen() - actual.getGreen()) < 40);
+        assertTrue(message, Math.abs(expected.getBlue() - actual.getBlue()) < 40);
+    }
+}
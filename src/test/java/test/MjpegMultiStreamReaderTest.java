@@ -0,0 +1,148 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.MjpegMultiStreamReader.ChunkedDecoder;
+import com.github.kmkt.util.mjpeg.MjpegMultiStreamReader.ResponseHead;
+import com.github.kmkt.util.mjpeg.MultipartStreamParser;
+import com.github.kmkt.util.mjpeg.MultipartStreamParser.PartHeader;
+
+public class MjpegMultiStreamReaderTest {
+
+    @Test
+    public void parseResponseHead() throws IOException {
+        ResponseHead head = ResponseHead.parse("HTTP/1.1 200 OK\r\n"
+                + "content-type: multipart/x-mixed-replace;boundary=\"myboundary\"\r\n"
+                + "Transfer-Encoding: Chunked\r\n"
+                + "X-Broken-Line\r\n");
+        assertEquals("myboundary", head.getBoundary());
+        assertTrue(head.isChunked());
+        assertEquals("multipart/x-mixed-replace;boundary=\"myboundary\"", head.getContentType());
+
+        head = ResponseHead.parse("HTTP/1.0 200\r\nContent-Type: Multipart/X-Mixed-Replace; charset=x; Boundary=--b");
+        assertEquals("--b", head.getBoundary());
+        assertFalse(head.isChunked());
+    }
+
+    @Test
+    public void rejectResponseHead() {
+        String[] invalid = {
+            "",
+            "ICY 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=b",
+            "HTTP/1.1\r\nContent-Type: multipart/x-mixed-replace; boundary=b",
+            "HTTP/1.1 401 Unauthorized\r\nContent-Type: multipart/x-mixed-replace; boundary=b",
+            "HTTP/1.1 200 OK\r\nServer: x",
+            "HTTP/1.1 200 OK\r\nContent-Type: image/jpeg",
+            "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace",
+            "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=",
+            "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=\"\"",
+            "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=--",
+        };
+        for (String response : invalid) {
+            try {
+                ResponseHead.parse(response);
+                fail(response);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void decodeChunked() throws IOException {
+        byte[] frame1 = frame(300);
+        byte[] frame2 = frame(5000);
+        byte[] body = multipart(frame1, frame2);
+
+        // 任意のサイズの chunk に分割し、chunk 拡張と大文字の 16 進数を含める
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+        int[] sizes = {1, 17, 255, 4096, Integer.MAX_VALUE};
+        int pos = 0;
+        for (int i = 0; pos < body.length; i++) {
+            int n = Math.min(sizes[i % sizes.length], body.length - pos);
+            String line = Integer.toHexString(n).toUpperCase() + ((i % 2 == 0) ? ";ext=1" : "") + "\r\n";
+            chunked.write(line.getBytes(StandardCharsets.US_ASCII));
+            chunked.write(body, pos, n);
+            chunked.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            pos += n;
+        }
+        byte[] encoded = chunked.toByteArray();
+
+        // 1 バイトずつ与えても、まとめて与えても同じ結果となる
+        for (int step : new int[] {1, 7, encoded.length}) {
+            List<byte[]> frames = new ArrayList<>();
+            ChunkedDecoder decoder = new ChunkedDecoder(parser(frames));
+            for (int off = 0; off < encoded.length; off += step)
+                decoder.feed(encoded, off, Math.min(step, encoded.length - off));
+            assertEquals("step " + step, 2, frames.size());
+            assertArrayEquals(frame1, frames.get(0));
+            assertArrayEquals(frame2, frames.get(1));
+        }
+    }
+
+    @Test
+    public void rejectChunked() {
+        String[] invalid = {
+            "xyz\r\n",
+            "-1\r\n",
+            "0\r\n",
+            "7fffffffffffffffff\r\n",
+            new String(new char[300]).replace('\0', '1'),
+        };
+        for (String data : invalid) {
+            try {
+                byte[] b = data.getBytes(StandardCharsets.US_ASCII);
+                new ChunkedDecoder(parser(new ArrayList<>())).feed(b, 0, b.length);
+                fail(data);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static MultipartStreamParser parser(List<byte[]> frames) {
+        return new MultipartStreamParser("myboundary", new MultipartStreamParser.PartListener() {
+            @Override
+            public boolean onPartHeader(PartHeader header) {
+                return true;
+            }
+
+            @Override
+            public void onPartBody(byte[] b, int off, int len, PartHeader header) {
+                frames.add(Arrays.copyOfRange(b, off, off + len));
+            }
+        });
+    }
+
+    private static byte[] frame(int len) {
+        byte[] frame = new byte[len];
+        for (int i = 0; i < len; i++)
+            frame[i] = (byte) (i * 31);
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xd8;
+        frame[len - 2] = (byte) 0xff;
+        frame[len - 1] = (byte) 0xd9;
+        return frame;
+    }
+
+    private static byte[] multipart(byte[]... frames) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            bos.write(("--myboundary\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            bos.write(frame);
+            bos.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        bos.write("--myboundary\r\n".getBytes(StandardCharsets.US_ASCII));
+        return bos.toByteArray();
+    }
+}
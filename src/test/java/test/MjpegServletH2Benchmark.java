@@ -0,0 +1,144 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import com.github.kmkt.util.mjpeg.MjpegServlet;
+
+/**
+ * MjpegServlet の多数ストリーム配信を HTTP/1.1 (ストリーム毎の接続) と h2c (1 接続での多重化) で比較するベンチマーク
+ */
+public class MjpegServletH2Benchmark {
+    private static final int HTTP1_PORT = 18180;
+    private static final int H2C_PORT = 18181;
+
+    public static void main(String[] args) throws Exception {
+        int streams = (0 < args.length) ? Integer.parseInt(args[0]) : 32;
+        int frame_size = (1 < args.length) ? Integer.parseInt(args[1]) : 64*1024;
+        int fps = (2 < args.length) ? Integer.parseInt(args[2]) : 15;
+        int duration = (3 < args.length) ? Integer.parseInt(args[3]) : 10;
+
+        System.out.println("MjpegServlet HTTP/1.1 vs h2c ベンチマーク");
+        System.out.println("USAGE : MjpegServletH2Benchmark [streams] [frame size] [fps] [duration (s)]");
+        System.out.printf("streams: %d, frame size: %d byte, fps: %d, duration: %d s%n", streams, frame_size, fps, duration);
+
+        HttpConfiguration config = new HttpConfiguration();
+        Server server = new Server();
+        ServerConnector http1 = new ServerConnector(server, new HttpConnectionFactory(config));
+        http1.setPort(HTTP1_PORT);
+        ServerConnector h2c = new ServerConnector(server, new HTTP2CServerConnectionFactory(config));
+        h2c.setPort(H2C_PORT);
+        server.addConnector(http1);
+        server.addConnector(h2c);
+
+        MjpegServlet servlet = new MjpegServlet();
+        ServletContextHandler root = new ServletContextHandler(server, "/");
+        root.addServlet(new ServletHolder(servlet), "/mjpeg");
+        server.start();
+
+        byte[] frame = new byte[frame_size];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xd8;
+        frame[frame_size - 2] = (byte) 0xff;
+        frame[frame_size - 1] = (byte) 0xd9;
+
+        try {
+            HttpClient http1_client = new HttpClient();
+            http1_client.setMaxConnectionsPerDestination(streams);
+            run("HTTP/1.1", http1_client, "http://localhost:" + HTTP1_PORT + "/mjpeg", servlet, frame, streams, fps, duration);
+
+            HttpClient h2c_client = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+            run("h2c", h2c_client, "http://localhost:" + H2C_PORT + "/mjpeg", servlet, frame, streams, fps, duration);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(String name, HttpClient client, String url, MjpegServlet servlet, byte[] frame,
+            int streams, int fps, int duration) throws Exception {
+        client.start();
+        List<AtomicLong> received = new ArrayList<>();
+        try {
+            for (int i = 0; i < streams; i++) {
+                AtomicLong bytes = new AtomicLong();
+                received.add(bytes);
+                Request req = client.newRequest(url).idleTimeout(duration + 10, TimeUnit.SECONDS);
+                req.onResponseContent((response, content) -> bytes.addAndGet(content.remaining()));
+                req.send(result -> {
+                    if (result.isFailed() && !client.isStopping())
+                        System.out.println(name + " stream failed : " + result.getFailure());
+                });
+                if (i == 0) {
+                    // 接続確立前に送ったリクエストは HTTP/2 セッション確立後に送出されないため、最初のストリームの開始を待つ
+                    long deadline = System.currentTimeMillis() + 10*1000;
+                    while (servlet.getNumOfClients() == 0 && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(10);
+                    }
+                }
+            }
+
+            // 全ストリームの接続待ち
+            long deadline = System.currentTimeMillis() + 10*1000;
+            while (servlet.getNumOfClients() < streams && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (servlet.getNumOfClients() < streams) {
+                System.out.printf("%-8s only %d of %d streams connected%n", name, servlet.getNumOfClients(), streams);
+            }
+
+            long sent_before = servlet.getNumOfSentFrames();
+            long dropped_before = servlet.getNumOfDroppedFrames();
+            for (AtomicLong bytes : received)
+                bytes.set(0);
+
+            long period = TimeUnit.SECONDS.toNanos(1) / fps;
+            long start = System.nanoTime();
+            long next = start;
+            int poured = 0;
+            while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(duration)) {
+                servlet.pourFrame(frame);
+                poured++;
+                next += period;
+                long wait = next - System.nanoTime();
+                if (0 < wait)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            for (AtomicLong bytes : received) {
+                total += bytes.get();
+                min = Math.min(min, bytes.get());
+            }
+            System.out.printf("%-8s poured: %d, sent: %d, dropped: %d, recv: %.1f MB/s, min stream: %.1f fps%n",
+                    name, poured,
+                    servlet.getNumOfSentFrames() - sent_before,
+                    servlet.getNumOfDroppedFrames() - dropped_before,
+                    total / elapsed / 1024 / 1024,
+                    min / (double) frame.length / elapsed);
+        } finally {
+            client.stop();
+            // 切断を servlet に検出させる
+            long deadline = System.currentTimeMillis() + 5*1000;
+            while (0 < servlet.getNumOfClients() && System.currentTimeMillis() < deadline) {
+                servlet.pourFrame(frame);
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.MjpegServlet;
+import com.github.kmkt.util.mjpeg.MultipartStreamParser;
+import com.github.kmkt.util.mjpeg.MultipartStreamParser.PartHeader;
+
+public class MjpegServletTest {
+    private Server server;
+    private MjpegServlet servlet;
+    private int port;
+
+    /**
+     * 受信したフレームを記録する MJPEG クライアント
+     * MjpegServlet は最初のフレームまで応答ヘッダを送らないため、応答の受信は受信スレッドで行う。
+     * chunked とならないよう HTTP/1.0 で要求する。
+     */
+    private static class Client implements AutoCloseable {
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        final Socket socket;
+        final Thread reader;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.getOutputStream().write("GET /mjpeg HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            reader = new Thread(() -> {
+                try {
+                    MultipartStreamParser parser = new MultipartStreamParser(readBoundary(in), new MultipartStreamParser.PartListener() {
+                        @Override
+                        public boolean onPartHeader(PartHeader header) {
+                            return true;
+                        }
+
+                        @Override
+                        public void onPartBody(byte[] b, int off, int len, PartHeader header) {
+                            frames.add(Arrays.copyOfRange(b, off, off + len));
+                        }
+                    });
+                    while (0 <= parser.readFrom(in)) {
+                    }
+                } catch (IOException e) {
+                    // 切断
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * 応答ヘッダを読み、boundary を返す
+         */
+        private static String readBoundary(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") < 0) {
+                int c = in.read();
+                if (c < 0)
+                    throw new EOFException();
+                head.append((char) c);
+            }
+            String h = head.toString();
+            int st = h.indexOf("boundary=") + "boundary=".length();
+            return h.substring(st, h.indexOf("\r\n", st));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        servlet = new MjpegServlet();
+        ServletContextHandler root = new ServletContextHandler(server, "/");
+        root.addServlet(new ServletHolder(servlet), "/mjpeg");
+        server.start();
+        port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.setStopTimeout(100);     // 配信中の doGet の終了を待たない
+        server.stop();
+    }
+
+    private static byte[] frame(int seed) {
+        byte[] frame = new byte[1000];
+        Arrays.fill(frame, (byte) seed);
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xd8;
+        frame[998] = (byte) 0xff;
+        frame[999] = (byte) 0xd9;
+        return frame;
+    }
+
+    /**
+     * client が frame を受信するまで frame を供給する
+     */
+    private void pourUntilReceived(Client client, byte[] frame) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            servlet.pourFrame(frame);
+            byte[] received = client.frames.poll(50, TimeUnit.MILLISECONDS);
+            if (received != null) {
+                assertArrayEquals(frame, received);
+                return;
+            }
+        }
+        fail("frame is not received");
+    }
+
+    @Test
+    public void suppressDuplicatePerClient() throws Exception {
+        servlet.setDuplicateSuppression(60000);
+        byte[] frame1 = frame(1);
+        byte[] frame2 = frame(2);
+        try (Client a = new Client(port)) {
+            pourUntilReceived(a, frame1);
+
+            try (Client b = new Client(port)) {
+                // a は受け取り済みのため再送されないが、新規クライアントの b には配信される
+                pourUntilReceived(b, frame1);
+                assertNull(a.frames.poll(200, TimeUnit.MILLISECONDS));
+                assertTrue(0 < servlet.getNumOfSuppressedFrames());
+
+                // 新しいフレームは両方に配信される
+                pourUntilReceived(a, frame2);
+                pourUntilReceived(b, frame2);
+            }
+        }
+    }
+
+    @Test
+    public void keepaliveResendsDuplicate() throws Exception {
+        servlet.setDuplicateSuppression(0);
+        byte[] frame = frame(1);
+        try (Client a = new Client(port)) {
+            pourUntilReceived(a, frame);
+            pourUntilReceived(a, frame);    // keepalive 間隔 0 のため同一フレームも配信される
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.MultipartStreamParser;
+import com.github.kmkt.util.mjpeg.MultipartStreamParser.PartHeader;
+
+public class MultipartStreamParserTest {
+
+    /**
+     * 受信した part を記録する listener
+     */
+    static class Recorder implements MultipartStreamParser.PartListener {
+        final List<byte[]> bodies = new ArrayList<>();
+        final List<String> timestamps = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean onPartHeader(PartHeader header) {
+            return accept;
+        }
+
+        @Override
+        public void onPartBody(byte[] b, int off, int len, PartHeader header) {
+            bodies.add(Arrays.copyOfRange(b, off, off + len));
+            timestamps.add(header.getHeader("x-timestamp"));
+        }
+    }
+
+    private static byte[] frame(Random rand, int len) {
+        byte[] frame = new byte[len];
+        rand.nextBytes(frame);
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xd8;
+        frame[len - 2] = (byte) 0xff;
+        frame[len - 1] = (byte) 0xd9;
+        return frame;
+    }
+
+    private static byte[] multipart(List<byte[]> frames, boolean content_length) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write("preamble\r\n".getBytes());
+        int i = 0;
+        for (byte[] frame : frames) {
+            bos.write("--boundary\r\nContent-Type: image/jpeg\r\n".getBytes());
+            if (content_length)
+                bos.write(("Content-Length: " + frame.length + "\r\n").getBytes());
+            bos.write(("X-Timestamp: " + i + "\r\n\r\n").getBytes());
+            bos.write(frame);
+            bos.write("\r\n".getBytes());
+            i++;
+        }
+        bos.write("--boundary--\r\n".getBytes());
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void feedInRandomChunks() throws IOException {
+        Random rand = new Random(1);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            frames.add(frame(rand, 2 + rand.nextInt(3000)));
+        }
+
+        for (boolean content_length : new boolean[]{true, false}) {
+            byte[] data = multipart(frames, content_length);
+            Recorder rec = new Recorder();
+            MultipartStreamParser parser = new MultipartStreamParser("--boundary", rec, 64);
+            int pos = 0;
+            while (pos < data.length) {
+                int len = Math.min(data.length - pos, 1 + rand.nextInt(500));
+                parser.feed(data, pos, len);
+                pos += len;
+            }
+            assertTrue(parser.isFinished());
+            assertEquals(frames.size(), rec.bodies.size());
+            for (int i = 0; i < frames.size(); i++) {
+                assertArrayEquals(frames.get(i), rec.bodies.get(i));
+                assertEquals(Integer.toString(i), rec.timestamps.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void readFromStream() throws IOException {
+        Random rand = new Random(2);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            frames.add(frame(rand, 2 + rand.nextInt(100000)));
+        }
+        byte[] data = multipart(frames, true);
+
+        Recorder rec = new Recorder();
+        MultipartStreamParser parser = new MultipartStreamParser("boundary", rec, 1024);
+        InputStream in = new ByteArrayInputStream(data);
+        while (parser.readFrom(in) >= 0) {
+        }
+        assertEquals(frames.size(), rec.bodies.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(frames.get(i), rec.bodies.get(i));
+        }
+    }
+
+    @Test
+    public void discardParts() throws IOException {
+        Random rand = new Random(3);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            frames.add(frame(rand, 1000));
+        }
+
+        for (boolean content_length : new boolean[]{true, false}) {
+            byte[] data = multipart(frames, content_length);
+            Recorder rec = new Recorder();
+            rec.accept = false;
+            MultipartStreamParser parser = new MultipartStreamParser("boundary", rec, 64);
+            parser.feed(data, 0, data.length);
+            assertTrue(parser.isFinished());
+            assertEquals(0, rec.bodies.size());
+        }
+    }
+
+    @Test
+    public void tooLargeParts() throws IOException {
+        Random rand = new Random(4);
+        List<byte[]> frames = Arrays.asList(frame(rand, 500), frame(rand, 2000), frame(rand, 1000));
+
+        // 最大フレームサイズを超える part は読み捨て、後続の part は受信する
+        for (boolean content_length : new boolean[]{true, false}) {
+            byte[] data = multipart(frames, content_length);
+            Recorder rec = new Recorder();
+            MultipartStreamParser parser = new MultipartStreamParser("boundary", rec, 64, 1000);
+            InputStream in = new ByteArrayInputStream(data);
+            while (parser.readFrom(in) >= 0) {
+            }
+            assertTrue(parser.isFinished());
+            assertEquals(2, rec.bodies.size());
+            assertArrayEquals(frames.get(0), rec.bodies.get(0));
+            assertArrayEquals(frames.get(2), rec.bodies.get(1));
+            assertEquals("2", rec.timestamps.get(1));
+        }
+
+        // 巨大な Content-Length でもボディの受信前に確保しない
+        byte[] data = "--boundary\r\nContent-Length: 2000000000\r\n\r\n0123".getBytes();
+        Recorder rec = new Recorder();
+        MultipartStreamParser parser = new MultipartStreamParser("boundary", rec);
+        parser.feed(data, 0, data.length);
+        assertEquals(0, rec.bodies.size());
+    }
+
+    @Test
+    public void headerAccess() throws IOException {
+        byte[] data = "--b\r\nContent-Length:  3 \r\nX-Timestamp: 12345\r\nX-Empty:\r\n\r\nabc\r\n--b".getBytes();
+        final List<String> values = new ArrayList<>();
+        MultipartStreamParser parser = new MultipartStreamParser("b", new MultipartStreamParser.PartListener() {
+            @Override
+            public boolean onPartHeader(PartHeader header) {
+                values.add(Long.toString(header.getContentLength()));
+                values.add(Long.toString(header.getHeaderAsLong("X-TIMESTAMP", -1)));
+                values.add(header.getHeader("x-empty"));
+                values.add(String.valueOf(header.getHeader("Content-Type")));
+                return true;
+            }
+
+            @Override
+            public void onPartBody(byte[] b, int off, int len, PartHeader header) {
+                values.add(new String(b, off, len));
+            }
+        });
+        parser.feed(data, 0, data.length);
+        assertEquals(Arrays.asList("3", "12345", "", "null", "abc"), values);
+    }
+
+    @Test
+    public void partStartBeforeHeader() throws IOException {
+        // boundary 行と part ヘッダが別々の読み出しで届いても、boundary 行の受信時に onPartStart が呼ばれる
+        final List<String> events = new ArrayList<>();
+        MultipartStreamParser parser = new MultipartStreamParser("b", new MultipartStreamParser.PartListener() {
+            @Override
+            public void onPartStart() {
+                events.add("start");
+            }
+
+            @Override
+            public boolean onPartHeader(PartHeader header) {
+                events.add("header");
+                return true;
+            }
+
+            @Override
+            public void onPartBody(byte[] b, int off, int len, PartHeader header) {
+                events.add(new String(b, off, len));
+            }
+        });
+        String[] chunks = {"--b", "\r\n", "Content-Length: 3\r\n", "\r\nabc\r\n--b\r\n\r\n", "xy\r\n--b--\r\n"};
+        List<String> expected = Arrays.asList("start", "header", "abc", "start", "header", "xy");
+        int[] counts = {0, 1, 1, 5, 6};
+        for (int i = 0; i < chunks.length; i++) {
+            byte[] b = chunks[i].getBytes();
+            parser.feed(b, 0, b.length);
+            assertEquals(expected.subList(0, counts[i]), events);
+        }
+        assertTrue(parser.isFinished());
+    }
+}
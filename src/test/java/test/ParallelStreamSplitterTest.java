@@ -0,0 +1,106 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.ParallelStreamSplitter;
+
+public class ParallelStreamSplitterTest {
+
+    @Test
+    public void sameAsSequentialSearch() throws IOException {
+        Random rand = new Random(1);
+        byte[][] delimiters = new byte[][]{"ab".getBytes(), "aab".getBytes(), "abab".getBytes(), "a".getBytes()};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (byte[] delimiter : delimiters) {
+                for (int n = 0; n < 50; n++) {
+                    byte[] data = new byte[rand.nextInt(200)];
+                    for (int i = 0; i < data.length; i++) {
+                        data[i] = (byte) ('a' + rand.nextInt(3));
+                    }
+                    int chunk_size = delimiter.length + rand.nextInt(10);
+                    assertEquals(splitSequential(data, delimiter), splitParallel(data, delimiter, chunk_size, pool));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void delimiterOnChunkBoundary() throws IOException {
+        byte[] data = "0123--456--789--".getBytes();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            List<String> expect = new ArrayList<>();
+            expect.add("0123");
+            expect.add("456");
+            expect.add("789");
+            // "--" の 1 バイト目が各チャンク末尾に来るチャンクサイズ
+            assertEquals(expect, splitParallel(data, "--".getBytes(), 5, pool));
+            assertEquals(expect, splitSequential(data, "--".getBytes()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 逐次の単純探索による分割 (先頭部分は常に返し、末尾デリミタ以降が空の場合は返さない)
+     */
+    private static List<String> splitSequential(byte[] data, byte[] delimiter) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        int i = 0;
+        while (i <= data.length - delimiter.length) {
+            boolean hit = true;
+            for (int j = 0; j < delimiter.length; j++) {
+                if (data[i + j] != delimiter[j]) {
+                    hit = false;
+                    break;
+                }
+            }
+            if (hit) {
+                result.add(new String(data, start, i - start));
+                i += delimiter.length;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (result.isEmpty() || start < data.length) {
+            result.add(new String(data, start, data.length - start));
+        }
+        return result;
+    }
+
+    private static List<String> splitParallel(byte[] data, byte[] delimiter, int chunk_size, ForkJoinPool pool) throws IOException {
+        File f = File.createTempFile("splitter", ".bin");
+        f.deleteOnExit();
+        try {
+            Files.write(f.toPath(), data);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                ParallelStreamSplitter splitter = new ParallelStreamSplitter(ch, delimiter, chunk_size, pool);
+                return splitter.stream(true).map(part -> {
+                    ByteBuffer b = part.read();
+                    return new String(b.array(), 0, b.limit());
+                }).collect(Collectors.toList());
+            }
+        } finally {
+            f.delete();
+        }
+    }
+}
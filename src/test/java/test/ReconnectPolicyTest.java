@@ -0,0 +1,124 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.mjpeg.MjpegHTTPReader;
+import com.github.kmkt.util.mjpeg.ReconnectPolicy;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void backoffGrowsUpToMax() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2.0, 0.0);
+        assertEquals(0, policy.getDelay(0));    // 切断直後は待たない
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(200, policy.getDelay(2));
+        assertEquals(400, policy.getDelay(3));
+        assertEquals(800, policy.getDelay(4));
+        assertEquals(1000, policy.getDelay(5)); // max_delay で頭打ち
+        assertEquals(1000, policy.getDelay(100));
+        assertEquals(1000, policy.getDelay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void resetAfterConnect() {
+        // MjpegHTTPReader は接続成功で試行回数を 0 に戻すため、次の切断後の最初の再接続は待たない
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2.0, 0.0);
+        assertEquals(1000, policy.getDelay(10));
+        assertEquals(0, policy.getDelay(0));
+        assertEquals(100, policy.getDelay(1));
+    }
+
+    @Test
+    public void constantWithoutMultiplier() {
+        ReconnectPolicy policy = new ReconnectPolicy(300, 300, 1.0, 0.0);
+        for (int attempt = 1; attempt < 10; attempt++)
+            assertEquals(300, policy.getDelay(attempt));
+    }
+
+    @Test
+    public void jitterStaysInRange() {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, 2.0, 0.2);
+        assertEquals(0, policy.getDelay(0));
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelay(3);
+            assertTrue(Long.toString(delay), 800 <= delay && delay <= 1200);
+        }
+    }
+
+    @Test
+    public void invalidArguments() {
+        long[][] delays = {{0, 100}, {100, 99}};
+        for (long[] d : delays) {
+            try {
+                new ReconnectPolicy(d[0], d[1], 2.0, 0.0);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        double[][] factors = {{0.9, 0.0}, {2.0, -0.1}, {2.0, 1.0}};
+        for (double[] f : factors) {
+            try {
+                new ReconnectPolicy(100, 1000, f[0], f[1]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void readerBacksOffWithoutFrames() throws Exception {
+        // レスポンスヘッダのみを返して直ちに切断するサーバ
+        AtomicInteger accepted = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread t = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        accepted.incrementAndGet();
+                        readRequest(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.0 200 OK\r\n"
+                                + "Content-Type: multipart/x-mixed-replace; boundary=b\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+
+            MjpegHTTPReader reader = new MjpegHTTPReader(new URI("http://localhost:" + server.getLocalPort() + "/"),
+                    frame -> {}, null, null);
+            reader.setReconnectPolicy(new ReconnectPolicy(100, 1000, 2.0, 0.0));
+            reader.start(1000, 1000);
+            Thread.sleep(1000);
+            reader.stop();
+
+            // フレームの無い接続は接続失敗として扱われ、待ち時間 0, 100, 200, 400 ms で再接続する
+            assertTrue(Integer.toString(accepted.get()), accepted.get() <= 6);
+            assertEquals(0, reader.getReconnectCount());
+        }
+    }
+
+    private static void readRequest(InputStream in) throws IOException {
+        int matched = 0;
+        int c;
+        while (matched < 4 && (c = in.read()) >= 0) {
+            matched = (c == ((matched % 2 == 0) ? '\r' : '\n')) ? matched + 1 : (c == '\r' ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.kmkt.util.concurrent.TaskWorker;
+import com.github.kmkt.util.concurrent.TaskWorkerCyclicQueue;
+import com.github.kmkt.util.concurrent.TaskWorkerRunner;
+import com.github.kmkt.util.concurrent.TaskWorkerRunner.Backend;
+
+/**
+ * TaskWorkerRunner の実行基盤の比較ベンチマーク
+ *
+ * <pre>
+ * 複数の投入スレッドから短いタスクを大量に submit し、全タスクの完了までの処理件数/秒を
+ * FIXED_THREAD_POOL と FORK_JOIN で比較する。
+ * TaskCompleteListener 有り・無しの両方を計測し、各計測はウォームアップの後に行う。
+ * 続いて TaskWorkerCyclicQueue で TaskWorker を貸し出す構成で、submit と submitAll (バッチ投入) を比較する。
+ * 引数 : [並列数 (既定 : CPU 数)] [投入スレッド数 (既定 : 4)] [タスク数 (既定 : 2000000)]
+ * </pre>
+ */
+public class TaskWorkerRunnerBenchmark {
+
+    /** タスク結果を消費する */
+    private static final AtomicLong sink = new AtomicLong();
+
+    /** 数十 ns 程度の短いタスク */
+    private static final TaskWorker<Integer, Long> WORKER = req -> {
+        long x = req;
+        for (int i = 0; i < 16; i++)
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        return x;
+    };
+
+    public static void main(String[] args) throws Exception {
+        int parallels = (0 < args.length) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int producers = (1 < args.length) ? Integer.parseInt(args[1]) : 4;
+        int tasks = (2 < args.length) ? Integer.parseInt(args[2]) : 2000000;
+
+        System.out.printf("parallels=%d producers=%d tasks=%d%n", parallels, producers, tasks);
+        for (boolean callback : new boolean[] {false, true}) {
+            for (Backend backend : Backend.values()) {
+                run(backend, callback, parallels, producers, tasks / 4);   // warm up
+                double rate = 0;
+                for (int i = 0; i < 3; i++)
+                    rate = Math.max(rate, run(backend, callback, parallels, producers, tasks));
+                System.out.printf("%-17s callback=%-5b : %,12.0f tasks/s%n", backend, callback, rate);
+            }
+        }
+        for (Backend backend : Backend.values()) {
+            for (boolean batch : new boolean[] {false, true}) {
+                runQueued(backend, batch, parallels, producers, tasks / 4);  // warm up
+                double rate = 0;
+                for (int i = 0; i < 3; i++)
+                    rate = Math.max(rate, runQueued(backend, batch, parallels, producers, tasks));
+                System.out.printf("%-17s %-15s : %,12.0f tasks/s%n", backend, batch ? "submitAll" : "submit+queue", rate);
+            }
+        }
+        System.out.println("(sink " + sink.get() + ")");
+    }
+
+    /**
+     * @return 処理件数/秒
+     */
+    private static double run(Backend backend, boolean callback, int parallels, int producers, int tasks)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        TaskWorkerRunner<Integer, Long> runner;
+        if (callback) {
+            runner = new TaskWorkerRunner<>(parallels, backend, () -> WORKER, null, (req, f) -> {
+                try {
+                    sink.addAndGet(f.get());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                done.countDown();
+            });
+        } else {
+            runner = new TaskWorkerRunner<>(parallels, backend, () -> req -> {
+                long r = WORKER.doTask(req);
+                done.countDown();
+                return r;
+            }, null, null);
+        }
+
+        int per_producer = tasks / producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int count = (p == producers - 1) ? tasks - per_producer * (producers - 1) : per_producer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < count; i++)
+                    runner.submit(i);
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        runner.shutdownNow();   // callback スレッドは shutdown では停止しない
+        runner.awaitTermination(10, TimeUnit.SECONDS);
+        return tasks * 1e9 / elapsed;
+    }
+
+    /**
+     * TaskWorkerCyclicQueue から TaskWorker を貸し出す構成で、各投入スレッドが submit あるいは submitAll で投入する
+     * @return 処理件数/秒
+     */
+    private static double runQueued(Backend backend, boolean batch, int parallels, int producers, int tasks)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        TaskWorkerCyclicQueue<Integer, Long> workers = new TaskWorkerCyclicQueue<>();
+        for (int i = 0; i < parallels; i++) {
+            workers.addTaskWorker(req -> {
+                long r = WORKER.doTask(req);
+                done.countDown();
+                return r;
+            });
+        }
+        TaskWorkerRunner<Integer, Long> runner = new TaskWorkerRunner<>(parallels, backend, workers, workers, null);
+
+        int per_producer = tasks / producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int count = (p == producers - 1) ? tasks - per_producer * (producers - 1) : per_producer;
+            threads[p] = new Thread(() -> {
+                if (batch) {
+                    // 1000 件毎のバーストとして投入する
+                    List<Integer> burst = new ArrayList<>(1000);
+                    for (int i = 0; i < count; i++) {
+                        burst.add(i);
+                        if (burst.size() == 1000 || i == count - 1) {
+                            runner.submitAll(burst);
+                            burst = new ArrayList<>(1000);
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < count; i++)
+                        runner.submit(i);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        runner.shutdownNow();
+        runner.awaitTermination(10, TimeUnit.SECONDS);
+        return tasks * 1e9 / elapsed;
+    }
+}
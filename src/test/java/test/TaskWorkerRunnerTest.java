@@ -0,0 +1,396 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.concurrent.BatchTaskWorker;
+import com.github.kmkt.util.concurrent.TaskWorker;
+import com.github.kmkt.util.concurrent.TaskWorkerCyclicQueue;
+import com.github.kmkt.util.concurrent.TaskWorkerRunner;
+import com.github.kmkt.util.concurrent.TaskWorkerRunner.Backend;
+import com.github.kmkt.util.concurrent.TaskWorkerRunner.OverflowPolicy;
+
+public class TaskWorkerRunnerTest {
+
+    @Test
+    public void fixedThreadPool() throws Exception {
+        runTasks(Backend.FIXED_THREAD_POOL);
+    }
+
+    @Test
+    public void forkJoin() throws Exception {
+        runTasks(Backend.FORK_JOIN);
+    }
+
+    @Test
+    public void shutdownNowFixedThreadPool() throws Exception {
+        shutdownNow(Backend.FIXED_THREAD_POOL);
+    }
+
+    @Test
+    public void shutdownNowForkJoin() throws Exception {
+        shutdownNow(Backend.FORK_JOIN);
+    }
+
+    /**
+     * 並列数が maxparallels を超えず、collector と callback が全タスクについて呼ばれること
+     */
+    private void runTasks(Backend backend) throws Exception {
+        final int parallels = 3;
+        final int n = 200;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger collected = new AtomicInteger();
+        CountDownLatch completed = new CountDownLatch(n);
+
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(parallels, backend,
+                () -> req -> {
+                    int r = running.incrementAndGet();
+                    peak.accumulateAndGet(r, Math::max);
+                    Thread.sleep(1);
+                    running.decrementAndGet();
+                    if (req == 0)
+                        throw new IllegalStateException("task 0");
+                    return req * 2;
+                },
+                worker -> collected.incrementAndGet(),
+                (req, f) -> {
+                    assertTrue(f.isDone());
+                    completed.countDown();
+                });
+        assertEquals(backend, runner.getBackend());
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            futures.add(runner.submit(i));
+
+        for (int i = 1; i < n; i++)
+            assertEquals(i * 2, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+        try {
+            futures.get(0).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(n, collected.get());
+        assertTrue(peak.get() <= parallels);
+        assertEquals(0, runner.getNumOfTask());
+
+        assertTrue(runner.shutdownNow().isEmpty());
+        assertTrue(runner.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * shutdownNow が未実行のタスクを返すこと
+     */
+    private void shutdownNow(Backend backend) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerCyclicQueue<Integer, Integer> workers = new TaskWorkerCyclicQueue<>();
+        workers.addTaskWorker(req -> {
+            started.countDown();
+            release.await();
+            return req;
+        });
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(1, backend, workers, workers, null);
+
+        runner.submit(0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 5; i++)
+            runner.submit(i);
+
+        List<Integer> remain = runner.shutdownNow();
+        assertEquals(5, remain.size());
+        for (int i = 1; i <= 5; i++)
+            assertTrue(remain.contains(i));
+        release.countDown();
+    }
+
+    @Test
+    public void rejectWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = blockedRunner(Backend.FIXED_THREAD_POOL, release);
+        runner.setQueueCapacity(2, OverflowPolicy.REJECT);
+        startBlockingTask(runner);
+
+        Future<Integer> f1 = runner.submit(1);
+        Future<Integer> f2 = runner.trySubmit(2);
+        assertNotNull(f2);
+        assertNull(runner.trySubmit(3));
+        try {
+            runner.submit(3);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, runner.getNumOfRejectedTask());
+        assertEquals(2, runner.getNumOfWaitingTask());
+
+        release.countDown();
+        assertEquals(1, (int) f1.get(10, TimeUnit.SECONDS));
+        assertEquals(2, (int) f2.get(10, TimeUnit.SECONDS));
+        assertNotNull(runner.trySubmit(4).get(10, TimeUnit.SECONDS));   // 空いた枠は再利用される
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void blockTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = blockedRunner(Backend.FORK_JOIN, release);
+        runner.setQueueCapacity(1, OverflowPolicy.BLOCK, 50, TimeUnit.MILLISECONDS, null);
+        startBlockingTask(runner);
+
+        runner.submit(1);
+        long start = System.nanoTime();
+        try {
+            runner.submit(2);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertTrue(TimeUnit.MILLISECONDS.toNanos(40) <= System.nanoTime() - start);
+        }
+        assertEquals(1, runner.getNumOfRejectedTask());
+
+        // 待機中に空きができれば投入される
+        new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            release.countDown();
+        }).start();
+        assertEquals(3, (int) runner.submit(3).get(10, TimeUnit.SECONDS));
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void dropOldestFixedThreadPool() throws Exception {
+        dropOldest(Backend.FIXED_THREAD_POOL);
+    }
+
+    @Test
+    public void dropOldestForkJoin() throws Exception {
+        dropOldest(Backend.FORK_JOIN);
+    }
+
+    private void dropOldest(Backend backend) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = blockedRunner(backend, release);
+        List<Integer> dropped = new ArrayList<>();
+        runner.setQueueCapacity(2, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS, dropped::add);
+        startBlockingTask(runner);
+
+        Future<Integer> f1 = runner.submit(1);
+        runner.submit(2);
+        Future<Integer> f3 = runner.submit(3);
+        assertEquals(1, dropped.size());
+        assertEquals(1, (int) dropped.get(0));
+        assertTrue(f1.isCancelled());
+        assertEquals(1, runner.getNumOfDroppedTask());
+        assertEquals(3, runner.getNumOfTask());
+
+        release.countDown();
+        assertEquals(3, (int) f3.get(10, TimeUnit.SECONDS));
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void callerRuns() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(1, () -> req -> {
+            if (req == 0)
+                release.await();
+            return (int) Thread.currentThread().getId();
+        });
+        runner.setQueueCapacity(1, OverflowPolicy.CALLER_RUNS);
+        startBlockingTask(runner);
+
+        runner.submit(1);
+        Future<Integer> f2 = runner.submit(2);
+        assertTrue(f2.isDone());
+        assertEquals((int) Thread.currentThread().getId(), (int) f2.get());
+        assertEquals(1, runner.getNumOfCallerRunsTask());
+        release.countDown();
+        runner.shutdownNow();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queueCapacityOnce() {
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(1, () -> req -> req);
+        runner.setQueueCapacity(1, OverflowPolicy.REJECT);
+        runner.setQueueCapacity(2, OverflowPolicy.REJECT);
+    }
+
+    @Test
+    public void submitAllFixedThreadPool() throws Exception {
+        submitAll(Backend.FIXED_THREAD_POOL);
+    }
+
+    @Test
+    public void submitAllForkJoin() throws Exception {
+        submitAll(Backend.FORK_JOIN);
+    }
+
+    /**
+     * TaskWorker の取得・返却がバッチ毎に 1 回で、結果と callback が引数毎に得られること
+     */
+    private void submitAll(Backend backend) throws Exception {
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch completed = new CountDownLatch(100);
+        TaskWorkerCyclicQueue<Integer, Integer> workers = new TaskWorkerCyclicQueue<Integer, Integer>() {
+            @Override
+            public TaskWorker<Integer, Integer> get() {
+                acquired.incrementAndGet();
+                return super.get();
+            }
+        };
+        workers.addTaskWorker(req -> {
+            if (req == 50)
+                throw new IllegalStateException("task 50");
+            return req * 2;
+        });
+        workers.addTaskWorker(req -> req * 2);
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(2, backend, workers, workers,
+                (req, f) -> completed.countDown());
+
+        List<Integer> reqs = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            reqs.add(i);
+        List<Future<Integer>> futures = runner.submitAll(reqs, 10);
+        assertEquals(100, futures.size());
+        for (int i = 0; i < 100; i++) {
+            try {
+                assertEquals(i * 2, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                assertEquals(50, i);    // 例外は個々のタスクに閉じる
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(10, acquired.get());
+        assertEquals(0, runner.getNumOfTask());
+        runner.shutdownNow();
+    }
+
+    /**
+     * TaskWorker でのバッチ処理では、各タスクが後続タスクを待たずに完了し、処理中の数にも 1 件ずつ計上されること
+     */
+    @Test
+    public void submitAllCompletesEachTask() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(1, Backend.FIXED_THREAD_POOL, () -> req -> {
+            if (req == 1) {
+                started.countDown();
+                release.await();
+            }
+            return req;
+        }, null, null);
+
+        List<Future<Integer>> futures = runner.submitAll(Arrays.asList(0, 1, 2), 3);
+        assertEquals(0, (int) futures.get(0).get(10, TimeUnit.SECONDS));   // 引数 1 の処理中に完了している
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertFalse(futures.get(1).isDone());
+        assertEquals(1, runner.getNumOfRunningTask());
+        assertEquals(1, runner.getNumOfWaitingTask());
+
+        release.countDown();
+        assertEquals(2, (int) futures.get(2).get(10, TimeUnit.SECONDS));
+        assertEquals(0, runner.getNumOfTask());
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void batchTaskWorker() throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        BatchTaskWorker<Integer, Integer> worker = reqs -> {
+            synchronized (sizes) {
+                sizes.add(reqs.size());
+            }
+            if (reqs.contains(-1))
+                throw new IllegalArgumentException("negative");
+            List<Integer> results = new ArrayList<>();
+            for (int req : reqs)
+                results.add(req + 1);
+            return results;
+        };
+        TaskWorkerRunner<Integer, Integer> runner = new TaskWorkerRunner<>(2, Backend.FORK_JOIN, () -> worker, null, null);
+
+        List<Future<Integer>> futures = runner.submitAll(Arrays.asList(1, 2, 3, 4, 5), 2);
+        for (int i = 0; i < 5; i++)
+            assertEquals(i + 2, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+        assertEquals(3, sizes.size());
+        assertEquals(5, sizes.stream().mapToInt(Integer::intValue).sum());
+
+        // doTasks の例外はバッチ内の全タスクの例外となる
+        futures = runner.submitAll(Arrays.asList(1, -1), 2);
+        for (Future<Integer> f : futures) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        }
+
+        // submit でも単一要素のバッチとして処理される
+        assertEquals(8, (int) runner.submit(7).get(10, TimeUnit.SECONDS));
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void submitAllDropOldest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskWorkerRunner<Integer, Integer> runner = blockedRunner(Backend.FIXED_THREAD_POOL, release);
+        List<Integer> dropped = new ArrayList<>();
+        runner.setQueueCapacity(4, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS, dropped::add);
+        startBlockingTask(runner);
+
+        List<Future<Integer>> first = runner.submitAll(Arrays.asList(1, 2, 3, 4), 2);
+        assertEquals(4, runner.getNumOfWaitingTask());
+        List<Future<Integer>> second = runner.submitAll(Arrays.asList(5, 6), 2);   // 最古のバッチを破棄する
+        assertEquals(Arrays.asList(1, 2), dropped);
+        assertTrue(first.get(0).isCancelled());
+        assertTrue(first.get(1).isCancelled());
+        assertEquals(4, runner.getNumOfWaitingTask());
+
+        List<Integer> remain = runner.shutdownNow();
+        assertEquals(Arrays.asList(3, 4, 5, 6), remain);
+        assertFalse(second.get(0).isDone());
+        release.countDown();
+    }
+
+    /**
+     * 引数 0 のタスクが release まで待機する TaskWorkerRunner
+     */
+    private TaskWorkerRunner<Integer, Integer> blockedRunner(Backend backend, CountDownLatch release) {
+        return new TaskWorkerRunner<>(1, backend, () -> req -> {
+            if (req == 0)
+                release.await();
+            return req;
+        }, null, null);
+    }
+
+    /**
+     * 唯一の処理スレッドを引数 0 のタスクで塞ぐ
+     */
+    private void startBlockingTask(TaskWorkerRunner<Integer, Integer> runner) throws InterruptedException {
+        runner.submit(0);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (runner.getNumOfRunningTask() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, runner.getNumOfRunningTask());
+    }
+}
@@ -0,0 +1,162 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kmkt.util.TiledFrameEncoder;
+import com.github.kmkt.util.mjpeg.JpegCodec;
+
+public class TiledFrameEncoderTest {
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 灰色の背景に (x, y) から 16x16 の白い矩形を描いた JPEG を生成する
+     */
+    private static byte[] createJpeg(int width, int height, int x, int y) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.GRAY);
+        g.fillRect(0, 0, width, height);
+        if (0 <= x) {
+            g.setColor(Color.WHITE);
+            g.fillRect(x, y, 16, 16);
+        }
+        g.dispose();
+        return JpegCodec.encode(image, 0.9f);
+    }
+
+    @Test
+    public void keyframeThenDelta() throws Exception {
+        TiledFrameEncoder encoder = new TiledFrameEncoder(64, 0.8f, pool);
+        byte[] first = createJpeg(200, 128, -1, -1);
+
+        // 最初のフレームは差分無し
+        TiledFrameEncoder.Frame frame = encoder.encode(first);
+        assertFalse(frame.isDeltaAvailable());
+        assertNull(frame.getDelta());
+        assertEquals(4 * 2, frame.getNumOfTiles());   // 端のタイルは 8x64
+
+        ByteBuffer key = frame.getKeyframe();
+        assertEquals(TiledFrameEncoder.TYPE_KEYFRAME, key.get());
+        assertEquals(0, key.getInt());
+        assertEquals(200, key.getShort());
+        assertEquals(128, key.getShort());
+        assertEquals(1, key.getShort());
+        assertEquals(0, key.getShort());
+        assertEquals(0, key.getShort());
+        assertEquals(200, key.getShort());
+        assertEquals(128, key.getShort());
+        assertEquals(first.length, key.getInt());
+        assertEquals(first.length, key.remaining());
+
+        // 同じフレームは変化無し
+        frame = encoder.encode(first);
+        assertTrue(frame.isDeltaAvailable());
+        assertEquals(0, frame.getNumOfChangedTiles());
+        assertNull(frame.getDelta());
+
+        // タイル (2, 1) のみ変化
+        frame = encoder.encode(createJpeg(200, 128, 144, 80));
+        assertEquals(1, frame.getNumOfChangedTiles());
+        ByteBuffer delta = frame.getDelta();
+        assertEquals(TiledFrameEncoder.TYPE_DELTA, delta.get());
+        assertEquals(2, delta.getInt());
+        assertEquals(200, delta.getShort());
+        assertEquals(128, delta.getShort());
+        assertEquals(1, delta.getShort());
+        assertEquals(128, delta.getShort());
+        assertEquals(64, delta.getShort());
+        assertEquals(64, delta.getShort());
+        assertEquals(64, delta.getShort());
+        int len = delta.getInt();
+        assertEquals(len, delta.remaining());
+
+        byte[] tile = new byte[len];
+        delta.get(tile);
+        BufferedImage image = JpegCodec.decode(tile, 0, len);
+        assertEquals(64, image.getWidth());
+        assertEquals(64, image.getHeight());
+        assertTrue(200 < (image.getRGB(20, 20) & 0xff));     // 白い矩形はタイル内 (16, 16) から
+    }
+
+    @Test
+    public void resetAndResize() throws Exception {
+        TiledFrameEncoder encoder = new TiledFrameEncoder(64, 0.8f, pool);
+        byte[] frame = createJpeg(128, 128, -1, -1);
+        encoder.encode(frame);
+        encoder.reset();
+        assertFalse(encoder.encode(frame).isDeltaAvailable());
+
+        // サイズが変わった場合も差分無し
+        assertFalse(encoder.encode(createJpeg(256, 128, -1, -1)).isDeltaAvailable());
+    }
+
+    @Test
+    public void deltaFromOlderBase() throws Exception {
+        TiledFrameEncoder encoder = new TiledFrameEncoder(64, 0.8f, pool);
+        TiledFrameEncoder.Frame base = encoder.encode(createJpeg(200, 128, -1, -1));
+        TiledFrameEncoder.Frame skipped = encoder.encode(createJpeg(200, 128, 16, 16));     // タイル (0, 0) が変化
+        TiledFrameEncoder.Frame frame = encoder.encode(createJpeg(200, 128, 144, 80));     // タイル (2, 1) が変化
+        assertEquals(2, frame.getNumOfChangedTiles());  // 直前のフレームからは (0, 0) が戻り (2, 1) が変化
+
+        // skipped を受け取っていない受信側には base からの差分として (2, 1) のみを送る
+        assertTrue(frame.isDeltaAvailable(base));
+        ByteBuffer delta = frame.getDelta(base);
+        assertEquals(TiledFrameEncoder.TYPE_DELTA, delta.get());
+        assertEquals(2, delta.getInt());
+        delta.getShort();
+        delta.getShort();
+        assertEquals(1, delta.getShort());
+        assertEquals(128, delta.getShort());
+        assertEquals(64, delta.getShort());
+
+        // 直前のフレームが基準の場合は符号化時の差分と同じ
+        assertEquals(frame.getDelta(), frame.getDelta(skipped));
+
+        // 同じ内容のフレームからは変化無し
+        TiledFrameEncoder.Frame same = encoder.encode(createJpeg(200, 128, -1, -1));
+        same.releaseImage();
+        assertNull(same.getDelta(base));
+
+        // サイズが異なる・別の encoder のフレームは基準にできない
+        assertFalse(frame.isDeltaAvailable(null));
+        assertFalse(encoder.encode(createJpeg(256, 128, -1, -1)).isDeltaAvailable(base));
+        TiledFrameEncoder other = new TiledFrameEncoder(64, 0.8f, pool);
+        assertFalse(frame.isDeltaAvailable(other.encode(createJpeg(200, 128, -1, -1))));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deltaAfterReleaseImage() throws Exception {
+        TiledFrameEncoder encoder = new TiledFrameEncoder(64, 0.8f, pool);
+        TiledFrameEncoder.Frame base = encoder.encode(createJpeg(200, 128, -1, -1));
+        encoder.encode(createJpeg(200, 128, 16, 16));
+        TiledFrameEncoder.Frame frame = encoder.encode(createJpeg(200, 128, 16, 16));
+        frame.releaseImage();
+        frame.getDelta(base);   // 直前のフレームから変化していない (0, 0) は未エンコード
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallTile() {
+        new TiledFrameEncoder(4, 0.8f, pool);
+    }
+}
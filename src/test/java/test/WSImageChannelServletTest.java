@@ -0,0 +1,120 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeException;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kmkt.util.WSImageChannelServlet;
+
+/**
+ * WSImageChannelServlet のチャネルの生成・破棄を WebSocket で確認するテスト
+ */
+public class WSImageChannelServletTest {
+    private Server server;
+    private WSImageChannelServlet servlet;
+    private WebSocketClient client;
+    private String base;
+
+    /**
+     * 受信したフレームを数える
+     */
+    private static class Receiver extends WebSocketAdapter {
+        final AtomicInteger frames = new AtomicInteger();
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            frames.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        servlet = new WSImageChannelServlet(1, 100, TimeUnit.MILLISECONDS);
+        ServletContextHandler root = new ServletContextHandler(server, "/");
+        root.addServlet(new ServletHolder(servlet), "/ws/*");
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        base = "ws://localhost:" + port + "/ws/";
+
+        client = new WebSocketClient();
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    private Session connect(String channel, Receiver receiver) throws Exception {
+        return client.connect(receiver, new URI(base + channel)).get(10, TimeUnit.SECONDS);
+    }
+
+    private void assertNotFound(String channel) throws Exception {
+        try {
+            connect(channel, new Receiver());
+            fail(channel);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof UpgradeException);
+            assertEquals(404, ((UpgradeException) e.getCause()).getResponseStatusCode());
+        }
+    }
+
+    /**
+     * フレームを受信するまでチャネルにフレームを与える
+     */
+    private void pourUntilReceived(String channel, Receiver receiver) throws InterruptedException {
+        long limit = System.currentTimeMillis() + 5000;
+        while (receiver.frames.get() == 0 && System.currentTimeMillis() < limit) {
+            servlet.pourFrame(channel, new byte[100]);
+            Thread.sleep(20);
+        }
+        assertTrue(0 < receiver.frames.get());
+    }
+
+    @Test
+    public void unknownChannel() throws Exception {
+        // 接続ではチャネルを生成しない
+        assertNotFound("none");
+        assertNotFound("a%2Fb");
+        assertEquals(0, servlet.getNumOfChannels());
+    }
+
+    @Test
+    public void evictIdleChannel() throws Exception {
+        servlet.pourFrame("cam", new byte[100]);
+        Receiver receiver = new Receiver();
+        Session session = connect("cam", receiver);
+        pourUntilReceived("cam", receiver);
+        session.close();
+
+        // セッションが無くなったチャネルは破棄される
+        long limit = System.currentTimeMillis() + 5000;
+        while (0 < servlet.getNumOfChannels() && System.currentTimeMillis() < limit)
+            Thread.sleep(50);
+        assertNull(servlet.getChannel("cam"));
+        assertNotFound("cam");
+
+        // 破棄後の pourFrame で再び生成される
+        servlet.pourFrame("cam", new byte[100]);
+        Receiver again = new Receiver();
+        connect("cam", again);
+        pourUntilReceived("cam", again);
+    }
+}
@@ -0,0 +1,194 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kmkt.util.WSImageServlet;
+
+/**
+ * WSImageServlet のクライアント制御 (ready, pause) と送信中のフレーム破棄を WebSocket で確認するテスト
+ */
+public class WSImageServletFlowControlTest {
+    /** 制御コマンドがサーバで処理されるまでの待ち時間 (ms) */
+    private static final long COMMAND_DELAY = 200;
+
+    private Server server;
+    private WSImageServlet servlet;
+    private WebSocketClient client;
+    private URI uri;
+
+    /**
+     * 受信したフレームを数える WebSocket 受信時に block で待機する
+     */
+    private static class Receiver extends WebSocketAdapter {
+        final AtomicInteger frames = new AtomicInteger();
+        volatile CountDownLatch block = null;
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            CountDownLatch b = block;
+            if (b != null) {
+                try {
+                    b.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            frames.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        servlet = new WSImageServlet();
+        ServletContextHandler root = new ServletContextHandler(server, "/");
+        root.addServlet(new ServletHolder(servlet), "/ws");
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        uri = new URI("ws://localhost:" + port + "/ws");
+
+        client = new WebSocketClient();
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    private Session connect(Receiver receiver) throws Exception {
+        Session session = client.connect(receiver, uri).get(10, TimeUnit.SECONDS);
+        long limit = System.currentTimeMillis() + 10000;
+        while (servlet.getNumOfClients() == 0 && System.currentTimeMillis() < limit)
+            Thread.sleep(10);
+        return session;
+    }
+
+    private static void command(Session session, String msg) throws Exception {
+        session.getRemote().sendString(msg);
+        Thread.sleep(COMMAND_DELAY);
+    }
+
+    /**
+     * 送信が完了する間隔でフレームを与える
+     */
+    private void pour(int n) throws InterruptedException {
+        for (int i = 0; i < n; i++) {
+            servlet.pourFrame(new byte[1000]);
+            Thread.sleep(30);
+        }
+    }
+
+    /**
+     * 受信数が expected になるまで待ち、その後も増えないことを確認する
+     */
+    private static void assertFrames(int expected, Receiver receiver) throws InterruptedException {
+        long limit = System.currentTimeMillis() + 5000;
+        while (receiver.frames.get() < expected && System.currentTimeMillis() < limit)
+            Thread.sleep(10);
+        Thread.sleep(200);
+        assertEquals(expected, receiver.frames.get());
+    }
+
+    @Test
+    public void readyCredits() throws Exception {
+        Receiver receiver = new Receiver();
+        Session session = connect(receiver);
+
+        // ready を送るまでは全フレームを送る
+        pour(2);
+        assertFrames(2, receiver);
+
+        command(session, "ready 3");
+        pour(10);
+        assertFrames(5, receiver);
+        assertEquals(7, servlet.getNumOfSkippedFrames());
+
+        command(session, "ready");
+        pour(3);
+        assertFrames(6, receiver);
+
+        // ready 0 はクレジットを与えずにクレジット制とする
+        command(session, "ready 0");
+        pour(3);
+        assertFrames(6, receiver);
+        assertEquals(0, servlet.getNumOfDroppedFrames());
+    }
+
+    @Test
+    public void readyZero() throws Exception {
+        Receiver receiver = new Receiver();
+        Session session = connect(receiver);
+
+        command(session, "ready 0");
+        pour(5);
+        assertFrames(0, receiver);
+        assertEquals(5, servlet.getNumOfSkippedFrames());
+
+        command(session, "ready 2");
+        pour(5);
+        assertFrames(2, receiver);
+    }
+
+    @Test
+    public void pauseAndResume() throws Exception {
+        Receiver receiver = new Receiver();
+        Session session = connect(receiver);
+
+        command(session, "pause");
+        pour(5);
+        assertFrames(0, receiver);
+
+        command(session, "resume");
+        pour(3);
+        assertFrames(3, receiver);
+
+        // pause 中はクレジットを消費しない
+        command(session, "ready 2");
+        command(session, "pause");
+        pour(3);
+        command(session, "resume");
+        pour(5);
+        assertFrames(5, receiver);
+    }
+
+    @Test
+    public void dropWhileInFlight() throws Exception {
+        Receiver receiver = new Receiver();
+        receiver.block = new CountDownLatch(1);
+        connect(receiver);
+
+        // クライアントが受信しない間に送信が詰まり、送信中のフレームがある間のフレームは破棄される
+        int poured = 200;
+        for (int i = 0; i < poured; i++) {
+            servlet.pourFrame(new byte[60000]);
+            Thread.sleep(2);
+        }
+        assertTrue(0 < servlet.getNumOfDroppedFrames());
+
+        receiver.block.countDown();
+        long limit = System.currentTimeMillis() + 10000;
+        while (receiver.frames.get() + servlet.getNumOfDroppedFrames() < poured && System.currentTimeMillis() < limit)
+            Thread.sleep(10);
+        assertEquals(poured, receiver.frames.get() + servlet.getNumOfDroppedFrames());
+        assertEquals(receiver.frames.get(), servlet.getNumOfSentFrames());
+        assertEquals(0, servlet.getNumOfSkippedFrames());
+    }
+}
@@ -0,0 +1,105 @@
+package test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import com.github.kmkt.util.WSImageServlet;
+import com.github.kmkt.util.mjpeg.JpegCodec;
+
+/**
+ * WSImageServlet タイルモードのサンプルサーバ
+ *
+ * <pre>
+ * 背景の上を矩形が移動するフレームを生成して配信する。
+ * カレントディレクトリをリポジトリのルートとして起動し、
+ * http://localhost:8080/src/test/resources/wsimage_tiles.html を開く。
+ * </pre>
+ */
+public class WSImageServletTileDemo {
+    private static final int DEFAULT_WEBPORT = 8080;   // Web ポート番号
+    private static final String WSPATH = "/ws";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("WSImageServlet タイルモードのサンプルサーバ");
+        System.out.println("USAGE : WSImageServletTileDemo [-p <port>] [duration (ms)]");
+
+        int webport = DEFAULT_WEBPORT;
+        int arg_index = 0;
+        if (1 < args.length && args[0].toLowerCase().equals("-p")) {
+            webport = Integer.parseInt(args[1]);
+            arg_index = 2;
+        }
+        final int duration = (arg_index < args.length) ? Integer.parseInt(args[arg_index]) : 100;
+
+        // init Jetty
+        Server server = new Server(webport);
+        server.setStopAtShutdown(true);
+        ServletContextHandler root = new ServletContextHandler(server, "/", ServletContextHandler.SESSIONS);
+        root.setResourceBase("./");
+        root.setInitParameter("org.eclipse.jetty.servlet.Default.dirAllowed", "false");
+        root.addServlet(DefaultServlet.class, "/*");
+
+        final WSImageServlet servlet = new WSImageServlet();
+        servlet.setTileMode(64, 0.8f, 5, TimeUnit.SECONDS, Runtime.getRuntime().availableProcessors());
+        root.addServlet(new ServletHolder(servlet), WSPATH);
+
+        Thread t = new Thread(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    servlet.pourFrame(createFrame(i));
+                    Thread.sleep(duration);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+
+        server.start();
+        System.out.println("Start web server at port : " + webport);
+        System.out.println("Tile mode client         : http://localhost:" + webport + "/src/test/resources/wsimage_tiles.html");
+        System.out.println("Input 'bye' to exit.");
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if ("bye".equals(line.trim()))
+                break;
+        }
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * 格子模様の背景の上を矩形が移動するフレームを生成する
+     */
+    private static byte[] createFrame(int n) throws Exception {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        try {
+            for (int y = 0; y < HEIGHT; y += 40) {
+                for (int x = 0; x < WIDTH; x += 40) {
+                    g.setColor(((x + y) / 40 % 2 == 0) ? Color.DARK_GRAY : Color.GRAY);
+                    g.fillRect(x, y, 40, 40);
+                }
+            }
+            g.setColor(Color.ORANGE);
+            g.fillRect((n * 8) % WIDTH, HEIGHT / 2 - 30, 60, 60);
+        } finally {
+            g.dispose();
+        }
+        return JpegCodec.encode(image, 0.8f);
+    }
+}
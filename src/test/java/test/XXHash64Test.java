@@ -0,0 +1,36 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.github.kmkt.util.XXHash64;
+
+public class XXHash64Test {
+
+    private static long hash(String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        return XXHash64.hash(b, 0, b.length);
+    }
+
+    @Test
+    public void referenceValues() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void offset() {
+        byte[] b = "--Nobody inspects the spammish repetition--".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(hash("Nobody inspects the spammish repetition"), XXHash64.hash(b, 2, b.length - 4));
+    }
+
+    @Test
+    public void seedChangesHash() {
+        byte[] b = new byte[100];
+        assertNotEquals(XXHash64.hash(b, 0, b.length, 0), XXHash64.hash(b, 0, b.length, 1));
+    }
+}